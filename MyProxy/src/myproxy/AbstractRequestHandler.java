@@ -25,6 +25,7 @@ import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import myproxy.cache.CacheEntry;
 import myproxy.filter.URLRule;
 import myproxy.httpio.ChunkedInputStream;
 import myproxy.httpio.ChunkedOutputStream;
@@ -32,6 +33,7 @@ import myproxy.httpio.Headers;
 import myproxy.httpio.Message;
 import myproxy.httpio.Request;
 import myproxy.httpio.Response;
+import myproxy.httpio.SetCookieScanner;
 import myproxy.httpio.URIParser;
 
 /**
@@ -61,10 +63,10 @@ public abstract class AbstractRequestHandler implements RequestHandler
 	protected final String _localURL, _gifURL, _forwardHostKey;
 	protected final Map _servers;
 	private final String _name;
+	private final SetCookieScanner _cookieScanner = new SetCookieScanner();
 	
 	protected static final int SERVER_COMM_TIMEOUT = 2 * 60 * 1000;
 	protected static final Pattern NUMERIC_IP4 = Pattern.compile("(\\d{1,3}(?:\\.\\d{1,3}){3})(?::\\d+)?");
-	protected static final Pattern COOKIE_SEP  = Pattern.compile("[ \\t]*;[ \\t]*");
 	
 	public AbstractRequestHandler(MyProxy controller, Handler handler) {
 		_controller = controller;
@@ -137,6 +139,16 @@ public abstract class AbstractRequestHandler implements RequestHandler
 	}
 
 	protected void copyStream(InputStream in, OutputStream out, int length) throws IOException
+	{
+		copyStream(in, out, length, null);
+	}
+	
+	/**
+	 * Copies <code>length</code> bytes, or everything if <code>length</code>
+	 * is <tt>-1</tt>, and also writes them to <code>tee</code> if it is not
+	 * <tt>null</tt>.
+	 */
+	protected void copyStream(InputStream in, OutputStream out, int length, OutputStream tee) throws IOException
 	{
 		int sizeOfBuffer = 4096;
 		byte[] buffer = new byte[sizeOfBuffer];
@@ -150,13 +162,19 @@ public abstract class AbstractRequestHandler implements RequestHandler
 				if(read == -1)
 					throw new IOException("Unexpected end of stream.");
 				out.write(buffer, 0, read);
+				if(tee != null)
+					tee.write(buffer, 0, read);
 				length -= read;
 			}
 		}
 		else
 		{
 			while((read = in.read(buffer)) != -1)
+			{
 				out.write(buffer, 0, read);
+				if(tee != null)
+					tee.write(buffer, 0, read);
+			}
 		}
 		out.flush();
 	}
@@ -395,10 +413,11 @@ public abstract class AbstractRequestHandler implements RequestHandler
 	
 	protected void touchRequestHeaders()
 	{
+		Policy policy = _settings.getPolicy();
 		List cookies = _reqHeaders.getCookies();
 		if(cookies.size() > 0)
 		{
-			switch(_settings.getInteger("cookie.level", UserSettings.COOKIE_DEFAULT))
+			switch(policy.cookieLevel)
 			{
 				case UserSettings.COOKIE_PASS:
 					// do nothing
@@ -456,7 +475,7 @@ public abstract class AbstractRequestHandler implements RequestHandler
 
 		if(_reqHeaders.contains("Referer"))
 		{
-			switch(_settings.getInteger("referer.level", UserSettings.REFERER_DEFAULT))
+			switch(policy.refererLevel)
 			{
 				case UserSettings.REFERER_PASS:
 					// do nothing
@@ -474,13 +493,13 @@ public abstract class AbstractRequestHandler implements RequestHandler
 
 		if(_reqHeaders.contains("From"))
 		{
-			switch(_settings.getInteger("from.level", UserSettings.FROM_DEFAULT))
+			switch(policy.fromLevel)
 			{
 				case UserSettings.FROM_PASS:
 					// do nothing
 					break;
 				case UserSettings.FROM_FAKE:
-					_reqHeaders.put("From", _settings.get("from.value", UserSettings.FROM_DEFAULTFAKE));
+					_reqHeaders.put("From", policy.fromValue);
 					break;
 				case UserSettings.FROM_EAT:
 					_reqHeaders.put("From", null);
@@ -490,13 +509,13 @@ public abstract class AbstractRequestHandler implements RequestHandler
 
 		if(_reqHeaders.contains("User-Agent"))
 		{
-			switch(_settings.getInteger("agent.level", UserSettings.AGENT_DEFAULT))
+			switch(policy.agentLevel)
 			{
 				case UserSettings.AGENT_PASS:
 					// do nothing
 					break;
 				case UserSettings.AGENT_FAKE:
-					_reqHeaders.put("User-Agent", _settings.get("agent.value", UserSettings.AGENT_DEFAULTFAKE));
+					_reqHeaders.put("User-Agent", policy.agentValue);
 					break;
 				case UserSettings.AGENT_EAT:
 					_reqHeaders.put("User-Agent", null);
@@ -510,47 +529,26 @@ public abstract class AbstractRequestHandler implements RequestHandler
 		List cookies = _resHeaders.getCookies();
 		if(cookies.size() > 0)
 		{
-			switch(_settings.getInteger("cookie.level", UserSettings.COOKIE_DEFAULT))
+			switch(_settings.getPolicy().cookieLevel)
 			{
 				case UserSettings.COOKIE_PASS:
 					// do nothing
 					break;
 				case UserSettings.COOKIE_CHECK:
-					List sessionCookies = new Vector();
+					List sessionCookies = null;
+					String host = _reqHeaders.getValue("Host");
 					
 					for(Iterator i = cookies.iterator(); i.hasNext();)
 					{
 						String cookie = (String)i.next();
-						cookie = cookie.substring(12); // remove "Set-Cookie: "
-						String[] fields = COOKIE_SEP.split(cookie);
-						String host = _reqHeaders.getValue("Host");
 						String cookieDomain = host;
 						
-						// lowercase the optional field names
-						for(int j = 1; j < fields.length; j++)
+						_cookieScanner.reset(cookie, 12); // skip "Set-Cookie: "
+						while(_cookieScanner.next())
 						{
-							String[] parts = fields[j].split("=", 2);
-							
-							if(parts.length == 2)
+							if(_cookieScanner.nameIs("domain") && _cookieScanner.hasValue())
 							{
-								StringBuffer newCookie = new StringBuffer();							
-								newCookie.append(parts[0].toLowerCase());
-								newCookie.append('=').append(parts[1]);								
-								fields[j] = newCookie.toString();
-							}
-							else
-							{
-								StringBuffer message = new StringBuffer("Invalid cookie field from ");
-								message.append(host).append("\n\t").append(fields[j]);
-								_cookieLogger.logp(Level.WARNING, getName(), "touchResponseHeaders", message.toString());
-							}
-						}
-						
-						for(int j = 1; j < fields.length; j++)
-						{
-							if(fields[j].startsWith("domain="))
-							{
-								cookieDomain = fields[j].substring(7);
+								cookieDomain = _cookieScanner.value();
 								break;
 							}
 						}
@@ -571,26 +569,17 @@ public abstract class AbstractRequestHandler implements RequestHandler
 						{
 							if(sessionCookie)
 							{
-								StringBuffer newCookie = new StringBuffer();
-
-								newCookie.append("Set-Cookie: ").append(fields[0]);
-								
-								for(int j = 1; j < fields.length; j++)
-								{
-									if(!fields[j].startsWith("expires="))
-										newCookie.append("; ").append(fields[j]);
-								}
-								
-								sessionCookies.add(newCookie.toString());
+								cookie = toSessionCookie(cookie, host);
+								if(sessionCookies == null)
+									sessionCookies = new Vector();
+								sessionCookies.add(cookie);
 								i.remove();
-								
-								cookie = newCookie.substring(12); // remove "Set-Cookie: "
 							}
 							
 							if(_cookieLogger.isLoggable(Level.FINER))
 							{
 								StringBuffer message = new StringBuffer("Passing incoming cookie from ");
-								message.append(host).append("\n\t").append(cookie);
+								message.append(host).append("\n\t").append(cookie.substring(12));
 								_cookieLogger.logp(Level.FINER, getName(), "touchResponseHeaders", message.toString());
 							}
 							
@@ -600,7 +589,7 @@ public abstract class AbstractRequestHandler implements RequestHandler
 						if(_cookieLogger.isLoggable(Level.FINE))
 						{
 							StringBuffer message = new StringBuffer("Eating incoming cookie from ");
-							message.append(host).append("\n\t").append(cookie);
+							message.append(host).append("\n\t").append(cookie.substring(12));
 							_cookieLogger.logp(Level.FINE, getName(), "touchResponseHeaders", message.toString());
 						}
 						
@@ -608,7 +597,8 @@ public abstract class AbstractRequestHandler implements RequestHandler
 						i.remove();
 					}
 					
-					cookies.addAll(sessionCookies);					
+					if(sessionCookies != null)
+						cookies.addAll(sessionCookies);
 					break;
 				case UserSettings.COOKIE_EAT:
 					cookies.clear();
@@ -616,6 +606,38 @@ public abstract class AbstractRequestHandler implements RequestHandler
 			}
 		}
 	}
+	
+	/**
+	 * Rewrites a <tt>Set-Cookie</tt> header without its expiry date,
+	 * so the browser keeps the cookie for the session only. Attribute
+	 * names are lowercased on the way.
+	 */
+	private String toSessionCookie(String cookie, String host)
+	{
+		StringBuffer newCookie = new StringBuffer(cookie.length());
+		
+		newCookie.append("Set-Cookie: ");
+		_cookieScanner.reset(cookie, 12);
+		_cookieScanner.appendFirst(newCookie);
+		
+		while(_cookieScanner.next())
+		{
+			if(_cookieScanner.nameIs("expires"))
+				continue;
+			
+			if(!_cookieScanner.hasValue() && _cookieLogger.isLoggable(Level.FINER))
+			{
+				StringBuffer message = new StringBuffer("Cookie attribute without value from ");
+				message.append(host).append("\n\t").append(_cookieScanner.field());
+				_cookieLogger.logp(Level.FINER, getName(), "toSessionCookie", message.toString());
+			}
+			
+			newCookie.append("; ");
+			_cookieScanner.appendLowerCase(newCookie);
+		}
+		
+		return newCookie.toString();
+	}
 
 	
 	/**
@@ -637,6 +659,15 @@ public abstract class AbstractRequestHandler implements RequestHandler
 	
 
 	protected void sendResponseBody() throws IOException
+	{
+		sendResponseBody(null);
+	}
+	
+	/**
+	 * Sends the response body to the client, and its decoded
+	 * bytes also to <code>tee</code>, if it is not <tt>null</tt>.
+	 */
+	protected void sendResponseBody(OutputStream tee) throws IOException
 	{
 		if(_res.isBodyless() || _req.getMethod().equals("HEAD"))
 			return;
@@ -646,7 +677,7 @@ public abstract class AbstractRequestHandler implements RequestHandler
 		{
 			if(transferCoding.equalsIgnoreCase("chunked"))
 			{
-				copyChunks(_server.in, _client.out);
+				copyChunks(_server.in, _client.out, tee);
 				_res.getTrailer().read(_server.in);
 				_res.getTrailer().write(_client.out);
 			}
@@ -666,7 +697,7 @@ public abstract class AbstractRequestHandler implements RequestHandler
 		{
 			try
 			{
-				copyStream(_server.in, _client.out, Integer.parseInt(_resHeaders.getValue("Content-Length")));
+				copyStream(_server.in, _client.out, Integer.parseInt(_resHeaders.getValue("Content-Length")), tee);
 			}
 			catch(NumberFormatException e)
 			{
@@ -683,7 +714,7 @@ public abstract class AbstractRequestHandler implements RequestHandler
 		else
 		{
 			// body delimited by closing connection
-			copyStream(_server.in, _client.out, -1);
+			copyStream(_server.in, _client.out, -1, tee);
 			_client.setKeepConnection(false);
 		}
 		
@@ -692,6 +723,11 @@ public abstract class AbstractRequestHandler implements RequestHandler
 	
 	
 	protected void copyChunks(InputStream in, OutputStream out) throws IOException
+	{
+		copyChunks(in, out, null);
+	}
+	
+	protected void copyChunks(InputStream in, OutputStream out, OutputStream tee) throws IOException
 	{
 		ChunkedInputStream  cin  = new ChunkedInputStream(in);
 		ChunkedOutputStream cout = new ChunkedOutputStream(out);
@@ -709,6 +745,8 @@ public abstract class AbstractRequestHandler implements RequestHandler
 				if(read == -1)
 					throw new IOException("Unexpected end of stream.");
 				cout.write(buffer, 0, read);
+				if(tee != null)
+					tee.write(buffer, 0, read);
 			}
 			cout.endChunk();
 			cin.startChunk();
@@ -717,6 +755,65 @@ public abstract class AbstractRequestHandler implements RequestHandler
 		cin.close();
 	}
 	
+	/**
+	 * Returns the absolute URL of the request, the key of its
+	 * response in the <code>HttpCache</code>.
+	 */
+	protected String getCacheKey()
+	{
+		if(_uri.getHost() != null)
+			return _uri.getSource();
+		
+		StringBuffer url = new StringBuffer("http://");
+		url.append(_reqHeaders.getValue("Host")).append(_req.getFullURIPath());
+		return url.toString();
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the client made the request conditional itself.
+	 */
+	protected boolean isConditionalRequest()
+	{
+		return _reqHeaders.contains("If-None-Match") || _reqHeaders.contains("If-Modified-Since");
+	}
+	
+	/**
+	 * Asks the server whether <code>entry</code> is still valid, by
+	 * adding its validators to the request.
+	 */
+	protected void addValidators(CacheEntry entry)
+	{
+		if(entry.getETag() != null)
+			_reqHeaders.put("If-None-Match", entry.getETag());
+		if(entry.getLastModified() != null)
+			_reqHeaders.put("If-Modified-Since", entry.getLastModified());
+	}
+	
+	/**
+	 * Answers the request from the cache: with <tt>304 Not Modified</tt>
+	 * if the client's own conditions hold, else with the stored response.
+	 */
+	protected void sendCachedResponse(CacheEntry entry) throws IOException
+	{
+		boolean notModified = isConditionalRequest() && entry.isNotModified(_reqHeaders);
+		
+		entry.readResponse(_res, System.currentTimeMillis());
+		_res.setVersion(1, 1);
+		if(notModified)
+		{
+			_res.setStatus("304", "Not Modified");
+			_resHeaders.put("Content-Length", null);
+		}
+		
+		_client.write(_res);
+		
+		if(_msgLogger.isLoggable(Level.FINER))
+			logHTTPMessage("Cached response header sent to client.", _res);
+		
+		if(!notModified)
+			entry.writeBody(_client.out);
+	}
+	
 	public String getName() {
 		return _name;
 	}
@@ -191,6 +191,37 @@ public final class Connection
 		}
 	}
 
+	/**
+	 * Returns the address of the other end, or <tt>null</tt>
+	 * if the socket is not connected.
+	 */
+	public InetAddress getRemoteAddress()
+	{
+		return _socket.getInetAddress();
+	}
+
+	/**
+	 * Returns the port of the other end, or <tt>0</tt>
+	 * if the socket is not connected.
+	 */
+	public int getRemotePort()
+	{
+		return _socket.getPort();
+	}
+
+	/**
+	 * Returns what tells the clients on the other end apart: the tunnel
+	 * if this is one of its streams, as they all come from one local end,
+	 * and the address of the other end otherwise.
+	 */
+	public Object getPeer()
+	{
+		Tunnel tunnel = Tunnel.tunnelOf(_socket);
+		if(tunnel != null)
+			return tunnel;
+		return getRemoteAddress();
+	}
+
 	/**
 	 * Returns the remote socket's address in string form.
 	 */
@@ -199,6 +230,6 @@ public final class Connection
 		if(_socket.getRemoteSocketAddress() != null)
 			return _socket.getRemoteSocketAddress().toString();
 		else
-			return null;
+			return _socket.toString();
 	}
 }
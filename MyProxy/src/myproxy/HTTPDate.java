@@ -27,11 +27,22 @@ public final class HTTPDate
 	private final static SimpleDateFormat _formatter;
 	private final static Date _current;
 	
+	/** RFC 1123, RFC 850 and asctime() formats, as allowed by RFC 2616 */
+	private final static SimpleDateFormat[] _parsers;
+	
 	static
 	{
-		_formatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+		_formatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
 		_formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
 		_current = new Date();
+		
+		_parsers = new SimpleDateFormat[] {
+			new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US),
+			new SimpleDateFormat("EEEE, dd-MMM-yy HH:mm:ss z", Locale.US),
+			new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy", Locale.US)
+		};
+		for(int i = 0; i < _parsers.length; i++)
+			_parsers[i].setTimeZone(TimeZone.getTimeZone("GMT"));
 	}
 	
 	public synchronized static String now()
@@ -39,4 +50,30 @@ public final class HTTPDate
 		_current.setTime(System.currentTimeMillis());
 		return _formatter.format(_current);
 	}
+	
+	public synchronized static String format(long time)
+	{
+		_current.setTime(time);
+		return _formatter.format(_current);
+	}
+	
+	/**
+	 * Returns the time in milliseconds, or <tt>-1</tt>
+	 * if <code>date</code> is <tt>null</tt> or invalid.
+	 */
+	public synchronized static long parse(String date)
+	{
+		if(date == null)
+			return -1;
+		
+		for(int i = 0; i < _parsers.length; i++)
+		{
+			ParsePosition pos = new ParsePosition(0);
+			Date result = _parsers[i].parse(date.trim(), pos);
+			if(result != null)
+				return result.getTime();
+		}
+		
+		return -1;
+	}
 }
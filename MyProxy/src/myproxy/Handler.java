@@ -158,6 +158,13 @@ public final class Handler implements Runnable
 			}
 			if(oldTimeout>=0) _client.setTimeout(oldTimeout);
 			
+			// the local end of a prefetching pair asks to carry its page loads over this connection
+			if(Tunnel.isUpgrade(_req) && _settings.getPolicy().prefetching == UserSettings.PREFETCHING_REMOTEEND)
+			{
+				acceptTunnel();
+				return;
+			}
+			
 			// see if we're handling this at all
 			checkRequest();
 			
@@ -166,10 +173,17 @@ public final class Handler implements Runnable
 			if(prefetchHeader!=null) {
 				String [] prefetchHeaderArray = prefetchHeader.split("\\s|,");
 				prefetchValue=prefetchHeaderArray[0];
+				
+				// the local end lists the strategies it knows, the preferred one first
+				for(int i = 0; i < prefetchHeaderArray.length; i++) {
+					if(_controller.getSupportedPrefetchStrategies().contains(prefetchHeaderArray[i])) {
+						prefetchValue=prefetchHeaderArray[i];
+						break;
+					}
+				}
 			}
 
-			if((_controller.getSettings("default").getInteger("prefetching.value",
-					UserSettings.PREFETCHING_DISABLED) == UserSettings.PREFETCHING_REMOTEEND) &&
+			if(_controller.getSettings("default").getPolicy().prefetching == UserSettings.PREFETCHING_REMOTEEND &&
 					prefetchValue.equals("")) {
 				throw new HTTPException("500", "err.remoteendheadermissing", "This proxy can only be used via a prefetching local end", true);
 			}
@@ -299,6 +313,25 @@ public final class Handler implements Runnable
 		return _server;
 	}
 	
+	/**
+	 * Turns the client connection into a <code>Tunnel</code> and
+	 * serves it until the local end closes it.
+	 */
+	private void acceptTunnel() throws IOException
+	{
+		_res.clear();
+		_res.setVersion(1, 1);
+		_res.setStatus("101", "Switching Protocols");
+		_resHeaders.put("Upgrade", Tunnel.UPGRADE);
+		_client.write(_res);
+		
+		_logger.logp(Level.INFO, getName(), "acceptTunnel", "Tunnel opened by " + _client);
+		_client.setTimeout(0);
+		new Tunnel(_client, _controller).run();
+		_client.setKeepConnection(false);
+		_logger.logp(Level.INFO, getName(), "acceptTunnel", "Tunnel closed.");
+	}
+	
 	private void checkRequest() throws IOException, HTTPException
 	{
 		if(_req.compareVersion(1, 1) < 0)
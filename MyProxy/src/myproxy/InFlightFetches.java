@@ -0,0 +1,108 @@
+package myproxy;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import myproxy.httpio.Headers;
+import myproxy.httpio.Request;
+
+/**
+ * The prefetches the remote end is running, so that pages loaded at the
+ * same time, by one user or several, share one fetch of the entities
+ * they have in common instead of fetching them once each.
+ *
+ * A fetch is only shared by requests that get the same response: for the
+ * same URL, with the same credentials, cookies, accepted encodings and
+ * validators. Every page that uses a fetch holds a reference to it until
+ * it has sent the entity. The fetch is forgotten once it is complete or
+ * nobody holds it anymore, so later requests start a fetch of their own;
+ * a fetch nobody holds anymore is cancelled.
+ *
+ * @author dh
+ */
+final class InFlightFetches {
+	/** the request headers a response may depend on */
+	private static final String[] KEY_HEADERS = {
+		"Authorization", "Proxy-Authorization", "Cookie", "Accept-Encoding",
+		"If-None-Match", "If-Modified-Since", "Range"
+	};
+
+	/** keys to <code>Fetch</code>es */
+	private final Map _fetches = new HashMap();
+
+	/** handlers to their <code>Fetch</code> */
+	private final Map _byHandler = new HashMap();
+
+	private static final class Fetch {
+		final String key;
+		final PrefetchingHandler handler;
+		int references;
+
+		Fetch(String key, PrefetchingHandler handler) {
+			this.key = key;
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * Returns the running fetch for <code>request</code>, or registers
+	 * <code>candidate</code> as that fetch if there is none. Only in the
+	 * latter case the caller has to start the candidate. Either way, the
+	 * caller holds a reference to the fetch returned.
+	 */
+	synchronized PrefetchingHandler acquire(Request request, PrefetchingHandler candidate) {
+		forgetCompleted();
+
+		String key = keyOf(request);
+		Fetch fetch = (Fetch)_fetches.get(key);
+		if(fetch == null) {
+			fetch = new Fetch(key, candidate);
+			_fetches.put(key, fetch);
+			_byHandler.put(candidate, fetch);
+		}
+		fetch.references++;
+		return fetch.handler;
+	}
+
+	/**
+	 * Drops a reference to a fetch; once there are none, the fetch is
+	 * not shared anymore, and cancelled if it is still running.
+	 */
+	synchronized void release(PrefetchingHandler handler) {
+		Fetch fetch = (Fetch)_byHandler.get(handler);
+		if(fetch != null && --fetch.references <= 0) {
+			forget(fetch);
+			if(!handler.getEntity().isCompleted())
+				handler.cancel();
+		}
+	}
+
+	private void forgetCompleted() {
+		for(Iterator i = _fetches.values().iterator(); i.hasNext();) {
+			Fetch fetch = (Fetch)i.next();
+			if(fetch.handler.getEntity().isCompleted()) {
+				i.remove();
+				_byHandler.remove(fetch.handler);
+			}
+		}
+	}
+
+	private void forget(Fetch fetch) {
+		if(_fetches.get(fetch.key) == fetch)
+			_fetches.remove(fetch.key);
+		_byHandler.remove(fetch.handler);
+	}
+
+	private static String keyOf(Request request) {
+		StringBuffer key = new StringBuffer(request.getURI().getSource());
+		Headers headers = request.getHeaders();
+		for(int i = 0; i < KEY_HEADERS.length; i++) {
+			String value = headers.getValue(KEY_HEADERS[i]);
+			key.append('\n');
+			if(value != null)
+				key.append(value);
+		}
+		return key.toString();
+	}
+}
@@ -6,35 +6,50 @@ package myproxy;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ConnectException;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
 import java.net.PortUnreachableException;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.logging.Level;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 
-import myproxy.httpio.ChunkExtensions;
+import myproxy.cache.CacheEntry;
+import myproxy.cache.HttpCache;
 import myproxy.httpio.ChunkedInputStream;
+import myproxy.httpio.ChunkedOutputStream;
+import myproxy.httpio.FrameHeader;
+import myproxy.httpio.Headers;
 import myproxy.httpio.MessageFormatException;
 import myproxy.httpio.Request;
 import myproxy.httpio.Response;
 import myproxy.httpio.URIFormatException;
 import myproxy.httpio.URIParser;
+import myproxy.prefetching.BodyCodec;
+import myproxy.prefetching.HeaderCodec;
+import myproxy.prefetching.PageHistory;
 import myproxy.prefetching.PrefetchedEntity;
 import myproxy.prefetching.PrefetchedEntityStore;
+import myproxy.prefetching.URLListCodec;
+import myproxy.prefetching.URLSet;
 
 /**
  * @author dh
@@ -45,6 +60,23 @@ public class LocalPrefetchRequestHandler extends AbstractRequestHandler
 	
 	// how long should we wait for the prefetched entities before we abort the prefetching?
 	private static final long MAX_WAIT_TIME = 20 * 1000;
+	
+	// how many pages we remember the embedded entities of
+	private static final int MAX_PAGES = 256;
+	
+	/** the embedded URLs of recently loaded pages, so that they can be revalidated along with the page */
+	private static final Map _embeddedURLs = new LinkedHashMap(64, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > MAX_PAGES;
+		}
+	};
+	
+	/** the URLs of pages to the receivers of what they embed, one for each load of the page */
+	private static final Map _receivers = new HashMap();
+	
+	/** the receiver for the page last loaded over this client connection */
+	private EmbeddedEntityReceiver _lastPage;
+	
 	private int nextPrefetchingHandlerId;
 	
 	public LocalPrefetchRequestHandler(MyProxy controller, Handler handler) {
@@ -56,6 +88,18 @@ public class LocalPrefetchRequestHandler extends AbstractRequestHandler
 	 */
 	public void handleRequest() throws IOException, HTTPException,
 			MessageFormatException {
+		_server = null;
+		try {
+			handlePageLoad();
+		} finally {
+			// streams and connections to the remote end serve one page load only
+			if(_server != null)
+				_server.safeClose();
+		}
+	}
+	
+	private void handlePageLoad() throws IOException, HTTPException,
+			MessageFormatException {
 
 		_logger.finer(getName() + " incoming request for "+_uri.getSource());
 		
@@ -66,18 +110,72 @@ public class LocalPrefetchRequestHandler extends AbstractRequestHandler
 			return;
 		}
 		
+		// the store, the page history and the receivers know URLs in their normalized form
+		String url = URLSet.normalize(_req.getURI().getSource());
 		PrefetchedEntityStore entityStore = PrefetchedEntityStore.getInstance();
-		entityStore.weedStore();
+		PageHistory history = _controller.getPageHistory();
+		recordRequest(history, url);
+		leavePreviousPage(url);
 		
-		// fortunately, we know about embedded entities even before the browser can request them
-		if(entityStore.containsURL(_req.getURI().getSource())) {
-			handleAlreadyPrefetchedEntity(_req.getURI().getSource());
+		// fortunately, we know about embedded entities even before the browser can request them;
+		// if one was dropped or does not arrive in time, fetch it like any other request
+		if(handleAlreadyPrefetchedEntity(url))
 			return;
-		}
 		
+		// remove/modify request headers as necessary, before the cache
+		// compares them with the ones a stored response varies on
+		touchRequestHeaders();
+		
+		HttpCache cache = _controller.getCache();
+		String cacheKey = null;
+		CacheEntry cached = null;
+		
+		if(cache != null)
+		{
+			cacheKey = getCacheKey();
+			
+			if(HttpCache.isCacheable(_req))
+			{
+				cached = cache.lookup(cacheKey, _reqHeaders);
+				
+				if(cached != null && HttpCache.mayServeStored(_req) && cached.isFresh(System.currentTimeMillis()))
+				{
+					_logger.finer(getName() + " client requested cached entity: " + cacheKey);
+					cache.countHit(false);
+					sendCachedResponse(cached);
+					return;
+				}
+				
+				// the remote end passes the validators on to the server
+				if(cached != null && cached.hasValidator() && !isConditionalRequest())
+					addValidators(cached);
+				else
+					cached = null;
+			}
+			else if(!_req.getMethod().equals("HEAD"))
+			{
+				cache.invalidate(cacheKey);
+			}
+		}
 	
 		// add prefetch header so that remote end actually will perform prefetching
-		_reqHeaders.put("X-Accept-Prefetching", "toptobottom,HE=gzip,BE=gzip");
+		String strategies = history != null ? "learned,toptobottom" : "toptobottom";
+		_reqHeaders.put("X-Accept-Prefetching", strategies + ",chained,skip,recursive,framing=" + FrameHeader.VERSION + ",HE=" + HeaderCodec.NAME + ",HE=gzip,UL=" + URLListCodec.NAME + "," + BodyCodec.acceptTokens());
+		
+		// if we know what the page embedded last time, or what the browser requested
+		// after it before, tell the remote end what we have cached of it, so it can
+		// revalidate everything in one go
+		byte[] validators = null;
+		List freshURLs = new ArrayList();
+		List predictedURLs = history != null ? history.predict(url) : Collections.EMPTY_LIST;
+		if((cache != null || !predictedURLs.isEmpty()) &&
+				_req.getMethod().equals("GET") && !_req.hasBodyHeaders() && !_reqHeaders.contains("Expect")) {
+			validators = collectValidators(cache, cacheKey, predictedURLs, freshURLs);
+			if(validators != null) {
+				_reqHeaders.put("X-Prefetch-Validators", "chunked");
+				_reqHeaders.put("Transfer-Encoding", "chunked");
+			}
+		}
 		
 		boolean expectContinue = false;
 		
@@ -118,9 +216,6 @@ public class LocalPrefetchRequestHandler extends AbstractRequestHandler
 			}
 		}
 		
-		// remove/modify request headers as necessary
-		touchRequestHeaders();
-		
 		// keep original request URI (will be overwritten by next statements)
 		URIParser baseURI = new URIParser();
 		try {
@@ -170,7 +265,12 @@ public class LocalPrefetchRequestHandler extends AbstractRequestHandler
 		
 		// copy request body, if any
 		String transferCoding = _req.lastTransferCoding();
-		if(transferCoding != null)
+		if(validators != null)
+		{
+			// the body is ours: the validators of the embedded entities
+			sendValidators(validators);
+		}
+		else if(transferCoding != null)
 		{
 			if(transferCoding.equalsIgnoreCase("chunked"))
 			{
@@ -209,37 +309,29 @@ public class LocalPrefetchRequestHandler extends AbstractRequestHandler
 		if(prefetchStrategy==null)
 			throw new HTTPException("500", "err.remoteenderror", "X-Prefetch-Strategy header is missing", false);
 		
-		ChunkedInputStream serverChunkedInput = new ChunkedInputStream(_server.in);
-		String extString;
-		ChunkExtensions extensions;
+		// binary frames if the remote end agreed to them, else chunks with extensions
+		boolean binary = String.valueOf(FrameHeader.VERSION).equals(initialResponse.getHeaders().get("X-Prefetch-Framing"));
+		ChunkedInputStream serverChunkedInput = new ChunkedInputStream(_server.in, binary);
+		FrameHeader frame;
 		int headerLength;
 		ByteArrayOutputStream buffer;
 		
 		serverChunkedInput.startChunk();
-		extString=serverChunkedInput.extensions();
-		extensions = new ChunkExtensions(extString); 
-		
-		boolean doUncompressHeaders = (extensions.getHeaderEncoding() != null && extensions.getHeaderEncoding().equals("gzip"));
-		boolean doUncompressBody = (extensions.getBodyEncoding() != null && extensions.getBodyEncoding().equals("gzip"));
+		frame = serverChunkedInput.frame();
 		
-		if(!extensions.getType().equals("response"))
-			throw new HTTPException("500", "err.remoteenderror", "Chunk with type=response expected, but received type "+extensions.getType()+" instead", false);
+		if(frame.getType() != FrameHeader.RESPONSE)
+			throw new HTTPException("500", "err.remoteenderror", "Chunk with type=response expected, but received type "+frame.getTypeName()+" instead", false);
 		
-		try {
-			headerLength=extensions.getHeaderLength();
-		} catch(NumberFormatException e) {
+		headerLength=frame.getHeaderLength();
+		if(headerLength < 0)
 			throw new HTTPException("500", "err.remoteenderror", "Invalid or missing header-length chunk-extension", false);
-		}
 		
 		buffer = new ByteArrayOutputStream(headerLength);
 		copyStream(serverChunkedInput, buffer, headerLength);
 		
-		if(doUncompressHeaders) {
-			buffer = uncompressHeadersGZIP(buffer);
-		}
-		
-
-		_res.read(new ByteArrayInputStream(buffer.toByteArray()));
+		// all heads of this page load share the dictionary
+		HeaderCodec headerCodec = new HeaderCodec();
+		_res.read(new ByteArrayInputStream(uncompressHeaders(buffer, frame.getHeaderEncoding(), headerCodec)));
 		
 		if(_msgLogger.isLoggable(Level.FINER))
 			logHTTPMessage(getName()+ " response header received from remote end; remote server: "+_server.toString(), _res);
@@ -252,27 +344,21 @@ public class LocalPrefetchRequestHandler extends AbstractRequestHandler
 			throw new HTTPException("500", "err.servercoding", _res.lastTransferCoding(), false);
 		}
 
+		boolean notModified = cached != null && _res.getStatusCode().equals("304");
+		boolean cacheable = cache != null && !notModified && cache.isCacheable(_req, _res);
+		
 		// remove/modify response headers as necessary
 		touchResponseHeaders();
 
 
 		// BEGIN PREFETCH SPECIFIC CODE 
 		PrefetchingHandler ph;
-		ByteArrayOutputStream headersOut;
-		ByteArrayInputStream headersIn;
-		Request req;
 		
 		// prefetch the main page itself
 		
-		// prepare request -> reuse existing one
-		req = _req;
-
-		// copy headers
-		headersOut  = new ByteArrayOutputStream();
-		
-		_reqHeaders.write(headersOut);
-		headersIn = new ByteArrayInputStream(headersOut.toByteArray());
-		req.getHeaders().read(headersIn);
+		// copy the request: the embedded entities are received while
+		// this handler already serves the next request of the client
+		Request req = _req.copy();
 		
 		// remove prefetching header
 		req.getHeaders().put("Prefetch-Strategy", null);
@@ -285,54 +371,45 @@ public class LocalPrefetchRequestHandler extends AbstractRequestHandler
 		ph = new PrefetchingHandler(_controller, getName(), websiteEntity, nextPrefetchingHandlerId++);
 		ph.setServerConnection(_server); // server connection has already been established by caller -> use it!
 		
-		if(doUncompressBody) {
-			ByteArrayOutputStream compressedBuffer = new ByteArrayOutputStream(serverChunkedInput.chunkLeft());
-			copyStream(serverChunkedInput, compressedBuffer, serverChunkedInput.chunkLeft());
-			ph.prefetchEntityBody(new ByteArrayInputStream(uncompressData(compressedBuffer.toByteArray())));
+		receiveBody(ph, serverChunkedInput, frame.getBodyEncoding());
+		
+		int bodyContentLength = 0;
+		if(notModified) {
+			// the cached response is still valid; it is sent once the URL list has been read
+			cached = cache.update(cached, _res);
 		} else {
-			ph.prefetchEntityBody(serverChunkedInput);
+			bodyContentLength = Integer.parseInt(_res.getHeaders().getValue("Content-Length"));
+			
+			if(cacheable)
+				cache.store(cacheKey, _reqHeaders, _res, websiteEntity.getBody().asReadOnlyBuffer());
+			
+			// send main response back to client
+			_res.getHeaders().put("Content-Length", String.valueOf(bodyContentLength)); //TODO ???
+			_res.getHeaders().put("Transfer-Encoding", null);
+			
+			_client.write(_res);
+			
+			if(_msgLogger.isLoggable(Level.FINER))
+				logHTTPMessage(getName() + " response header sent to client.", _res);
 		}
 		
-		int bodyContentLength = Integer.parseInt(_res.getHeaders().getValue("Content-Length"));
-		
-		// send main response back to client
-		_res.getHeaders().put("Content-Length", String.valueOf(bodyContentLength)); //TODO ???
-		_res.getHeaders().put("Transfer-Encoding", null);
-		
-		// have to close connection because we will wait for the prefetched responses from the server below
-		// and cannot deal with potential pipelined subrequests from the client.
-		// TODO: Have to check whether we can do it this way (conforming to standard?)
-		_res.getHeaders().put("Connection", "close");
-		
-		_client.write(_res);
-		
-		if(_msgLogger.isLoggable(Level.FINER))
-			logHTTPMessage(getName() + " response header sent to client.", _res);
-		
 
 		List urlsOfEmbeddedEntities = new ArrayList();
 		
 		serverChunkedInput.startChunk();
 		if(serverChunkedInput.chunkSize()>0) {
-			extString=serverChunkedInput.extensions();
-			extensions = new ChunkExtensions(extString); 
-			
-			if(!extensions.getType().equals("urllist"))
-				throw new HTTPException("500", "err.remoteenderror", "Chunk with type=urllist expected, but received type "+extensions.getType()+" instead", false);
+			frame = serverChunkedInput.frame();
+			if(frame.getType() != FrameHeader.URLLIST)
+				throw new HTTPException("500", "err.remoteenderror", "Chunk with type=urllist expected, but received type "+frame.getTypeName()+" instead", false);
 			
-			headerLength=0;
-			buffer = new ByteArrayOutputStream(headerLength);
-			copyStream(serverChunkedInput, buffer, serverChunkedInput.chunkSize());
+			readURLList(serverChunkedInput, urlsOfEmbeddedEntities);
 			
-			String urlString = new String(uncompressData(buffer.toByteArray()));
-			StringTokenizer tok = new StringTokenizer(urlString);
-			
-			while(tok.hasMoreTokens()) {
-				String url = tok.nextToken("\n");
-				urlsOfEmbeddedEntities.add(url);
-				
-				if(!entityStore.containsURL(url)) {
-					entityStore.prepareForStorage(url);
+			if(cache != null) {
+				// the remote end leaves out what we have fresh copies of
+				Set embedded = new URLSet(urlsOfEmbeddedEntities);
+				embedded.addAll(freshURLs);
+				synchronized(_embeddedURLs) {
+					_embeddedURLs.put(cacheKey, new ArrayList(embedded));
 				}
 			}
 		}
@@ -347,204 +424,325 @@ public class LocalPrefetchRequestHandler extends AbstractRequestHandler
 		// send only as many bytes as specified by the content-length header
 		// reason: directly behind the first document the embedded entities might already
 		// be present - and we certainly do not want to send them to the client along with the html!
-		copyStream(new ByteArrayInputStream(websiteEntity.getBuffer()),
-				_client.out, bodyContentLength);
-		
-		// close it down - might violate RFC?
-		_client.safeClose();
+		if(notModified) {
+			cache.countHit(true);
+			sendCachedResponse(cached);
+		} else {
+			copyStream(websiteEntity.getBody().openStream(), _client.out, bodyContentLength);
+		}
 		
+		// the client may now ask for the embedded entities on this connection,
+		// or has done so already; they are received in the background and
+		// each request waits in handleAlreadyPrefetchedEntity() for its entity
 		if(urlsOfEmbeddedEntities.size()>0) {
-			// keep the connection to the remote end open and wait for the prefetched blob;
-			// with toptobottom strategy the order of the prefetched elements is predefined
-			// just add them one after another. 
-			boolean waitCondition = true;
-			long lastReceivedTime = System.currentTimeMillis();
+			EmbeddedEntityReceiver receiver = new EmbeddedEntityReceiver(_server, serverChunkedInput, headerCodec,
+				urlsOfEmbeddedEntities, req, cache, cacheKey);
+			synchronized(_receivers) {
+				List loads = (List)_receivers.get(receiver.getPage());
+				if(loads == null) {
+					loads = new ArrayList(1);
+					_receivers.put(receiver.getPage(), loads);
+				}
+				loads.add(receiver);
+			}
+			if(isPageRequest())
+				_lastPage = receiver;
 			
-			_logger.finer(getName() + " waiting for embedded entities from remote end...");
-			while(waitCondition) {
-				if(serverChunkedInput.available()>0) {
-					lastReceivedTime = System.currentTimeMillis();
-					Response response = new Response();
-					
-					serverChunkedInput.startChunk();
-					
-					// is this the end? (denoted by a "0")
-					if(serverChunkedInput.chunkSize()==0 && serverChunkedInput.extensions()==null) {
-						_logger.finer(getName() +" all chunks have been received");
-						break;
-					}
-						
-					
-					extString = serverChunkedInput.extensions();
-					extensions = new ChunkExtensions(extString);
-					if(!extensions.getType().equals("prefetched"))
-						throw new HTTPException("500", "err.remoteenderror", "Chunk with type=prefetched expected, but received type "+extensions.getType()+" instead", false);
-					
-					doUncompressHeaders = (extensions.getHeaderEncoding() != null && extensions.getHeaderEncoding().equals("gzip"));
-					doUncompressBody = (extensions.getBodyEncoding() != null && extensions.getBodyEncoding().equals("gzip"));
-
-					headerLength=extensions.getHeaderLength();
-					buffer = new ByteArrayOutputStream(headerLength);
-					copyStream(serverChunkedInput, buffer, headerLength);
-					
-					if(doUncompressHeaders) {
-						buffer = uncompressHeadersGZIP(buffer);
-					}
-					
-					response.read(new ByteArrayInputStream(buffer.toByteArray()));
-				
-					if(!hasKnownTransferCoding(response))
-					{
-						_logger.logp(Level.WARNING, getName(), "handleRegular", "Unknown \"Transfer-Encoding\" from server: " + response.lastTransferCoding());
-						_server.safeClose();
-						throw new HTTPException("500", "err.servercoding", response.lastTransferCoding(), false);
-					}
-					
-					if(_msgLogger.isLoggable(Level.FINER))
-						logHTTPMessage(getName()+" prefetched response header received from remote end", response);
+			Thread thread = new Thread(receiver, getName() + "-Embedded");
+			thread.setDaemon(true);
+			thread.start();
+			_server = null; // the receiver closes it
+		}
+	}
 
-					_logger.finer(getName() + " recv response body from remote end");
-					websiteEntity = new PrefetchedEntity();
-					websiteEntity.setResponse(response);
-					ph = new PrefetchingHandler(_controller, getName(), websiteEntity, nextPrefetchingHandlerId++);
-					ph.setServerConnection(_server); // server connection has already been established by caller -> use it!
-					
-					if(doUncompressBody) {
-						ByteArrayOutputStream compressedBuffer = new ByteArrayOutputStream(serverChunkedInput.chunkLeft());
-						copyStream(serverChunkedInput, compressedBuffer, serverChunkedInput.chunkLeft());
-						ph.prefetchEntityBody(new ByteArrayInputStream(uncompressData(compressedBuffer.toByteArray())));
-					} else {
-						ph.prefetchEntityBody(serverChunkedInput);
-					}
-					
-					websiteEntity.setCompleted(true); // set completedAt timestamp so that it can be purged automatically later
+	/**
+	 * Returns true if the browser asks for a page rather than for
+	 * something embedded in one.
+	 */
+	private boolean isPageRequest() {
+		String accept = _reqHeaders.getValue("Accept");
+		return _req.getMethod().equals("GET") && accept != null && accept.indexOf("text/html") != -1;
+	}
 	
-					//_res.getHeaders().put("Content-Length", String.valueOf(websiteEntity.getBuffer().length));
-					//_res.getHeaders().put("Transfer-Encoding", null);
-					
-					// store response for later use
-					String url = (String)extensions.getUrl();
-					int urlIndex;
-					try {
-						urlIndex=Integer.parseInt(url);
-						url = (String)urlsOfEmbeddedEntities.get(urlIndex);
-					} catch(NumberFormatException e) { ; }
-					
-					websiteEntity.setURI(url);
-					
-					_logger.finer(getName() + " storing prefetched entity "+url);
-					
-					// TODO: is this multi-threading compatible? needs synchronized?
-					entityStore.store(url, websiteEntity);	
-				} else {
-					try { Thread.sleep(10); } catch (InterruptedException e) { }
-				}
-			
-				if( (System.currentTimeMillis()-lastReceivedTime) > MAX_WAIT_TIME) {
-					_logger.log(Level.WARNING, "Time limit for prefetching was reached; aborting.");
-					waitCondition=false;
-					_server.safeClose();
-					continue;
-				}
+	/**
+	 * If the browser asks for a page with the page it is on as referer,
+	 * it has followed a link away from it, unless the new page is a
+	 * frame of it; what is still on its way for the page it left is not
+	 * needed anymore. If the referer page is loaded more than once, in
+	 * several windows or tabs, the load over this connection is the one
+	 * left, and the others are only given up if there is just one.
+	 * 
+	 * A page requested without a referer has been typed in, picked from
+	 * the bookmarks or the history, or reloaded. Which window it is meant
+	 * for cannot be told, so the guess is the one whose page was loaded
+	 * last over the same connection, as browsers send the requests of a
+	 * window over the connections it has open already.
+	 */
+	private void leavePreviousPage(String url) {
+		if(!isPageRequest())
+			return;
+		
+		String referer = _reqHeaders.getValue("Referer");
+		if(referer == null) {
+			EmbeddedEntityReceiver previous = _lastPage;
+			_lastPage = null;
+			if(previous != null && !previous.embeds(url))
+				previous.cancel();
+			return;
+		}
+		
+		List left = new ArrayList(1);
+		synchronized(_receivers) {
+			List loads = (List)_receivers.get(URLSet.normalize(referer));
+			if(loads == null)
+				return;
+			if(loads.contains(_lastPage))
+				left.add(_lastPage);
+			else if(loads.size() == 1)
+				left.addAll(loads);
+		}
+		for(Iterator i = left.iterator(); i.hasNext();) {
+			EmbeddedEntityReceiver previous = (EmbeddedEntityReceiver)i.next();
+			if(!previous.embeds(url)) {
+				previous.cancel();
+				if(previous == _lastPage)
+					_lastPage = null;
 			}
-		} // end searchForEmbeddedElements
+		}
+	}
+	
+	/**
+	 * Counts the request in the page history: as a visit of a page if
+	 * the browser accepts HTML for it, else as a request for an entity
+	 * of the page it names as referer.
+	 */
+	private void recordRequest(PageHistory history, String url) {
+		if(history == null || !_req.getMethod().equals("GET"))
+			return;
 		
-		// close connection to remote end when the blob has been received completely
-		// TODO: does this work?
-		if(!_server.keepConnection() || _res.compareVersion(1, 1) < 0)
-			_server.safeClose();
+		if(isPageRequest()) {
+			history.pageRequested(url);
+		} else {
+			String referer = _reqHeaders.getValue("Referer");
+			if(referer != null)
+				history.entityRequested(URLSet.normalize(referer), url);
+		}
 	}
-
-	private void handleAlreadyPrefetchedEntity(String url) throws IOException {
-		_logger.finer(getName() + " client requested prefetched entity: "+_req.getURI().getSource());
+	
+	/**
+	 * Reads a <tt>URLLIST</tt> chunk, appends its URLs to <code>urls</code>
+	 * and makes the store hold back requests for them, joining announcements
+	 * for other pages that embed them as well.
+	 * 
+	 * @return the URLs read
+	 */
+	private List readURLList(ChunkedInputStream in, List urls) throws IOException {
+		PrefetchedEntityStore entityStore = PrefetchedEntityStore.getInstance();
+		List read;
+		if(URLListCodec.NAME.equals(in.frame().getBodyEncoding())) {
+			read = URLListCodec.decode(in.chunkStream());
+		} else {
+			// a remote end that does not know the compact encoding sends lines of text
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			InputStream urlList = BodyCodec.GZIP.decompress(in.chunkStream());
+			copyStream(urlList, buffer, -1);
+			urlList.close();
+			
+			read = new ArrayList();
+			StringTokenizer tok = new StringTokenizer(new String(buffer.toByteArray()), "\n");
+			while(tok.hasMoreTokens())
+				read.add(tok.nextToken());
+		}
 		
-		PrefetchedEntityStore entityStore = PrefetchedEntityStore.getInstance();  
+		for(ListIterator i = read.listIterator(); i.hasNext();) {
+			// the same URLs are kept in the store, the cache and the page history
+			String url = URLSet.normalize((String)i.next());
+			i.set(url);
+			entityStore.prepareForStorage(url);
+		}
+		synchronized(urls) {
+			urls.addAll(read);
+		}
+		return read;
+	}
+
+	/**
+	 * Receives an entity body that takes up the rest of the current chunk,
+	 * decompressing it on the fly if it has a body encoding.
+	 */
+	private void receiveBody(PrefetchingHandler ph, ChunkedInputStream in, String bodyEncoding)
+			throws IOException, HTTPException {
+		if(bodyEncoding == null) {
+			ph.prefetchEntityBody(in);
+			return;
+		}
 		
-		if(!entityStore.containsURL(url))
-			throw new IOException("Error - cannot find prefetched entity for URL "+url);
+		BodyCodec codec = BodyCodec.forName(bodyEncoding);
+		if(codec == null)
+			throw new HTTPException("500", "err.remoteenderror", "Unknown body encoding "+bodyEncoding, false);
 		
+		InputStream body = codec.decompress(in.chunkStream());
+		ph.prefetchEntityBody(body);
+		body.close();
+	}
+	
+	/**
+	 * Sends the prefetched entity for <code>url</code> to the client,
+	 * stalling the client as long as it has not been received yet.
+	 * 
+	 * @return false if there is no such entity in the store
+	 */
+	private boolean handleAlreadyPrefetchedEntity(String url) throws IOException {
+		PrefetchedEntityStore entityStore = PrefetchedEntityStore.getInstance();  
 		PrefetchedEntity pe;
 		
-		boolean waitCondition = true;
+		try {
+			pe = entityStore.awaitEntity(url, MAX_WAIT_TIME);
+		} catch(InterruptedException e) {
+			return false;
+		}
 		
-		long startTime = System.currentTimeMillis();
+		if(pe == null) {
+			if(entityStore.containsURL(url))
+				_logger.finer(getName() + " prefetching of entity has timed out; requesting it again: "+url);
+			return false;
+		}
 		
-		// stall the client as long as the prefetched entity has not been retrieved
-		do {
-			if((pe = (PrefetchedEntity) entityStore.getEntity(url)) != null) {
-				_logger.finer(getName() + " prefetched entity has been received; sending it to client");
-				pe.getResponse().getHeaders().put("Connection", "close"); // hang up because we can't deal with Keep-Alive so far
-				_client.write(pe.getResponse());
-				copyStream(new ByteArrayInputStream(pe.getBuffer()), _client.out, pe.getBuffer().length);
-				waitCondition=false;
-				_client.safeClose();
-			} else {
-				try { Thread.sleep(20); } catch(InterruptedException e) {}
-				if( (System.currentTimeMillis() - startTime) > MAX_WAIT_TIME) {
-					// TODO: and what are we going to do with the request now?
-					// send it towards the remote end again, tell the client, or what?
-					waitCondition=false;
-					_logger.finer(getName() + " prefetching of entity has timed out - what should I do?");
-					_client.safeClose();
-				}
-			}
-		} while(waitCondition);
+		_logger.finer(getName() + " client requested prefetched entity: "+url);
+		
+		// the response is shared by everyone who asks for the entity,
+		// and writing it adjusts its connection headers
+		Response response = pe.getResponse();
+		synchronized(response) {
+			_client.write(response);
+		}
+		if(!_req.getMethod().equals("HEAD"))
+			pe.getBody().writeTo(_client.out);
+		_client.out.flush();
+		return true;
 	}
 	
-	public void getServerConnection() throws IOException, HTTPException {
-		String hostname;
-		int port;
-		String key;
+	/**
+	 * Returns the gzipped list of the embedded entities the page had last
+	 * time and of <code>predictedURLs</code>, one per line: URLs of fresh
+	 * cached entities alone, which the remote end need not fetch, all
+	 * others followed by the tab separated values for <tt>If-None-Match</tt>
+	 * and <tt>If-Modified-Since</tt>, which are empty if there is no
+	 * cached entity. Entities on their way for another page are listed
+	 * like fresh ones, so they are not fetched twice.
+	 * 
+	 * @param cache may be null
+	 * @param freshURLs receives the URLs the remote end need not fetch
+	 * @return null if the page is not known
+	 */
+	private byte[] collectValidators(HttpCache cache, String pageURL, List predictedURLs, List freshURLs) throws IOException {
+		Set urls = new URLSet();
+		if(cache != null) {
+			synchronized(_embeddedURLs) {
+				List embedded = (List)_embeddedURLs.get(pageURL);
+				if(embedded != null)
+					urls.addAll(embedded);
+			}
+		}
+		urls.addAll(predictedURLs);
+		if(urls.isEmpty())
+			return null;
 		
-		String prefetchingRemoteEndHostname = _controller.getPrefetchingRemoteAddress().getHostName();
-		int prefetchingRemoteEndPort        = _controller.getPrefetchingRemoteAddress().getPort();
+		// on reload, the browser wants everything checked
+		boolean mayServeStored = HttpCache.mayServeStored(_req);
+		PrefetchedEntityStore entityStore = PrefetchedEntityStore.getInstance();
+		long now = System.currentTimeMillis();
+		StringBuffer lines = new StringBuffer();
 		
-		// TODO: forwarding not tested yet
-		if(_forwardHostKey == null)
-		{
-			hostname = prefetchingRemoteEndHostname;
-			port = prefetchingRemoteEndPort;
-			
-			StringBuffer tmp = new StringBuffer(hostname);
-			tmp.append(':').append(port);
-			
-			key = tmp.toString();
-		}
-		else
-		{
-			hostname = _controller.getForwardAddress().getHostName();
-			port = _controller.getForwardAddress().getPort();
-			
-			key = _forwardHostKey;
+		for(Iterator i = urls.iterator(); i.hasNext();) {
+			String url = (String)i.next();
+			CacheEntry entry = cache != null ? cache.lookup(url, _reqHeaders) : null;
 			
+			lines.append(url);
+			if(entry != null && mayServeStored && entry.isFresh(now)) {
+				freshURLs.add(url);
+			} else if(entityStore.isPending(url)) {
+				_logger.finest(getName() + " already receiving " + url + " for another page");
+				freshURLs.add(url);
+			} else {
+				lines.append('\t');
+				if(entry != null && entry.getETag() != null)
+					lines.append(entry.getETag());
+				lines.append('\t');
+				if(entry != null && entry.getLastModified() != null)
+					lines.append(entry.getLastModified());
+			}
+			lines.append('\n');
 		}
 		
-		// TODO implement persistent connectins like in abstractrequesthandler
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		OutputStream out = BodyCodec.GZIP.compress(compressed, BodyCodec.DEFAULT);
+		out.write(lines.toString().getBytes("ISO-8859-1"));
+		out.close();
+		return compressed.toByteArray();
+	}
+	
+	/**
+	 * Sends the validators as the chunked body of the request.
+	 */
+	private void sendValidators(byte[] validators) throws IOException {
+		ChunkedOutputStream out = new ChunkedOutputStream(_server.out);
+		FrameHeader frame = new FrameHeader(FrameHeader.VALIDATORS);
+		frame.setBodyEncoding(BodyCodec.GZIP.getName());
+		out.startChunk(validators.length, frame);
+		out.write(validators);
+		out.endChunk();
+		out.close();
+		_req.getTrailer().write(_server.out);
+		_server.setTimestamp();
+	}
+	
+	/**
+	 * Returns the cached entity for <code>url</code>, refreshed with the
+	 * headers of a <tt>304 Not Modified</tt> prefetched for it.
+	 * 
+	 * @return null if the entity is no longer cached
+	 */
+	private PrefetchedEntity revalidatedEntity(HttpCache cache, String url, Headers reqHeaders, Response notModified) throws IOException {
+		CacheEntry entry = cache != null ? cache.lookup(url, reqHeaders) : null;
+		if(entry == null)
+			return null;
+		
+		entry = cache.update(entry, notModified);
+		cache.countHit(true);
+		
+		PrefetchedEntity pe = new PrefetchedEntity();
+		entry.readResponse(pe.getResponse(), System.currentTimeMillis());
+		ByteBuffer body = entry.getBody();
+		byte[] data = new byte[body.remaining()];
+		body.get(data);
+		pe.write(data);
+		pe.setCompleted(true);
+		return pe;
+	}
+	
+	public void getServerConnection() throws IOException, HTTPException {
+		InetSocketAddress target = _controller.getForwardAddress() != null ?
+			_controller.getForwardAddress() : _controller.getPrefetchingRemoteAddress();
+		String hostname = target.getHostName();
+		int port = target.getPort();
 		
 		try
 		{
-			// experimental, DNS problem still happens
-			InetAddress address = InetAddress.getByName(hostname);
+			// page loads share the tunnels to the remote end; a remote end
+			// that does not know about them gets a connection per page load
+			TunnelPool pool = _controller.getTunnelPool();
+			Socket stream = pool.openStream();
 			
-			_server = new Connection(new Socket(address, port));
+			if(stream != null)
+				_server = new Connection(stream);
+			else
+				_server = pool.connect();
 			_server.setTimeout(SERVER_COMM_TIMEOUT);
-			
-			// send a CONNECT Request, if this connection is forwarded over a proxy
-			if(_forwardHostKey != null) {
-				Request connectRequest = new Request();
-				connectRequest.setMethod("CONNECT");
-				connectRequest.setVersion(1, 1);
-				connectRequest.setURI("https://"+prefetchingRemoteEndHostname+":"+prefetchingRemoteEndPort);
-				
-				Response connectResponse = new Response();
-				
-				_server.write(connectRequest);
-				_server.read(connectResponse);
-				
-				if(connectResponse.getStatusCode()!="200") {
-					throw new HTTPException("502", "err.forwarderrefusedremoteend", hostname, _req.hasBodyHeaders());
-				}
-			}
+		}
+		catch(ProtocolException e)
+		{
+			throw new HTTPException("502", "err.forwarderrefusedremoteend", hostname, _req.hasBodyHeaders());
 		}
 		catch(UnknownHostException e)
 		{
@@ -571,23 +769,17 @@ public class LocalPrefetchRequestHandler extends AbstractRequestHandler
 	}
 	
 	/**
-	 * compress data with GZIP
-	 * 
-	 * @param data
-	 * @throws IOException
+	 * Returns a message head as it was before the remote end encoded it.
 	 */
-	private byte[] uncompressData(byte [] data ) throws IOException {
-		ByteArrayInputStream compressedEntityHeader = new ByteArrayInputStream(data);
-		GZIPInputStream uncompressedInputStream= new GZIPInputStream(compressedEntityHeader);
-		
-		ByteArrayOutputStream result = new ByteArrayOutputStream();
-		byte[] buf = new byte[4096];
-		int read;
-		while( (read = uncompressedInputStream.read(buf)) != -1) {
-			result.write(buf,0,read);
-		}
-		uncompressedInputStream.close();
-		return result.toByteArray();
+	private byte[] uncompressHeaders(ByteArrayOutputStream entityHeader, String headerEncoding, HeaderCodec headerCodec)
+			throws IOException, HTTPException {
+		if(headerEncoding == null)
+			return entityHeader.toByteArray();
+		if(headerEncoding.equals(HeaderCodec.NAME))
+			return headerCodec.decompress(entityHeader.toByteArray());
+		if(headerEncoding.equals("gzip"))
+			return uncompressHeadersGZIP(entityHeader).toByteArray();
+		throw new HTTPException("500", "err.remoteenderror", "Unknown header encoding "+headerEncoding, false);
 	}
 
 	/**
@@ -598,17 +790,258 @@ public class LocalPrefetchRequestHandler extends AbstractRequestHandler
 	 * @throws IOException
 	 */
 	private ByteArrayOutputStream uncompressHeadersGZIP(ByteArrayOutputStream entityHeader) throws IOException {
-		ByteArrayInputStream compressedEntityHeader = new ByteArrayInputStream(entityHeader.toByteArray());
-		GZIPInputStream uncompressedInputStream= new GZIPInputStream(compressedEntityHeader);
+		InputStream uncompressedInputStream = BodyCodec.GZIP.decompress(new ByteArrayInputStream(entityHeader.toByteArray()));
 		ByteArrayOutputStream result = new ByteArrayOutputStream();
-		
-		byte[] buf = new byte[4096];
-		int read;
-		while( (read = uncompressedInputStream.read(buf)) != -1) {
-			result.write(buf,0,read);
-		}
+		copyStream(uncompressedInputStream, result, -1);
 		uncompressedInputStream.close();
 		return result;
 	}
+	
+	/**
+	 * Receives the embedded entities of a page from the remote end and puts
+	 * them into the store, while the handler goes on serving the client.
+	 * Owns the connection to the remote end and closes it when done.
+	 */
+	private final class EmbeddedEntityReceiver implements Runnable {
+		private final Connection _remote;
+		private final ChunkedInputStream _in;
+		private final HeaderCodec _headerCodec;
+		private final List _urls;
+		/** the same URLs, to look them up */
+		private final Set _embedded;
+		private final Request _pageRequest;
+		private final HttpCache _cache;
+		private final String _cacheKey;
+		
+		/** the announced URLs not stored or cancelled yet */
+		private final Set _pending;
+		
+		/** the normalized URL of the page */
+		private final String _page;
+		
+		private volatile boolean _cancelled;
+		
+		/** set once receiving has ended */
+		private volatile boolean _done;
+		
+		EmbeddedEntityReceiver(Connection remote, ChunkedInputStream in, HeaderCodec headerCodec,
+				List urls, Request pageRequest, HttpCache cache, String cacheKey) {
+			_remote = remote;
+			_in = in;
+			_headerCodec = headerCodec;
+			_urls = urls;
+			_embedded = new URLSet(urls);
+			_pageRequest = pageRequest;
+			_cache = cache;
+			_cacheKey = cacheKey;
+			_pending = new HashSet(urls);
+			_page = URLSet.normalize(pageRequest.getURI().getSource());
+		}
+		
+		String getPage() {
+			return _page;
+		}
+		
+		/**
+		 * Returns true if the page embeds <code>url</code>, including
+		 * its frames, which are announced but not prefetched.
+		 */
+		boolean embeds(String url) {
+			synchronized(_urls) {
+				return _embedded.contains(url);
+			}
+		}
+		
+		/**
+		 * Tells the remote end to stop prefetching for the page and
+		 * stops receiving; called when the browser has left the page.
+		 */
+		void cancel() {
+			if(_done)
+				return;
+			_logger.finer(getName() + " browser has left the page, cancelling prefetching");
+			_cancelled = true;
+			try {
+				ChunkedOutputStream out = new ChunkedOutputStream(_remote.out);
+				out.startChunk(0, new FrameHeader(FrameHeader.CANCEL));
+				out.flush();
+			} catch(IOException e) {
+				// the connection is closed anyway
+			}
+			_remote.safeClose();
+		}
+		
+		public void run() {
+			try {
+				receive();
+			} catch(HTTPException e) {
+				_logger.log(Level.WARNING, getName() + " prefetching failed: " + e.getMessage());
+			} catch(MessageFormatException e) {
+				_logger.log(Level.WARNING, getName() + " prefetching failed: " + e.getMessage());
+			} catch(IOException e) {
+				_logger.log(Level.FINE, getName() + " prefetching aborted: " + e.getMessage());
+			} finally {
+				_remote.safeClose();
+				_done = true;
+				synchronized(_receivers) {
+					List loads = (List)_receivers.get(_page);
+					if(loads != null && loads.remove(this) && loads.isEmpty())
+						_receivers.remove(_page);
+				}
+				
+				// clients still waiting for entities that did not arrive fetch them themselves
+				PrefetchedEntityStore entityStore = PrefetchedEntityStore.getInstance();
+				for(Iterator i = _pending.iterator(); i.hasNext();)
+					entityStore.cancel((String)i.next());
+			}
+		}
+		
+		/**
+		 * Remembers URLs the remote end found in stylesheets of the page as
+		 * embedded in it, so that they are revalidated with it next time.
+		 */
+		private void embeddedURLsFound(List urls) {
+			if(_cache == null)
+				return;
+			
+			synchronized(_embeddedURLs) {
+				List embedded = (List)_embeddedURLs.get(_cacheKey);
+				if(embedded == null)
+					return;
+				
+				// copied, the list may be read outside the lock
+				Set updated = new URLSet(embedded);
+				updated.addAll(urls);
+				_embeddedURLs.put(_cacheKey, new ArrayList(updated));
+			}
+		}
+		
+		/**
+		 * Returns the URL a chunk refers to.
+		 */
+		private String urlOf(FrameHeader frame) throws HTTPException {
+			int urlIndex = frame.getUrl();
+			if(urlIndex < 0 || urlIndex >= _urls.size())
+				throw new HTTPException("500", "err.remoteenderror", "Chunk refers to unknown URL "+urlIndex, false);
+			return (String)_urls.get(urlIndex);
+		}
+		
+		private void receive() throws IOException, HTTPException, MessageFormatException {
+			PrefetchedEntityStore entityStore = PrefetchedEntityStore.getInstance();
+			Headers reqHeaders = _pageRequest.getHeaders();
+			
+			// with toptobottom strategy the order of the prefetched elements is predefined
+			// just add them one after another. 
+			long lastReceivedTime = System.currentTimeMillis();
+			
+			_logger.finer(getName() + " waiting for embedded entities from remote end...");
+			while(true) {
+				if(_cancelled)
+					throw new IOException("Browser has left the page.");
+				
+				if(_in.available()>0) {
+					lastReceivedTime = System.currentTimeMillis();
+					Response response = new Response();
+					
+					_in.startChunk();
+					
+					// is this the end? (denoted by a "0")
+					FrameHeader frame = _in.frame();
+					if(_in.chunkSize()==0 && frame.getType()==FrameHeader.END) {
+						_logger.finer(getName() +" all chunks have been received");
+						return;
+					}
+					
+					if(frame.getType() == FrameHeader.URLLIST) {
+						// found in a stylesheet; the store now holds back requests for them
+						List found = readURLList(_in, _urls);
+						synchronized(_urls) {
+							_embedded.addAll(found);
+						}
+						_pending.addAll(found);
+						embeddedURLsFound(found);
+						continue;
+					}
+					
+					if(frame.getType() == FrameHeader.SKIPPED) {
+						// too large to prefetch, or a frame; the browser fetches it itself
+						String url = urlOf(frame);
+						ByteArrayOutputStream reason = new ByteArrayOutputStream();
+						copyStream(_in.chunkStream(), reason, -1);
+						_logger.finer(getName() + " remote end skipped " + url + ": " + reason.toString("ISO-8859-1"));
+						if(_pending.remove(url))
+							entityStore.cancel(url);
+						continue;
+					}
+					
+					if(frame.getType() != FrameHeader.PREFETCHED)
+						throw new HTTPException("500", "err.remoteenderror", "Chunk with type=prefetched expected, but received type "+frame.getTypeName()+" instead", false);
+					
+					// taken now: the frame describes the chunks of the body as they are read
+					String url = urlOf(frame);
+					
+					int headerLength=frame.getHeaderLength();
+					ByteArrayOutputStream buffer = new ByteArrayOutputStream(headerLength);
+					copyStream(_in, buffer, headerLength);
+					
+					response.read(new ByteArrayInputStream(uncompressHeaders(buffer, frame.getHeaderEncoding(), _headerCodec)));
+					
+					if(!hasKnownTransferCoding(response))
+					{
+						_logger.logp(Level.WARNING, getName(), "handleRegular", "Unknown \"Transfer-Encoding\" from server: " + response.lastTransferCoding());
+						throw new HTTPException("500", "err.servercoding", response.lastTransferCoding(), false);
+					}
+					
+					if(_msgLogger.isLoggable(Level.FINER))
+						logHTTPMessage(getName()+" prefetched response header received from remote end", response);
+					
+					_logger.finer(getName() + " recv response body from remote end");
+					PrefetchedEntity websiteEntity = new PrefetchedEntity();
+					websiteEntity.setResponse(response);
+					PrefetchingHandler ph = new PrefetchingHandler(_controller, getName(), websiteEntity, nextPrefetchingHandlerId++);
+					ph.setServerConnection(_remote); // server connection has already been established by caller -> use it!
+					
+					receiveBody(ph, _in, frame.getBodyEncoding());
+					
+					websiteEntity.setCompleted(true); // set completedAt timestamp so that it can be purged automatically later
+					
+					// store response for later use
+					if(response.getStatusCode().equals("304")) {
+						// revalidated with the validators we sent along with the page
+						websiteEntity = revalidatedEntity(_cache, url, reqHeaders, response);
+						if(websiteEntity == null) {
+							if(_pending.remove(url))
+								entityStore.cancel(url);
+							continue;
+						}
+					} else {
+						// the body has been received in full; the client gets it
+						// on a persistent connection, so say how long it is
+						response.setVersion(1, 1);
+						if(!response.isBodyless()) {
+							response.getHeaders().put("Transfer-Encoding", null);
+							response.getHeaders().put("Content-Length", Integer.toString(websiteEntity.size()));
+						}
+					}
+					
+					websiteEntity.setURI(url);
+					
+					_logger.finer(getName() + " storing prefetched entity "+url);
+					entityStore.store(url, websiteEntity);
+					_pending.remove(url);
+					
+					// embedded entities were requested with the headers of the page
+					if(_cache != null && _pageRequest.getMethod().equals("GET") && _cache.isCacheable(_pageRequest, response))
+						_cache.store(url, reqHeaders, response, websiteEntity.getBody().asReadOnlyBuffer());
+				} else {
+					try { Thread.sleep(10); } catch (InterruptedException e) { }
+				}
+				
+				if( (System.currentTimeMillis()-lastReceivedTime) > MAX_WAIT_TIME) {
+					_logger.log(Level.WARNING, "Time limit for prefetching was reached; aborting.");
+					return;
+				}
+			}
+		}
+	}
 }
-
@@ -24,6 +24,10 @@ import java.net.*;
 import java.util.*;
 import java.util.logging.*;
 
+import myproxy.cache.HttpCache;
+import myproxy.prefetching.PageHistory;
+import myproxy.prefetching.PrefetchedEntityStore;
+
 /**
  * The main controller. Listens for client connection,
  * creates the handlers and maintains the user settings
@@ -41,6 +45,9 @@ public final class MyProxy implements Runnable
 	private final Scheduler _scheduler;
 	private final ArrayList _supportedPrefetchStrategies;
 	private final InetSocketAddress _prefetchRemoteEndAddress;
+	private final HttpCache _cache;
+	private final TunnelPool _tunnelPool;
+	private final PageHistory _pageHistory;
 
 	private ServerSocket _socket;
 	private boolean _keepRunning;
@@ -147,7 +154,14 @@ public final class MyProxy implements Runnable
 			public void execute(Scheduler scheduler)
 			{
 				refreshAllRules();
-				writeAllRules();
+				writeAllHitCounts();
+				if(_prefetchRemoteEndAddress != null)
+					_logger.fine(PrefetchedEntityStore.getInstance().toString());
+				if(_cache != null)
+					_logger.fine(_cache.toString());
+				if(_pageHistory != null)
+					_pageHistory.save();
+				ServerConnectionPool.getInstance().closeIdle();
 				scheduler.queue(this, System.currentTimeMillis() + REFRESH_INTERVAL);
 			}
 		}, System.currentTimeMillis() + REFRESH_INTERVAL);
@@ -155,8 +169,9 @@ public final class MyProxy implements Runnable
 		scheduler.setDaemon(true);
 		scheduler.start();
 		
-		// specify available prefetching strategies; only a single one for now
+		// specify available prefetching strategies, the preferred one first
 		_supportedPrefetchStrategies = new ArrayList();
+		_supportedPrefetchStrategies.add("learned");
 		_supportedPrefetchStrategies.add("toptobottom");
 		
 		String prefetchRemoteEndAddress = getSettings("default").get("prefetching.remoteaddress",
@@ -194,6 +209,38 @@ public final class MyProxy implements Runnable
 		{
 			_prefetchRemoteEndAddress = null;	
 		}
+		
+		// the remote end of a prefetching pair fetches everything afresh
+		long cacheSize = Long.getLong("myproxy.cache.size", HttpCache.DEFAULT_SIZE).longValue();
+		HttpCache cache = null;
+		if(
+			cacheSize > 0 &&
+			getSettings("default").getInteger("prefetching.value", UserSettings.PREFETCHING_DISABLED) != UserSettings.PREFETCHING_REMOTEEND
+		)
+		{
+			try
+			{
+				cache = new HttpCache(new File(_configDir, "cache"), cacheSize);
+			}
+			catch(IOException e)
+			{
+				_logger.logp(Level.WARNING, "MyProxy", "MyProxy", "Cache disabled, cannot open: " + new File(_configDir, "cache"), e);
+			}
+		}
+		_cache = cache;
+		
+		if(_prefetchRemoteEndAddress != null)
+		{
+			_tunnelPool = new TunnelPool(this, Integer.getInteger("myproxy.tunnel.connections", TunnelPool.DEFAULT_TUNNELS).intValue());
+			_scheduler.queue(_tunnelPool, System.currentTimeMillis() + TunnelPool.INTERVAL);
+			_pageHistory = new PageHistory(new File(_configDir, "prefetch-history"),
+				Integer.getInteger("myproxy.prefetch.history.pages", 1000).intValue());
+		}
+		else
+		{
+			_tunnelPool = null;
+			_pageHistory = null;
+		}
 	}
 	
 	InetSocketAddress getLocalAddress()
@@ -211,6 +258,40 @@ public final class MyProxy implements Runnable
 		return _prefetchRemoteEndAddress;
 	}
 
+	/**
+	 * Returns the HTTP cache, or <tt>null</tt> if there is none.
+	 */
+	HttpCache getCache()
+	{
+		return _cache;
+	}
+
+	/**
+	 * Returns the tunnels to the prefetching remote end,
+	 * or <tt>null</tt> if this is not a local end.
+	 */
+	TunnelPool getTunnelPool()
+	{
+		return _tunnelPool;
+	}
+	
+	/**
+	 * Returns what the browser requested after which page,
+	 * or <tt>null</tt> if this is not a local end.
+	 */
+	PageHistory getPageHistory()
+	{
+		return _pageHistory;
+	}
+	
+	/**
+	 * Serves a stream that the local end opened in a <code>Tunnel</code>.
+	 */
+	void acceptStream(Socket stream) throws IOException
+	{
+		_handlerPool.getHandler().handleClient(stream);
+	}
+
 	UserSettings getSettings(String userID)
 	{
 		return (UserSettings)_userSettings.get(userID);
@@ -242,10 +323,20 @@ public final class MyProxy implements Runnable
 			((UserSettings)i.next()).refreshAllRules();
 	}
 	
+	private void writeAllHitCounts()
+	{
+		for(Iterator i = _userSettings.values().iterator(); i.hasNext();)
+			((UserSettings)i.next()).writeAllHitCounts();
+	}
+	
 	private void writeAllRules()
 	{
 		for(Iterator i = _userSettings.values().iterator(); i.hasNext();)
-			((UserSettings)i.next()).writeAllRules();
+		{
+			UserSettings settings = (UserSettings)i.next();
+			settings.writeAllRules();
+			settings.flush();
+		}
 	}
 
 	private byte[] readFile(File file)
@@ -293,11 +384,17 @@ public final class MyProxy implements Runnable
 			
 			_scheduler.halt();
 			_socket.close();
+			if(_tunnelPool != null)
+				_tunnelPool.closeAll();
 			
 			while(_handlerPool.activeCount() > 0)
 				Thread.yield();
 				
 			writeAllRules();
+			if(_pageHistory != null)
+				_pageHistory.save();
+			if(_cache != null)
+				_cache.close();
 		}
 		catch(IOException e)
 		{
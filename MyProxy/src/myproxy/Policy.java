@@ -0,0 +1,53 @@
+/**
+ * This file is part of MyProxy.
+ * 
+ * Copyright (C) 2002 Alexander Dietrich
+ * 
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy;
+
+/**
+ * The settings of a user that are consulted for every request,
+ * parsed once. A policy never changes; <code>UserSettings</code>
+ * makes a new one whenever its properties change, so handlers can
+ * read the fields without locking or parsing anything.
+ */
+final class Policy
+{
+	/** incremented with every change of the settings */
+	final int version;
+	
+	final int cookieLevel;
+	final int refererLevel;
+	final int fromLevel;
+	final String fromValue;
+	final int agentLevel;
+	final String agentValue;
+	final int prefetching;
+	
+	Policy(Settings settings, int version)
+	{
+		this.version = version;
+		
+		cookieLevel = settings.getInteger("cookie.level", UserSettings.COOKIE_DEFAULT);
+		refererLevel = settings.getInteger("referer.level", UserSettings.REFERER_DEFAULT);
+		fromLevel = settings.getInteger("from.level", UserSettings.FROM_DEFAULT);
+		fromValue = settings.get("from.value", UserSettings.FROM_DEFAULTFAKE);
+		agentLevel = settings.getInteger("agent.level", UserSettings.AGENT_DEFAULT);
+		agentValue = settings.get("agent.value", UserSettings.AGENT_DEFAULTFAKE);
+		prefetching = settings.getInteger("prefetching.value", UserSettings.PREFETCHING_DISABLED);
+	}
+}
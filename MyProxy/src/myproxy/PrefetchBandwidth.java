@@ -0,0 +1,171 @@
+package myproxy;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shares the bandwidth the remote end spends on prefetched entities
+ * between its users with token buckets, so that prefetching does not
+ * fill the link and hold up what the user asks for next.
+ *
+ * The rate is split evenly between the users prefetching at the time.
+ * Each of them has a bucket that fills at their share of the rate and
+ * holds at most <code>burst</code> bytes; prefetched data is only sent
+ * while there are tokens, and a write may take the bucket into debt
+ * that later writes wait for. Without a rate nothing is held back.
+ *
+ * The rate and burst can be set in KB with the system properties
+ * <tt>myproxy.prefetch.rate</tt> (per second) and
+ * <tt>myproxy.prefetch.burst</tt>.
+ *
+ * @author dh
+ */
+final class PrefetchBandwidth {
+	/** the most written between two looks at the bucket */
+	private static final int SLICE = 8 * 1024;
+
+	private static PrefetchBandwidth _instance = null;
+
+	/** in bytes per second, 0 for no limit */
+	private final long _rate;
+	private final long _burst;
+
+	/** users to their <code>Bucket</code> */
+	private final Map _buckets = new HashMap();
+
+	private static final class Bucket {
+		final Object user;
+		/** the prefetch responses being sent to the user */
+		int streams;
+		double tokens;
+		long time;
+
+		Bucket(Object user, long tokens) {
+			this.user = user;
+			this.tokens = tokens;
+			this.time = System.currentTimeMillis();
+		}
+	}
+
+	PrefetchBandwidth(long rate, long burst) {
+		_rate = rate;
+		_burst = Math.max(burst, SLICE);
+	}
+
+	static synchronized PrefetchBandwidth getInstance() {
+		if(_instance == null) {
+			_instance = new PrefetchBandwidth(
+				Integer.getInteger("myproxy.prefetch.rate", 0).intValue() * 1024L,
+				Integer.getInteger("myproxy.prefetch.burst", 64).intValue() * 1024L);
+		}
+		return _instance;
+	}
+
+	/**
+	 * Returns a stream to send prefetched data to <code>user</code> on,
+	 * which lets data through unthrottled until <code>setThrottled()</code>
+	 * is called. The stream has to be closed to give up the user's share,
+	 * which leaves <code>out</code> open.
+	 *
+	 * @param user anything that tells users apart, by <code>equals()</code>
+	 */
+	ThrottledOutputStream open(Object user, OutputStream out) {
+		Bucket bucket = null;
+		if(_rate > 0) {
+			synchronized(this) {
+				bucket = (Bucket)_buckets.get(user);
+				if(bucket == null) {
+					bucket = new Bucket(user, _burst);
+					_buckets.put(user, bucket);
+				}
+				bucket.streams++;
+			}
+		}
+		return new ThrottledOutputStream(out, bucket);
+	}
+
+	/**
+	 * Returns the number of users prefetching now, if there is a rate.
+	 */
+	synchronized int users() {
+		return _buckets.size();
+	}
+
+	private synchronized void close(Bucket bucket) {
+		if(--bucket.streams <= 0)
+			_buckets.remove(bucket.user);
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the user has tokens, then takes <code>length</code> of them.
+	 */
+	private synchronized void take(Bucket bucket, int length) throws InterruptedIOException {
+		while(true) {
+			long now = System.currentTimeMillis();
+			double share = (double)_rate / Math.max(_buckets.size(), 1);
+			bucket.tokens = Math.min(bucket.tokens + share * (now - bucket.time) / 1000, _burst);
+			bucket.time = now;
+
+			if(bucket.tokens > 0) {
+				bucket.tokens -= length;
+				return;
+			}
+
+			try {
+				wait(Math.max((long)(-bucket.tokens * 1000 / share), 1));
+			} catch(InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for prefetch bandwidth.");
+			}
+		}
+	}
+
+	/**
+	 * Holds back writes when its user's bucket is empty.
+	 */
+	final class ThrottledOutputStream extends FilterOutputStream {
+		private Bucket _bucket;
+		private boolean _throttled;
+
+		private ThrottledOutputStream(OutputStream out, Bucket bucket) {
+			super(out);
+			_bucket = bucket;
+			_throttled = false;
+		}
+
+		void setThrottled(boolean throttled) {
+			_throttled = throttled;
+		}
+
+		public void write(int b) throws IOException {
+			if(_throttled && _bucket != null)
+				take(_bucket, 1);
+			out.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				int slice = Math.min(len, SLICE);
+				if(_throttled && _bucket != null) {
+					// what has been written so far goes out before waiting
+					out.flush();
+					take(_bucket, slice);
+				}
+				out.write(b, off, slice);
+				off += slice;
+				len -= slice;
+			}
+		}
+
+		public void close() {
+			if(_bucket != null) {
+				PrefetchBandwidth.this.close(_bucket);
+				_bucket = null;
+			}
+		}
+	}
+}
@@ -14,6 +14,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import myproxy.httpio.Message;
+import myproxy.httpio.MessageFormatException;
+import myproxy.httpio.Response;
 import myproxy.prefetching.PrefetchedEntity;
 
 public class PrefetchingHandler implements Runnable {
@@ -36,7 +38,21 @@ public class PrefetchingHandler implements Runnable {
 
 	private PrefetchedEntity _pe;
 
-	private String _error;
+	private volatile String _error;
+
+	/** the longest body fetched, -1 for no limit */
+	private long _maxBodyLength = -1;
+
+	private boolean _tooLarge;
+
+	private volatile boolean _cancelled;
+
+	/** true if the server connection came from the pool */
+	private boolean _reused;
+
+	/** the server to connect to, taken before the request URI loses it */
+	private String _host;
+	private int _port;
 
 
 	public PrefetchingHandler(MyProxy controller, String handlerName, PrefetchedEntity p, int id) {
@@ -51,29 +67,29 @@ public class PrefetchingHandler implements Runnable {
 	public void run() {
 		_logger.finer(getName() + " startup: " +_pe.getRequest().getURI().getSource());
 
+		boolean reusable = false;
 		try {
-
-			getServerConnection();
+			_host = getOriginServer();
+			_port = getOriginPort();
 
 			// change Request-URI to "abs_path" format, unless we're forwarding
 			if(_controller.getForwardAddress() == null)
 				_pe.getRequest().setURI(_pe.getRequest().getURI().getPathSource());
 
-			try
-			{
-				_server.write(_pe.getRequest());
-			}
-			catch(SocketTimeoutException e)
-			{
-				throw new HTTPException("504", "err.servertimeout", null, _pe.getRequest().hasBodyHeaders());
-			}
-			
-			// TODO: have to send *request body* (for posts), if any!
+			removeBodyHeaders();
 
-			if(_msgLogger.isLoggable(Level.FINER))
-				logHTTPMessage(getName() + " request header sent to server "+_server.toString(), _pe.getRequest());
-
-			_server.read(_pe.getResponse());
+			try {
+				sendRequest(true);
+			} catch(IOException e) {
+				// a kept connection may have been closed by the server in the
+				// meantime; requests that can be repeated go on a new one
+				if(!_reused || _cancelled || !isIdempotent())
+					throw e;
+				_logger.finest(getName() + " kept connection failed, retrying: " + e);
+				_server.safeClose();
+				_server = null;
+				sendRequest(false);
+			}
 			
 			if(!hasKnownTransferCoding(_pe.getResponse()))
 			{
@@ -85,29 +101,149 @@ public class PrefetchingHandler implements Runnable {
 			if(_msgLogger.isLoggable(Level.FINER))
 				logHTTPMessage(getName() + " response headers received.", _pe.getResponse());
 
-			// handle body
-			prefetchEntityBody();
+			if(isTooLarge(_pe.getResponse())) {
+				// the browser fetches it itself if it needs it
+				_logger.finer(getName() + " not prefetching body of " + _pe.getResponse().getHeaders().getValue("Content-Length") + " bytes");
+				_tooLarge = true;
+			} else {
+				// handle body
+				prefetchEntityBody();
+				reusable = isReusable(_pe.getResponse());
+			}
 
 		} catch(Exception e) {
-			_logger.logp(Level.WARNING, getName(), "PrefetchingHandler.run", e.toString());
-
-			// TODO: have to handle this case somehow
-			_error = e.getMessage();
+			_error = e.getMessage() != null ? e.getMessage() : e.toString();
+			_pe.discardBody();
 			_pe.setCompleted(true);
 
-			e.printStackTrace();
+			if(_cancelled) {
+				_logger.finer(getName() + " cancelled: " + _pe.getRequest().getURI().getSource());
+			} else {
+				_logger.logp(Level.WARNING, getName(), "PrefetchingHandler.run", e.toString());
+
+				// TODO: have to handle this case somehow
+				e.printStackTrace();
+			}
 		}
 
 		_pe.setCompleted(true);
-		_server.safeClose();
+		if(_server != null) {
+			if(reusable && !_cancelled)
+				ServerConnectionPool.getInstance().put(_host, _port, _server);
+			else
+				_server.safeClose();
+		}
 		_logger.finer(getName() + " finished: " +_pe.getRequest().getURI().getSource());
 	}
 
+	/**
+	 * Sends the request and reads the head of the response.
+	 *
+	 * @param pooled <tt>true</tt> to take a kept connection if there is one
+	 */
+	private void sendRequest(boolean pooled) throws HTTPException, IOException, MessageFormatException
+	{
+		getServerConnection(pooled);
+		if(_cancelled)
+			throw new IOException("Prefetching cancelled.");
+
+		try
+		{
+			_server.write(_pe.getRequest());
+		}
+		catch(SocketTimeoutException e)
+		{
+			throw new HTTPException("504", "err.servertimeout", null, _pe.getRequest().hasBodyHeaders());
+		}
+
+		if(_msgLogger.isLoggable(Level.FINER))
+			logHTTPMessage(getName() + " request header sent to server "+_server.toString(), _pe.getRequest());
+
+		_server.read(_pe.getResponse());
+	}
+
+	/**
+	 * Removes the body headers from the request, which is sent without
+	 * a body: prefetches are GETs for what a page embeds, and the page
+	 * itself, which may have been POSTed, is never fetched by run().
+	 * The request takes the headers of the page request, though, which
+	 * may describe a body.
+	 */
+	private void removeBodyHeaders()
+	{
+		_pe.getRequest().getHeaders().put("Transfer-Encoding", null);
+		_pe.getRequest().getHeaders().put("Content-Length", null);
+		_pe.getRequest().getHeaders().put("Content-Type", null);
+	}
+
+	private boolean isIdempotent()
+	{
+		String method = _pe.getRequest().getMethod();
+		return method.equals("GET") || method.equals("HEAD");
+	}
+
+	/**
+	 * Returns true if the connection can take another request after
+	 * <code>response</code>: the server keeps it open, and the end of
+	 * the body was not marked by closing it.
+	 */
+	private boolean isReusable(Response response)
+	{
+		if(!_server.keepConnection() || response.compareVersion(1, 1) < 0)
+			return false;
+		return response.isBodyless() || _pe.getRequest().getMethod().equals("HEAD") ||
+			response.lastTransferCoding() != null || response.getHeaders().contains("Content-Length");
+	}
+
 
 	public PrefetchedEntity getEntity() {
 		return _pe;
 	}
 
+	/**
+	 * Makes the handler leave out bodies announced to be longer than
+	 * <code>length</code>; must be called before it runs.
+	 */
+	public void setMaxBodyLength(long length) {
+		_maxBodyLength = length;
+	}
+
+	/**
+	 * Gives up the fetch; closing the connection to the server ends
+	 * the thread reading from it.
+	 */
+	public void cancel() {
+		_cancelled = true;
+		Connection server = _server;
+		if(server != null)
+			server.safeClose();
+	}
+
+	/**
+	 * Returns true if the body has been left out for its length.
+	 */
+	public boolean isTooLarge() {
+		return _tooLarge;
+	}
+
+	/**
+	 * Returns true if fetching failed or was cancelled; what
+	 * had arrived of the body by then has been given up.
+	 */
+	public boolean isFailed() {
+		return _error != null;
+	}
+
+	private boolean isTooLarge(Message response) {
+		if(_maxBodyLength < 0 || !response.getHeaders().contains("Content-Length"))
+			return false;
+		try {
+			return Long.parseLong(response.getHeaders().getValue("Content-Length").trim()) > _maxBodyLength;
+		} catch(NumberFormatException e) {
+			return false;
+		}
+	}
+
 	
 	public void prefetchEntityBody() throws IOException, HTTPException
 	{
@@ -214,17 +350,20 @@ public class PrefetchingHandler implements Runnable {
 	}
 
 
-	private void getServerConnection() throws HTTPException, IOException
+	private void getServerConnection(boolean pooled) throws HTTPException, IOException
 	{
 		// if there is already a server connection, do not establish a new one
 		if(_server!=null)
 			return;
 
-		String hostname;
-		int port;
+		String hostname = _host;
+		int port = _port;
 
-		hostname = getOriginServer();
-		port = getOriginPort();
+		// another prefetch may have left one open
+		_server = pooled ? ServerConnectionPool.getInstance().get(hostname, port) : null;
+		_reused = _server != null;
+		if(_reused)
+			return;
 
 		try
 		{
@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.util.logging.Level;
 
+import myproxy.cache.CacheEntry;
+import myproxy.cache.CacheWriter;
+import myproxy.cache.HttpCache;
 import myproxy.httpio.MessageFormatException;
 import myproxy.httpio.URIFormatException;
 import myproxy.httpio.URIParser;
@@ -45,6 +48,41 @@ public class RegularRequestHandler extends AbstractRequestHandler implements Req
 		}
 				
 		
+		// remove/modify request headers as necessary, before the cache
+		// compares them with the ones a stored response varies on
+		touchRequestHeaders();
+		
+		HttpCache cache = _controller.getCache();
+		String cacheKey = null;
+		CacheEntry cached = null;
+		
+		if(cache != null)
+		{
+			cacheKey = getCacheKey();
+			
+			if(HttpCache.isCacheable(_req))
+			{
+				cached = cache.lookup(cacheKey, _reqHeaders);
+				
+				if(cached != null && HttpCache.mayServeStored(_req) && cached.isFresh(System.currentTimeMillis()))
+				{
+					cache.countHit(false);
+					sendCachedResponse(cached);
+					return;
+				}
+				
+				// revalidate a stale response, unless the client has its own validators
+				if(cached != null && cached.hasValidator() && !isConditionalRequest())
+					addValidators(cached);
+				else
+					cached = null;
+			}
+			else if(!_req.getMethod().equals("HEAD"))
+			{
+				cache.invalidate(cacheKey);
+			}
+		}
+		
 		getServerConnection();
 		
 		// adjust the Max-Forwards header, if necessary
@@ -64,9 +102,6 @@ public class RegularRequestHandler extends AbstractRequestHandler implements Req
 			}
 		}
 		
-		// remove/modify request headers as necessary
-		touchRequestHeaders();
-		
 		// keep original request URI (will be overwritten by next statements)
 		URIParser baseURI = new URIParser();
 		try {
@@ -154,7 +189,7 @@ public class RegularRequestHandler extends AbstractRequestHandler implements Req
 			
 		} else {*/
 			// loop over any remaining 1xx responses
-			do
+			while(true)
 			{
 				_server.read(_res);
 		
@@ -165,6 +200,9 @@ public class RegularRequestHandler extends AbstractRequestHandler implements Req
 					throw new HTTPException("500", "err.servercoding", _res.lastTransferCoding(), false);
 				}
 				
+				if(_res.getStatusCode().charAt(0) != '1')
+					break;
+				
 				// remove/modify response headers as necessary
 				touchResponseHeaders();
 				_client.write(_res);
@@ -172,10 +210,43 @@ public class RegularRequestHandler extends AbstractRequestHandler implements Req
 				if(_msgLogger.isLoggable(Level.FINER))
 					logHTTPMessage("Response header sent to client.", _res);
 			}
-			while(_res.getStatusCode().charAt(0) == '1');
 			
+			if(cached != null && _res.getStatusCode().equals("304"))
+			{
+				// the stored response is still valid
+				if(_msgLogger.isLoggable(Level.FINER))
+					logHTTPMessage("Cached response revalidated by server.", _res);
+				
+				boolean closeServer = !_server.keepConnection() || _res.compareVersion(1, 1) < 0;
+				cache.countHit(true);
+				sendCachedResponse(cache.update(cached, _res));
+				if(closeServer)
+					_server.safeClose();
+				return;
+			}
+			
+			CacheWriter cacheWriter = null;
+			if(cache != null && !_res.isBodyless())
+				cacheWriter = cache.newWriter(cacheKey, _req, _res);
+			
+			// remove/modify response headers as necessary
+			touchResponseHeaders();
+			_client.write(_res);
 
-			sendResponseBody();
+			if(_msgLogger.isLoggable(Level.FINER))
+				logHTTPMessage("Response header sent to client.", _res);
+
+			try
+			{
+				sendResponseBody(cacheWriter);
+				if(cacheWriter != null)
+					cacheWriter.commit();
+			}
+			finally
+			{
+				if(cacheWriter != null)
+					cacheWriter.close();
+			}
 			if(!_server.keepConnection() || _res.compareVersion(1, 1) < 0)
 				_server.safeClose();
 		}
@@ -3,25 +3,43 @@
  */
 package myproxy;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
 import java.util.logging.Level;
-import java.util.zip.GZIPOutputStream;
 
+import myproxy.httpio.ChunkedInputStream;
 import myproxy.httpio.ChunkedOutputStream;
+import myproxy.httpio.FrameHeader;
 import myproxy.httpio.MessageFormatException;
 import myproxy.httpio.Request;
 import myproxy.httpio.Response;
 import myproxy.httpio.URIFormatException;
 import myproxy.httpio.URIParser;
+import myproxy.prefetching.BodyCodec;
+import myproxy.prefetching.CompressionPolicy;
+import myproxy.prefetching.EmbeddedURL;
+import myproxy.prefetching.EntityBody;
+import myproxy.prefetching.HeaderCodec;
 import myproxy.prefetching.PrefetchUtils;
 import myproxy.prefetching.PrefetchedEntity;
 import myproxy.prefetching.PrefetchingParser;
+import myproxy.prefetching.StreamingScanner;
+import myproxy.prefetching.URLListCodec;
+import myproxy.prefetching.URLSet;
 
 /**
  * @author dh
@@ -30,6 +48,36 @@ import myproxy.prefetching.PrefetchingParser;
 public class RemotePrefetchRequestHandler extends AbstractRequestHandler implements RequestHandler {
 		
 	private int nextPrefetchingHandlerId;
+	
+	/** the most of a compressed body held back before it is sent as a chunk */
+	private static final int CHAIN_WINDOW = 32 * 1024;
+	
+	/** how deep stylesheets found in stylesheets are followed; 1 parses only those of the page */
+	private static final int MAX_CSS_DEPTH = Integer.getInteger("myproxy.prefetch.css.depth", 2).intValue();
+	
+	/** the most URLs prefetched for one page, including those found in its stylesheets */
+	private static final int MAX_PREFETCHED_URLS = Integer.getInteger("myproxy.prefetch.maxurls", 256).intValue();
+	
+	/** the most embedded entities of one page fetched at a time */
+	private static final int MAX_PARALLEL_FETCHES = Integer.getInteger("myproxy.prefetch.parallel", 8).intValue();
+	
+	/** bodies longer than this are sent once the shorter ones are through; 0 for no limit */
+	private static final long DEFER_SIZE = Integer.getInteger("myproxy.prefetch.defer", 256).intValue() * 1024L;
+	
+	/** bodies longer than this are left to the browser to fetch; 0 for no limit */
+	private static final long MAX_BODY_SIZE = Integer.getInteger("myproxy.prefetch.maxbody", 2048).intValue() * 1024L;
+	
+	/** URLs of embedded entities the local end has cached, to their validators; null for fresh ones */
+	private Map _validators;
+	
+	/** the prefetches running for all pages, shared where they can be */
+	private static final InFlightFetches _inFlight = new InFlightFetches();
+	
+	/** the prefetches this handler holds a reference to */
+	private final List _acquired = new ArrayList();
+	
+	/** the user's share of the bandwidth for prefetched entities */
+	private PrefetchBandwidth.ThrottledOutputStream _throttled;
 
 
 	public RemotePrefetchRequestHandler(MyProxy controller, Handler handler) {
@@ -47,6 +95,14 @@ public class RemotePrefetchRequestHandler extends AbstractRequestHandler impleme
 			return;
 		}
 		
+		// the local end may send what it has cached of the embedded entities
+		_validators = null;
+		if(_reqHeaders.contains("X-Prefetch-Validators")) {
+			_validators = readValidators();
+			_reqHeaders.put("X-Prefetch-Validators", null);
+			_reqHeaders.put("Transfer-Encoding", null);
+		}
+		
 		boolean expectContinue = false;
 		
 		// check for 100-continue
@@ -173,6 +229,16 @@ public class RemotePrefetchRequestHandler extends AbstractRequestHandler impleme
 			prefetchEntities(baseURI);
 		} catch (URIFormatException e) {
 			throw new MessageFormatException(e.getMessage());
+		} finally {
+			// whatever has not been sent is left to the other pages that want it
+			for(Iterator i = _acquired.iterator(); i.hasNext();)
+				_inFlight.release((PrefetchingHandler)i.next());
+			_acquired.clear();
+			
+			if(_throttled != null) {
+				_throttled.close();
+				_throttled = null;
+			}
 		}
 
 		/*
@@ -220,21 +286,46 @@ public class RemotePrefetchRequestHandler extends AbstractRequestHandler impleme
 	throws IOException, HTTPException, MessageFormatException, URIFormatException
 	{
 		PrefetchingHandler ph;
-		ByteArrayOutputStream headersOut;
-		ByteArrayInputStream headersIn;
 		Request req;
 		String prefetchStrategy = _reqHeaders.get("X-Accept-Prefetching");
-		boolean doCompressHeaders = prefetchStrategy.contains("HE=gzip");
-		boolean doCompressBody = prefetchStrategy.contains("BE=gzip");
+		// the local end may share one compression dictionary for all heads
+		HeaderCodec headerCodec = prefetchStrategy.contains("HE=" + HeaderCodec.NAME) ? new HeaderCodec() : null;
+		boolean doCompressHeaders = headerCodec == null && prefetchStrategy.contains("HE=gzip");
+		BodyCodec bodyCodec = BodyCodec.negotiate(prefetchStrategy);
+		boolean chained = prefetchStrategy.contains("chained");
+		boolean compactURLLists = prefetchStrategy.contains("UL=" + URLListCodec.NAME);
+		boolean binary = prefetchStrategy.contains("framing=" + FrameHeader.VERSION);
+		boolean learned = prefetchStrategy.contains("learned") && _controller.getSupportedPrefetchStrategies().contains("learned");
+		boolean skip = prefetchStrategy.contains("skip");
+		
+		// remove prefetching header, the embedded entities are requested without it
+		_reqHeaders.put("X-Accept-Prefetching", null);
 		
 		// send initial response for local end
 		Response initialResponse = new Response();
 		initialResponse.setVersion(1,1);
 		initialResponse.setStatus("200", "OK");
-		initialResponse.getHeaders().put("X-Prefetch-Strategy", "toptobottom");
+		initialResponse.getHeaders().put("X-Prefetch-Strategy", learned ? "learned" : "toptobottom");
+		if(binary)
+			initialResponse.getHeaders().put("X-Prefetch-Framing", String.valueOf(FrameHeader.VERSION));
 		_client.write(initialResponse);
 		
 		
+		// with the learned strategy, the entities the local end expects the page
+		// to need are fetched while the page itself is
+		Map early = new HashMap();
+		if(learned && _validators != null) {
+			for(Iterator i = _validators.entrySet().iterator(); i.hasNext() && early.size() < MAX_PARALLEL_FETCHES;) {
+				Map.Entry entry = (Map.Entry)i.next();
+				if(entry.getValue() == null)
+					continue;
+				PrefetchingHandler handler = startPrefetch((String)entry.getKey(), baseURI.getSource());
+				if(handler != null)
+					early.put(entry.getKey(), handler);
+			}
+		}
+		
+		
 		// prefetch the request itself
 		
 		// fetch headers from server
@@ -245,16 +336,8 @@ public class RemotePrefetchRequestHandler extends AbstractRequestHandler impleme
 		req = Request.createFromURI(baseURI.getSource());
 		
 		
-		// copy headers
-		headersOut  = new ByteArrayOutputStream();
-
-		// remove prefetching header
-		_reqHeaders.put("X-Accept-Prefetching", null);
-		
-		
-		_reqHeaders.write(headersOut);
-		headersIn = new ByteArrayInputStream(headersOut.toByteArray());
-		req.getHeaders().read(headersIn);
+		// copy headers, sharing them with the request
+		req.getHeaders().copyFrom(_reqHeaders);
 		
 		
 		// retrieve body from server
@@ -262,208 +345,593 @@ public class RemotePrefetchRequestHandler extends AbstractRequestHandler impleme
 		websiteEntity.setResponse(_res);
 		ph = new PrefetchingHandler(_controller, getName(), websiteEntity, nextPrefetchingHandlerId++);
 		ph.setServerConnection(_server); // server connection has already been established by caller -> use it!
-		ph.prefetchEntityBody();
+		
+		// what the page embeds is fetched as soon as it shows up in the body,
+		// while the rest of the body is still arriving
+		StreamingScanner scanner = null;
+		PrefetchingParser parser = parserFor(_res.getHeaders().getValue("Content-Type"));
+		if(parser != null && _res.getStatusCode().equals("200")) {
+			final Map started = early;
+			final String referer = baseURI.getSource();
+			scanner = StreamingScanner.create(parser, baseURI, _res.getHeaders().getValue("Content-Encoding"), new StreamingScanner.Listener() {
+				public void urlsFound(List embeddedURLs) throws IOException {
+					startEarly(embeddedURLs, started, referer);
+				}
+			});
+			websiteEntity.setObserver(scanner);
+		}
+		try {
+			ph.prefetchEntityBody();
+		} finally {
+			websiteEntity.setObserver(null);
+			if(scanner != null)
+				scanner.close();
+		}
 
 		// send main response back to client
-		byte[] responseBodyBuffer = websiteEntity.getBuffer();
-		
+		EntityBody responseBody = websiteEntity.getBody();
 		
-		_res.getHeaders().put("Content-Length", String.valueOf(responseBodyBuffer.length));
+		_res.getHeaders().put("Content-Length", String.valueOf(responseBody.size()));
 		_res.getHeaders().put("Transfer-Encoding", null);
 		
 		ByteArrayOutputStream entityHeader = new ByteArrayOutputStream();
 		_res.write(entityHeader);
-		
-		if(doCompressHeaders) {
-			entityHeader = compressHeadersGZIP(entityHeader);
-		}
+		entityHeader = compressHeaders(entityHeader, headerCodec, doCompressHeaders);
 		
 		int entityHeaderSize = entityHeader.size();
 		
 		_logger.finer(getName() + " sending response header and body to local end");
 
-		ChunkedOutputStream clientChunkedOutputStream = new ChunkedOutputStream(_client.out);
-		String extension;
-
-		extension="type=response; header-length="+entityHeaderSize;
-		if(doCompressHeaders) {
-			extension+=";HE=gzip";
-		}
+		// users of the remote end are told apart by their settings and local end
+		_throttled = PrefetchBandwidth.getInstance().open(Arrays.asList(new Object[] { _settings, _client.getPeer() }), _client.out);
+		ChunkedOutputStream clientChunkedOutputStream = new ChunkedOutputStream(_throttled, binary);
+		FrameHeader frame = new FrameHeader();
+		frame.set(FrameHeader.RESPONSE, -1, entityHeaderSize);
+		frame.setHeaderEncoding(headerEncoding(headerCodec, doCompressHeaders));
 
 		
 		String contentType=ph.getEntity().getResponse().getHeaders().getValue("Content-Type");
-		String contentEncoding=ph.getEntity().getResponse().getHeaders().getValue("Content-Encoding");
-		
-		// compress body if it is not compressed already
-		if(doCompressBody && contentType!=null && 
-				contentType.matches(".*?/html.*|.*?/xml.*|/.*?xhtml.*|.*?css.*|.*?x-javascript.*") &&
-				(contentEncoding == null || !contentEncoding.equals("gzip"))) {
-			extension+=";BE=gzip";
-			responseBodyBuffer = compressData(responseBodyBuffer);
-		}
 		
-		clientChunkedOutputStream.startChunk(entityHeaderSize+responseBodyBuffer.length, extension);
-		copyStream(new ByteArrayInputStream(entityHeader.toByteArray()), clientChunkedOutputStream, entityHeaderSize);
-		copyStream(new ByteArrayInputStream(responseBodyBuffer), clientChunkedOutputStream, responseBodyBuffer.length);
-		clientChunkedOutputStream.endChunk();
+		sendEntity(clientChunkedOutputStream, frame, entityHeader, _res, responseBody, bodyCodec, chained);
 		clientChunkedOutputStream.flush();
 		
 		if(!_server.keepConnection() || _res.compareVersion(1, 1) < 0)
 			_server.safeClose();
 		
 		// search for embedded objects
-		boolean searchForEmbeddedElements=false;
-		PrefetchingParser parser = null;
-		List urlsOfEmbeddedEntities = null;
-		
-		if(contentType!=null) {
-			if(contentType.matches(".*?/html.*|.*?/xml.*|/.*?xhtml.*")) {
-				searchForEmbeddedElements=true;
-				parser = PrefetchUtils.getHTMLParser();
+		// (bodyless responses, e.g. 304 Not Modified, have no content type)
+		boolean searchForEmbeddedElements = parser != null;
+		List embeddedURLs = null;
+		
+		if(contentType!=null && parser == null)
+			_logger.finest("NOTHING TO PREFETCH FOR "+ph.getEntity().getRequest().getFullURIPath());
+		
+		if(searchForEmbeddedElements) {
+			byte[] responseBodyBufferUncompressed = websiteEntity.getBufferUncompressed();
+			String responseText = new String(responseBodyBufferUncompressed);
+			embeddedURLs = parser.findEmbeddedURLs(baseURI, responseText);
+			
+			// what the browser requested after the page before but no parser
+			// finds, such as what scripts load, comes after the document
+			if(learned && _validators != null) {
+				Set found = new URLSet(EmbeddedURL.toURLs(embeddedURLs));
+				for(Iterator i = _validators.keySet().iterator(); i.hasNext();) {
+					String url = (String)i.next();
+					if(!found.contains(url))
+						embeddedURLs.add(new EmbeddedURL(url, EmbeddedURL.typeOf(url, EmbeddedURL.OTHER), responseText.length() + embeddedURLs.size()));
+				}
 			}
-			else if(contentType.matches((".*?/css.*"))) {
-				searchForEmbeddedElements=true;
-				parser = PrefetchUtils.getCSSParser();
+		} else if(_validators != null && _res.getStatusCode().equals("304")) {
+			// the page has not changed, so it still embeds what it did last time,
+			// in the order it was sent then
+			embeddedURLs = new ArrayList();
+			for(Iterator i = _validators.keySet().iterator(); i.hasNext();) {
+				String url = (String)i.next();
+				embeddedURLs.add(new EmbeddedURL(url, EmbeddedURL.typeOf(url, EmbeddedURL.OTHER), embeddedURLs.size()));
+			}
+		}
+		
+		// the local end has fresh copies of some entities, they need not be fetched;
+		// frames are listed so that the local end knows they belong to the page,
+		// and skipped right away, or left out if the local end cannot skip
+		if(embeddedURLs != null) {
+			for(Iterator i = embeddedURLs.iterator(); i.hasNext();) {
+				EmbeddedURL embeddedURL = (EmbeddedURL)i.next();
+				String url = embeddedURL.getURL();
+				if(embeddedURL.getType() == EmbeddedURL.FRAME) {
+					if(!skip)
+						i.remove();
+				} else if(_validators != null && _validators.containsKey(url) && _validators.get(url) == null) {
+					i.remove();
+				}
 			}
-			else
-				_logger.finest("NOTHING TO PREFETCH FOR "+ph.getEntity().getRequest().getFullURIPath());
-		} else {
-			// for bodyless responses (e.g. 304 Not Modified)
-			searchForEmbeddedElements=false;
 		}
 		
-		if(!searchForEmbeddedElements) {
+		if(embeddedURLs == null || embeddedURLs.isEmpty()) {
 			clientChunkedOutputStream.close();
 			return;
 		}
 		
+		// render-critical entities are fetched and sent first, and
+		// the least important ones beyond the limit are not prefetched
+		Collections.sort(embeddedURLs);
+		if(embeddedURLs.size() > MAX_PREFETCHED_URLS)
+			embeddedURLs.subList(MAX_PREFETCHED_URLS, embeddedURLs.size()).clear();
+		
 		
 		// send initial response to local end containing details about the prefetched URLs
-		if(searchForEmbeddedElements) {
-			byte[] responseBodyBufferUncompressed = websiteEntity.getBufferUncompressed();
-			String responseBody = new String(responseBodyBufferUncompressed);
-			urlsOfEmbeddedEntities = parser.findURLsInResponse(baseURI, responseBody);
+		if(embeddedURLs.size() > 0) {
+			List urlsOfEmbeddedEntities = EmbeddedURL.toURLs(embeddedURLs);
+			sendURLList(clientChunkedOutputStream, frame, urlsOfEmbeddedEntities, compactURLLists);
 			
-			Iterator urlIterator = urlsOfEmbeddedEntities.iterator();
-			String urllistResponseBody="";
-			while(urlIterator.hasNext()) {
-				urllistResponseBody+=urlIterator.next()+"\n";
+			// stylesheets are parsed as they arrive, and what they refer to is
+			// prefetched as well, if the local end takes further URL lists
+			boolean recursive = prefetchStrategy.contains("recursive") && MAX_CSS_DEPTH > 0;
+			Set seen = new URLSet(urlsOfEmbeddedEntities);
+			seen.add(baseURI.getSource());
+			if(_validators != null) {
+				for(Iterator i = _validators.entrySet().iterator(); i.hasNext();) {
+					Map.Entry entry = (Map.Entry)i.next();
+					if(entry.getValue() == null)
+						seen.add(entry.getKey());
+				}
 			}
 			
-			byte [] urllistByteArray = urllistResponseBody.getBytes();
-			
-			urllistByteArray = compressData(urllistByteArray);
-			
-			extension="type=urllist;BE=gzip";
-			clientChunkedOutputStream.startChunk(urllistByteArray.length, extension);
-			clientChunkedOutputStream.write(urllistByteArray);
-			clientChunkedOutputStream.endChunk();
-			clientChunkedOutputStream.flush();
-			
-			// create new PrefetchedEntities and start prefetching them
-			// for now, create 1 thread for each embedded entity -- this may consume a lot of resources, though
+			// create new PrefetchedEntities and start prefetching them, the most
+			// important first and at most MAX_PARALLEL_FETCHES at a time
 			
 			// TODO: use thread pool pattern properly
 			// cf. http://www.ibm.com/developerworks/library/j-jtp0730.html
 			// and http://en.wikipedia.org/wiki/Thread_pool_pattern
 			
-			ArrayList entityHandlers = new ArrayList();
-			urlIterator = urlsOfEmbeddedEntities.iterator();
-			
-			while(urlIterator.hasNext()) {
-				String uri = (String)urlIterator.next();
-				URIParser currentURI = new URIParser();
-				currentURI.parse(uri);
-				
-				// prepare request
-				Request r;
-				try {
-					r = Request.createFromURI(uri);
-					
-					// copy headers
-					headersOut = new ByteArrayOutputStream();
-					_reqHeaders.write(headersOut);
-					headersIn = new ByteArrayInputStream(headersOut.toByteArray());
-					r.getHeaders().read(headersIn);
-					r.getHeaders().put("Referer", baseURI.getSource());
-					r.getHeaders().put("Host", currentURI.getHost());
-					
-					PrefetchedEntity pe = new PrefetchedEntity(r);
-					
-					_logger.finer(getName() + " prefetching URL "+uri);
-	
-					ph = new PrefetchingHandler(_controller, getName(), pe, nextPrefetchingHandlerId++);
-					
-					entityHandlers.add(ph);
-					
-					new Thread(ph).start();
-				} catch (URIFormatException e) {
-					e.printStackTrace();
+			// the entities not sent yet, by priority; the local end
+			// refers to them by their index in the URL lists sent so far
+			List queue = new ArrayList();
+			int count = 0;
+			for(Iterator i = embeddedURLs.iterator(); i.hasNext();) {
+				EmbeddedEntity entity = new EmbeddedEntity((EmbeddedURL)i.next(), count++, 0, baseURI.getSource());
+				if(entity._url.getType() == EmbeddedURL.FRAME) {
+					sendSkipped(clientChunkedOutputStream, frame, entity._index, "frame");
+					continue;
 				}
+				entity._handler = (PrefetchingHandler)early.remove(entity._url.getURL());
+				queue.add(entity);
 			}
 			
-			// now wait until all prefetched objects have been retrieved
-			_logger.finer(getName() + " waiting for all prefetched pending requests to complete");
-			while(true) {
-				boolean allDone = true;
-				for(int i=0;i<entityHandlers.size();i++) {
-					if( ((PrefetchingHandler)entityHandlers.get(i)).isCompleted() == false)
-						allDone = false;
-				}
-				if(allDone) break;
-				try {
-					Thread.sleep(20);
-				} catch (InterruptedException e) {}
+			// what was started early but is beyond the limit is not needed
+			for(Iterator i = early.values().iterator(); i.hasNext();) {
+				PrefetchingHandler handler = (PrefetchingHandler)i.next();
+				if(_acquired.remove(handler))
+					_inFlight.release(handler);
 			}
 			
+			// the main response is through, what follows is held to the user's share
+			clientChunkedOutputStream.flush();
+			_throttled.setThrottled(true);
 			
-			// now all prefetched entities are available for transmission to the client
-			for(int i=0;i<entityHandlers.size();i++) {
-				PrefetchingHandler entityHandler = (PrefetchingHandler) entityHandlers.get(i);
-				_logger.finer(entityHandler.getName() + " sending reply to client");
+			_logger.finer(getName() + " sending prefetched entities as they complete");
+			while(!queue.isEmpty()) {
+				checkCancelled();
 				
-				entityHandler.getEntity().getResponse().getHeaders().put("Transfer-Encoding", null);
-				entityHandler.getEntity().getResponse().getHeaders().put("Content-Length", String.valueOf(entityHandler.getEntity().getBuffer().length));
-
-				entityHeader = new ByteArrayOutputStream();
-				entityHandler.getEntity().getResponse().write(entityHeader);
-
-
-				if(doCompressHeaders) {
-					entityHeader = compressHeadersGZIP(entityHeader);
+				int running = 0;
+				for(Iterator i = queue.iterator(); i.hasNext();) {
+					PrefetchingHandler handler = ((EmbeddedEntity)i.next())._handler;
+					if(handler != null && !handler.isCompleted())
+						running++;
 				}
 				
-				entityHeaderSize = entityHeader.size();
-
-				extension="type=prefetched; url="+i+"; header-length="+entityHeaderSize;
-				if(doCompressHeaders) {
-					extension+=";HE=gzip";
+				for(Iterator i = queue.iterator(); i.hasNext() && running < MAX_PARALLEL_FETCHES;) {
+					EmbeddedEntity entity = (EmbeddedEntity)i.next();
+					if(entity._handler != null)
+						continue;
+					
+					entity._handler = startPrefetch(entity._url.getURL(), entity._referer);
+					if(entity._handler == null)
+						i.remove();
+					else
+						running++;
 				}
 				
-				contentType=entityHandler.getEntity().getResponse().getHeaders().getValue("Content-Type");
-				contentEncoding=entityHandler.getEntity().getResponse().getHeaders().getValue("Content-Encoding");
+				// send the most important entity that has been retrieved, so that
+				// quick answers like 304 Not Modified do not wait for slow ones;
+				// long bodies wait until all others are through
+				EmbeddedEntity completed = null;
+				EmbeddedEntity deferred = null;
+				boolean waiting = false;
+				for(Iterator i = queue.iterator(); i.hasNext() && completed == null;) {
+					EmbeddedEntity entity = (EmbeddedEntity)i.next();
+					if(entity._handler == null || !entity._handler.isCompleted())
+						waiting = true;
+					else if(!isDeferred(entity._handler))
+						completed = entity;
+					else if(deferred == null)
+						deferred = entity;
+				}
+				if(completed == null && !waiting)
+					completed = deferred;
 				
-				// compress body if it is not compressed already
-				responseBodyBuffer = entityHandler.getEntity().getBuffer();
-				if(doCompressBody && contentType!=null && 
-						contentType.matches(".*?/html.*|.*?/xml.*|/.*?xhtml.*|.*?css.*|.*?x-javascript.*") &&
-						(contentEncoding == null || !contentEncoding.equals("gzip"))) {
-					extension+=";BE=gzip";
-					responseBodyBuffer = compressData(responseBodyBuffer);
+				if(completed == null) {
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {}
+					continue;
+				}
+				queue.remove(completed);
+				
+				if(isTooLarge(completed._handler) || completed._handler.isFailed()) {
+					_logger.finer(getName() + " leaving " + completed._url + " to the browser");
+					if(skip)
+						sendSkipped(clientChunkedOutputStream, frame, completed._index, completed._handler.isFailed() ? "failed" : "too large");
+					if(_acquired.remove(completed._handler))
+						_inFlight.release(completed._handler);
+					continue;
+				}
+				
+				// announce what a stylesheet refers to before the stylesheet itself,
+				// so that the local end holds back the browser's requests for it
+				List found = recursive ? findURLsInStylesheet(completed, seen, count) : null;
+				if(found != null && !found.isEmpty()) {
+					_logger.finer(getName() + " prefetching " + found.size() + " URLs found in " + completed._url);
+					sendURLList(clientChunkedOutputStream, frame, EmbeddedURL.toURLs(found), compactURLLists);
+					for(Iterator i = found.iterator(); i.hasNext();)
+						queue.add(new EmbeddedEntity((EmbeddedURL)i.next(), count++, completed._depth + 1, completed._url.getURL()));
+					Collections.sort(queue);
 				}
-
 				
-				clientChunkedOutputStream.startChunk(entityHeaderSize+responseBodyBuffer.length, extension);
-				copyStream(new ByteArrayInputStream(entityHeader.toByteArray()), clientChunkedOutputStream, entityHeaderSize);
-				copyStream(new ByteArrayInputStream(responseBodyBuffer), clientChunkedOutputStream, -1);
-				clientChunkedOutputStream.endChunk();
+				_logger.finer(completed._handler.getName() + " sending reply to client");
+				sendPrefetchedEntity(clientChunkedOutputStream, frame, completed._index, completed._handler.getEntity(), headerCodec, doCompressHeaders, bodyCodec, chained);
+				clientChunkedOutputStream.flush();
+				if(_acquired.remove(completed._handler))
+					_inFlight.release(completed._handler);
 			}
+			
 			clientChunkedOutputStream.close();
 			_logger.finer(getName() + " all prefetched entities have been sent.");
 		}
 		//_client.safeClose();
 	}
 
+	/**
+	 * Throws if the local end has cancelled prefetching because the
+	 * browser has left the page; whatever is still being fetched for
+	 * it and not for other pages is given up then.
+	 */
+	private void checkCancelled() throws IOException {
+		if(_client.in.available() == 0)
+			return;
+		
+		ChunkedInputStream in = new ChunkedInputStream(_client.in);
+		in.startChunk();
+		if(in.frame().getType() == FrameHeader.CANCEL)
+			throw new IOException("Prefetching cancelled by the local end.");
+		throw new IOException("Unexpected " + in.frame().getTypeName() + " chunk from the local end.");
+	}
+	
+	/**
+	 * Returns true if a prefetched body is long enough to be sent
+	 * after the others.
+	 */
+	private static boolean isDeferred(PrefetchingHandler handler) {
+		return DEFER_SIZE > 0 && handler.getEntity().size() > DEFER_SIZE;
+	}
+	
+	/**
+	 * Returns true if a prefetched body is too long to be sent at all.
+	 */
+	private static boolean isTooLarge(PrefetchingHandler handler) {
+		return handler.isTooLarge() || (MAX_BODY_SIZE > 0 && handler.getEntity().size() > MAX_BODY_SIZE);
+	}
+	
+	/**
+	 * Tells the local end that an entity it expects is not sent after
+	 * all, so that the browser fetches it itself.
+	 */
+	private void sendSkipped(ChunkedOutputStream out, FrameHeader frame, int index, String reason) throws IOException {
+		byte[] data = reason.getBytes("ISO-8859-1");
+		frame.set(FrameHeader.SKIPPED, index, 0);
+		out.startChunk(data.length, frame);
+		out.write(data);
+		out.endChunk();
+	}
+	
+	/**
+	 * Sends a list of URLs to prefetch as a <tt>URLLIST</tt> chunk. The
+	 * local end numbers the URLs of all lists of a page one after another.
+	 * 
+	 * @param compact whether the local end takes front-coded lists
+	 */
+	private void sendURLList(ChunkedOutputStream out, FrameHeader frame, List urls, boolean compact) throws IOException {
+		byte[] urllistByteArray;
+		frame.set(FrameHeader.URLLIST, -1, 0);
+		if(compact) {
+			urllistByteArray = URLListCodec.encode(urls);
+			frame.setBodyEncoding(URLListCodec.NAME);
+		} else {
+			StringBuffer urllist = new StringBuffer();
+			for(Iterator i = urls.iterator(); i.hasNext();)
+				urllist.append(i.next()).append('\n');
+			urllistByteArray = compressData(urllist.toString().getBytes());
+			frame.setBodyEncoding(BodyCodec.GZIP.getName());
+		}
+		
+		out.startChunk(urllistByteArray.length, frame);
+		out.write(urllistByteArray);
+		out.endChunk();
+		out.flush();
+	}
+	
+	/**
+	 * Returns the parser for documents of <code>contentType</code>,
+	 * or null if they embed nothing to prefetch.
+	 */
+	private static PrefetchingParser parserFor(String contentType) {
+		if(contentType == null)
+			return null;
+		if(contentType.matches(".*?/html.*|.*?/xml.*|/.*?xhtml.*"))
+			return PrefetchUtils.getHTMLParser();
+		if(contentType.matches(".*?/css.*"))
+			return PrefetchUtils.getCSSParser();
+		return null;
+	}
+	
+	/**
+	 * Starts prefetching entities found while the page is still arriving,
+	 * the most important first, unless the local end has them fresh or
+	 * <code>MAX_PARALLEL_FETCHES</code> have been started already.
+	 * 
+	 * @param started the handlers started so far by URL, receives the new ones
+	 */
+	private void startEarly(List embeddedURLs, Map started, String referer) throws IOException {
+		Collections.sort(embeddedURLs);
+		for(Iterator i = embeddedURLs.iterator(); i.hasNext() && started.size() < MAX_PARALLEL_FETCHES;) {
+			EmbeddedURL embeddedURL = (EmbeddedURL)i.next();
+			String url = embeddedURL.getURL();
+			if(embeddedURL.getType() == EmbeddedURL.FRAME || started.containsKey(url) || (_validators != null && _validators.containsKey(url) && _validators.get(url) == null))
+				continue;
+			
+			try {
+				PrefetchingHandler handler = startPrefetch(url, referer);
+				if(handler != null)
+					started.put(url, handler);
+			} catch(MessageFormatException e) {
+				_logger.finer(getName() + " cannot prefetch " + url + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Starts prefetching an embedded entity in a thread of its own, with
+	 * the headers of the page request and the validators of the local
+	 * end's copy, if any, unless the same request is being prefetched
+	 * for another page already; then that prefetch is shared.
+	 * 
+	 * @return null if <code>uri</code> is invalid
+	 */
+	private PrefetchingHandler startPrefetch(String uri, String referer) throws IOException, MessageFormatException {
+		try {
+			URIParser currentURI = new URIParser();
+			currentURI.parse(uri);
+			
+			// prepare request
+			Request r = Request.createFromURI(uri);
+			
+			// copy headers, sharing all but those that differ
+			r.getHeaders().copyFrom(_reqHeaders);
+			r.getHeaders().put("Referer", referer);
+			r.getHeaders().put("Host", currentURI.getHost());
+			
+			// the validators of the page do not apply, but those of the local end's copy do
+			r.getHeaders().put("If-None-Match", null);
+			r.getHeaders().put("If-Modified-Since", null);
+			String[] validator = _validators != null ? (String[])_validators.get(uri) : null;
+			if(validator != null) {
+				if(validator[0].length() > 0)
+					r.getHeaders().put("If-None-Match", validator[0]);
+				if(validator[1].length() > 0)
+					r.getHeaders().put("If-Modified-Since", validator[1]);
+			}
+			
+			PrefetchedEntity pe = new PrefetchedEntity(r);
+			PrefetchingHandler ph = new PrefetchingHandler(_controller, getName(), pe, nextPrefetchingHandlerId++);
+			if(MAX_BODY_SIZE > 0)
+				ph.setMaxBodyLength(MAX_BODY_SIZE);
+			
+			// another page may be fetching the same already
+			PrefetchingHandler running = _inFlight.acquire(r, ph);
+			_acquired.add(running);
+			if(running != ph) {
+				_logger.finer(getName() + " joining " + running.getName() + " prefetching URL "+uri);
+				return running;
+			}
+			
+			_logger.finer(getName() + " prefetching URL "+uri);
+			new Thread(ph).start();
+			return ph;
+		} catch (URIFormatException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns the URLs a prefetched stylesheet refers to that have not
+	 * been seen for this page yet, and adds them to <code>seen</code>.
+	 * Returns nothing for other entities, for stylesheets nested deeper
+	 * than <code>MAX_CSS_DEPTH</code>, and once the page has
+	 * <code>MAX_PREFETCHED_URLS</code>. The URLs are placed where the
+	 * stylesheet is in the page.
+	 * 
+	 * @param count the number of URLs prefetched for the page so far
+	 */
+	private List findURLsInStylesheet(EmbeddedEntity stylesheet, Set seen, int count) throws IOException {
+		List found = new ArrayList();
+		PrefetchedEntity entity = stylesheet._handler.getEntity();
+		Response response = entity.getResponse();
+		if(stylesheet._depth >= MAX_CSS_DEPTH || count >= MAX_PREFETCHED_URLS || response == null || !response.getStatusCode().equals("200"))
+			return found;
+		
+		String contentType = response.getHeaders().getValue("Content-Type");
+		if(contentType == null || !contentType.matches(".*?/css.*"))
+			return found;
+		
+		String url = stylesheet._url.getURL();
+		List urls;
+		try {
+			URIParser stylesheetURI = new URIParser();
+			stylesheetURI.parse(url);
+			urls = PrefetchUtils.getCSSParser().findEmbeddedURLs(stylesheetURI, new String(entity.getBufferUncompressed()));
+		} catch(URIFormatException e) {
+			return found;
+		} catch(MalformedURLException e) {
+			_logger.finest(getName() + " cannot parse stylesheet " + url + ": " + e.getMessage());
+			return found;
+		}
+		
+		for(Iterator i = urls.iterator(); i.hasNext() && count + found.size() < MAX_PREFETCHED_URLS;) {
+			EmbeddedURL embeddedURL = (EmbeddedURL)i.next();
+			if(seen.add(embeddedURL.getURL()))
+				found.add(new EmbeddedURL(embeddedURL.getURL(), embeddedURL.getType(), stylesheet._url.getOffset()));
+		}
+		return found;
+	}
+
+	/**
+	 * Sends a prefetched entity as a <tt>PREFETCHED</tt> chunk, referring
+	 * to its URL by its index in the URL list, and describing it in
+	 * <code>frame</code>.
+	 */
+	private void sendPrefetchedEntity(ChunkedOutputStream out, FrameHeader frame, int index, PrefetchedEntity entity,
+			HeaderCodec headerCodec, boolean doCompressHeaders, BodyCodec bodyCodec, boolean chained) throws IOException {
+		// the entity may be shared with other pages; only the first to send it
+		// changes its headers, the others just read them
+		Response response = entity.getResponse();
+		ByteArrayOutputStream entityHeader = new ByteArrayOutputStream();
+		synchronized(response) {
+			String length = String.valueOf(entity.size());
+			if(response.getHeaders().contains("Transfer-Encoding"))
+				response.getHeaders().put("Transfer-Encoding", null);
+			if(!length.equals(response.getHeaders().getValue("Content-Length")))
+				response.getHeaders().put("Content-Length", length);
+			response.write(entityHeader);
+		}
+		entityHeader = compressHeaders(entityHeader, headerCodec, doCompressHeaders);
+		
+		frame.set(FrameHeader.PREFETCHED, index, entityHeader.size());
+		frame.setHeaderEncoding(headerEncoding(headerCodec, doCompressHeaders));
+		
+		sendEntity(out, frame, entityHeader, entity.getResponse(), entity.getBody(), bodyCodec, chained);
+	}
+
+	/**
+	 * Reads the validators the local end sent as the request body: gzipped
+	 * lines with a URL and, separated by tabs, the values for
+	 * <tt>If-None-Match</tt> and <tt>If-Modified-Since</tt>. A URL
+	 * alone means the local end has a fresh copy.
+	 */
+	private Map readValidators() throws IOException {
+		Map validators = new LinkedHashMap();
+		ChunkedInputStream in = new ChunkedInputStream(_client.in);
+		
+		in.startChunk();
+		while(in.chunkSize() > 0) {
+			FrameHeader frame = in.frame();
+			InputStream data = in.chunkStream();
+			
+			if(frame.getType() == FrameHeader.VALIDATORS) {
+				if("gzip".equals(frame.getBodyEncoding()))
+					data = BodyCodec.GZIP.decompress(data);
+				
+				ByteArrayOutputStream lines = new ByteArrayOutputStream();
+				copyStream(data, lines, -1);
+				
+				StringTokenizer tok = new StringTokenizer(new String(lines.toByteArray(), "ISO-8859-1"), "\n");
+				while(tok.hasMoreTokens()) {
+					String line = tok.nextToken();
+					int first = line.indexOf('\t');
+					int second = first != -1 ? line.indexOf('\t', first + 1) : -1;
+					
+					if(first == -1)
+						validators.put(line, null);
+					else if(second != -1)
+						validators.put(line.substring(0, first), new String[] { line.substring(first + 1, second), line.substring(second + 1) });
+				}
+			}
+			data.close();
+			in.startChunk();
+		}
+		_req.getTrailer().read(_client.in);
+		
+		_logger.finer(getName() + " received validators for " + validators.size() + " embedded entities");
+		return validators;
+	}
+
+	/**
+	 * Sends headers and body of an entity, compressing the body with the
+	 * negotiated codec as hard as the <code>CompressionPolicy</code> says.
+	 * If the local end accepts chained chunks, the body is compressed as
+	 * it is sent, holding back no more than <code>CHAIN_WINDOW</code>
+	 * bytes; else it has to be compressed in full first, because the
+	 * length of the chunk has to be known before it is sent.
+	 */
+	private void sendEntity(ChunkedOutputStream out, FrameHeader frame, ByteArrayOutputStream entityHeader,
+			Response response, EntityBody body, BodyCodec codec, boolean chained) throws IOException {
+		int effort = codec != null ? CompressionPolicy.getEffort(response.getHeaders().getValue("Content-Type"),
+				response.getHeaders().getValue("Content-Encoding"), body) : CompressionPolicy.NONE;
+		
+		if(effort == CompressionPolicy.NONE) {
+			sendEntityChunk(out, frame, entityHeader, body);
+			return;
+		}
+		
+		if(chained) {
+			frame.setBodyEncoding(codec.getName());
+			OutputStream compressed = codec.compress(out.chainedStream(entityHeader.toByteArray(), frame, CHAIN_WINDOW), effort);
+			body.writeTo(compressed);
+			compressed.close();
+			return;
+		}
+		
+		EntityBody compressedBody = compressBody(body, codec, effort);
+		if(compressedBody != null) {
+			frame.setBodyEncoding(codec.getName());
+			sendEntityChunk(out, frame, entityHeader, compressedBody);
+		}
+		else
+			sendEntityChunk(out, frame, entityHeader, body);
+	}
+
+	/**
+	 * Sends headers and body of an entity as one chunk,
+	 * the body straight from its storage.
+	 */
+	private void sendEntityChunk(ChunkedOutputStream out, FrameHeader frame, ByteArrayOutputStream entityHeader,
+			EntityBody body) throws IOException {
+		out.startChunk(entityHeader.size()+body.size(), frame);
+		entityHeader.writeTo(out);
+		body.writeTo(out);
+		out.endChunk();
+	}
+
+	/**
+	 * Compresses an entity body as it is read from its storage, into
+	 * storage of its own.
+	 * 
+	 * @return null if the body is better sent as it is
+	 */
+	private EntityBody compressBody(EntityBody body, BodyCodec codec, int effort) throws IOException {
+		EntityBody compressedBody = new EntityBody(body.size() / 2);
+		OutputStream out = codec.compress(compressedBody.openOutputStream(), effort);
+		body.writeTo(out);
+		out.close();
+		compressedBody.seal();
+		
+		if(compressedBody.size() >= body.size()) {
+			_logger.finest(getName() + " " + codec + " did not shrink a body of " + body.size() + " bytes");
+			return null;
+		}
+		return compressedBody;
+	}
+
 	/**
 	 * compress data with GZIP
 	 * 
@@ -472,12 +940,40 @@ public class RemotePrefetchRequestHandler extends AbstractRequestHandler impleme
 	 */
 	private byte[] compressData(byte [] data ) throws IOException {
 		ByteArrayOutputStream compressedEntityHeader = new ByteArrayOutputStream();
-		GZIPOutputStream compressedOutputStream= new GZIPOutputStream(compressedEntityHeader);
+		OutputStream compressedOutputStream = BodyCodec.GZIP.compress(compressedEntityHeader, BodyCodec.DEFAULT);
 		compressedOutputStream.write(data);
 		compressedOutputStream.close();
 		return compressedEntityHeader.toByteArray();
 	}
 
+	/**
+	 * Compresses a message head with the shared dictionary if the local
+	 * end accepts it, else with GZIP if it accepts that.
+	 */
+	private ByteArrayOutputStream compressHeaders(ByteArrayOutputStream entityHeader,
+			HeaderCodec headerCodec, boolean doCompressHeaders) throws IOException {
+		if(headerCodec != null) {
+			byte[] compressed = headerCodec.compress(entityHeader.toByteArray());
+			ByteArrayOutputStream compressedEntityHeader = new ByteArrayOutputStream(compressed.length);
+			compressedEntityHeader.write(compressed);
+			return compressedEntityHeader;
+		}
+		if(doCompressHeaders)
+			return compressHeadersGZIP(entityHeader);
+		return entityHeader;
+	}
+	
+	/**
+	 * Returns the name of the header encoding, or null.
+	 */
+	private static String headerEncoding(HeaderCodec headerCodec, boolean doCompressHeaders) {
+		if(headerCodec != null)
+			return HeaderCodec.NAME;
+		if(doCompressHeaders)
+			return "gzip";
+		return null;
+	}
+
 	/**
 	 * compresses headers with GZIP
 	 * 
@@ -487,10 +983,37 @@ public class RemotePrefetchRequestHandler extends AbstractRequestHandler impleme
 	 */
 	private ByteArrayOutputStream compressHeadersGZIP(ByteArrayOutputStream entityHeader) throws IOException {
 		ByteArrayOutputStream compressedEntityHeader = new ByteArrayOutputStream();
-		GZIPOutputStream compressedOutputStream= new GZIPOutputStream(compressedEntityHeader);
-		compressedOutputStream.write(entityHeader.toByteArray());
+		OutputStream compressedOutputStream = BodyCodec.GZIP.compress(compressedEntityHeader, BodyCodec.DEFAULT);
+		entityHeader.writeTo(compressedOutputStream);
 		compressedOutputStream.close();
 		return compressedEntityHeader;
 		
 	}
+
+	/**
+	 * An embedded entity of the page, known to the local end by its
+	 * index in the URL lists. Ordered by the priority of its URL.
+	 */
+	private static final class EmbeddedEntity implements Comparable {
+		private final EmbeddedURL _url;
+		private final int _index;
+		/** 0 for entities of the page, 1 for those found in its stylesheets, and so on */
+		private final int _depth;
+		private final String _referer;
+		/** null until fetching has started */
+		private PrefetchingHandler _handler;
+		
+		EmbeddedEntity(EmbeddedURL url, int index, int depth, String referer) {
+			_url = url;
+			_index = index;
+			_depth = depth;
+			_referer = referer;
+		}
+		
+		public int compareTo(Object o) {
+			EmbeddedEntity other = (EmbeddedEntity)o;
+			int order = _url.compareTo(other._url);
+			return order != 0 ? order : _index - other._index;
+		}
+	}
 }
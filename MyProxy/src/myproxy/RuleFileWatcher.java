@@ -0,0 +1,157 @@
+/**
+ * This file is part of MyProxy.
+ * 
+ * Copyright (C) 2002 Alexander Dietrich
+ * 
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Watches the rule files of a user for changes made by other programs,
+ * and has <code>UserSettings</code> reload the ones that changed.
+ *
+ * The files are polled, since there is no portable change notification.
+ * A poll only checks modification time and length of a few files, so it
+ * can run often enough that changes are picked up well within a second.
+ * A file is reloaded once it stopped changing for one poll interval, so
+ * an editor that is still writing it is not interrupted.
+ *
+ * A directory counts as changed when a file in it is added, removed
+ * or changed.
+ */
+final class RuleFileWatcher implements Runnable
+{
+	private static final Logger _logger = Logger.getLogger("myproxy");
+	
+	public static final long INTERVAL = 500;
+	
+	private final UserSettings _settings;
+	private final List _entries;
+	private boolean _halt;
+	
+	RuleFileWatcher(UserSettings settings)
+	{
+		_settings = settings;
+		_entries = new Vector();
+		_halt = false;
+	}
+	
+	/**
+	 * Starts watching <code>file</code>, which need not exist yet.
+	 */
+	void watch(File file)
+	{
+		_entries.add(new Entry(file));
+	}
+	
+	synchronized void halt()
+	{
+		_halt = true;
+	}
+	
+	private synchronized boolean isHalted()
+	{
+		return _halt;
+	}
+	
+	public void run()
+	{
+		try
+		{
+			while(!isHalted())
+			{
+				Thread.sleep(INTERVAL);
+				poll();
+			}
+		}
+		catch(InterruptedException e)
+		{
+			_logger.logp(Level.WARNING, "RuleFileWatcher", "run", "Rule file watcher interrupted, exiting.", e);
+		}
+	}
+	
+	private void poll()
+	{
+		Object[] entries = _entries.toArray();
+		
+		for(int i = 0; i < entries.length; i++)
+		{
+			Entry entry = (Entry)entries[i];
+			long[] stamp = stamp(entry.file);
+			
+			if(stamp[0] != entry.stamp[0] || stamp[1] != entry.stamp[1])
+			{
+				// still changing, wait until it settles
+				entry.stamp = stamp;
+				entry.changed = true;
+			}
+			else if(entry.changed)
+			{
+				entry.changed = false;
+				try
+				{
+					_settings.fileChanged(entry.file);
+				}
+				catch(RuntimeException e)
+				{
+					_logger.logp(Level.CONFIG, "RuleFileWatcher", "poll", "Error reloading " + entry.file + ".", e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns modification time and length of a file, or the latest
+	 * modification time and a sum over the lengths and names of the
+	 * files in a directory.
+	 */
+	private static long[] stamp(File file)
+	{
+		if(!file.isDirectory())
+			return new long[] { file.lastModified(), file.length() };
+		
+		long modified = file.lastModified(), sum = 0;
+		File[] files = file.listFiles();
+		if(files != null)
+		{
+			for(int i = 0; i < files.length; i++)
+			{
+				modified = Math.max(modified, files[i].lastModified());
+				sum += files[i].length() * 31 + files[i].getName().hashCode();
+			}
+		}
+		
+		return new long[] { modified, sum };
+	}
+	
+	private static final class Entry
+	{
+		final File file;
+		long[] stamp;
+		boolean changed;
+		
+		Entry(File file)
+		{
+			this.file = file;
+			this.stamp = stamp(file);
+			this.changed = false;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * This file is part of MyProxy.
+ * 
+ * Copyright (C) 2002 Alexander Dietrich
+ * 
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+import java.util.zip.CRC32;
+
+/**
+ * Writes settings and rule files on its own thread, so that
+ * nobody handling a request ever waits for the disk.
+ *
+ * Files are replaced atomically: the new contents go to a temporary
+ * file, which is renamed over the old one. Contents that are identical
+ * to what was last written are not written again. Journals are only
+ * ever appended to, and are removed when their file is replaced.
+ */
+final class RuleWriter implements Runnable
+{
+	private static final Logger _logger = Logger.getLogger("myproxy");
+	
+	private final LinkedList _queue;
+	private final Map _checksums;
+	private boolean _busy, _halt;
+	
+	RuleWriter()
+	{
+		_queue = new LinkedList();
+		_checksums = new HashMap();
+		_busy = false;
+		_halt = false;
+	}
+	
+	/**
+	 * Queues replacing <code>file</code> with <code>data</code>.
+	 * Pending writes to the file or its journal are dropped,
+	 * because <code>data</code> already contains them.
+	 * 
+	 * @param journal the journal of <code>file</code>, or <tt>null</tt>
+	 */
+	synchronized void write(File file, File journal, byte[] data)
+	{
+		for(Iterator i = _queue.iterator(); i.hasNext();)
+		{
+			Operation op = (Operation)i.next();
+			if(op.file.equals(file) || op.file.equals(journal))
+				i.remove();
+		}
+		
+		_queue.add(new Operation(file, journal, data, false));
+		notifyAll();
+	}
+	
+	/**
+	 * Queues appending <code>data</code> to <code>journal</code>.
+	 */
+	synchronized void append(File journal, byte[] data)
+	{
+		_queue.add(new Operation(journal, null, data, true));
+		notifyAll();
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if a write of <code>file</code> is pending.
+	 */
+	synchronized boolean isPending(File file)
+	{
+		for(Iterator i = _queue.iterator(); i.hasNext();)
+		{
+			if(((Operation)i.next()).file.equals(file))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if <code>data</code> is what this writer
+	 * last wrote to <code>file</code>, so a change of the file on disk
+	 * was caused by the writer itself.
+	 */
+	boolean isLastWritten(File file, byte[] data)
+	{
+		Object checksum;
+		synchronized(_checksums)
+		{
+			checksum = _checksums.get(file);
+		}
+		
+		return checksum(data).equals(checksum);
+	}
+	
+	/**
+	 * Blocks until all queued operations have been carried out.
+	 */
+	synchronized void flush()
+	{
+		while(_queue.size() > 0 || _busy)
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Lets the thread exit after the queue has been worked off.
+	 */
+	synchronized void halt()
+	{
+		_halt = true;
+		notifyAll();
+	}
+	
+	public void run()
+	{
+		while(true)
+		{
+			Operation op;
+			
+			synchronized(this)
+			{
+				_busy = false;
+				notifyAll();
+				
+				while(_queue.size() == 0)
+				{
+					if(_halt)
+						return;
+					
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+						_logger.logp(Level.WARNING, "RuleWriter", "run", "Rule writer interrupted, exiting.", e);
+						return;
+					}
+				}
+				
+				op = (Operation)_queue.removeFirst();
+				_busy = true;
+			}
+			
+			try
+			{
+				if(op.append)
+					append(op);
+				else
+					replace(op);
+			}
+			catch(IOException e)
+			{
+				_logger.logp(Level.CONFIG, "RuleWriter", "run", "Error writing " + op.file + ", aborting.", e);
+			}
+		}
+	}
+	
+	private void replace(Operation op) throws IOException
+	{
+		Long checksum = checksum(op.data);
+		
+		if(isLastWritten(op.file, op.data) && op.file.exists() && (op.journal == null || !op.journal.exists()))
+			return;
+		
+		File temp = new File(op.file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try
+		{
+			out.write(op.data);
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+		
+		if(!temp.renameTo(op.file))
+		{
+			// some platforms refuse to rename onto an existing file
+			op.file.delete();
+			if(!temp.renameTo(op.file))
+				throw new IOException("Cannot rename " + temp + " to " + op.file);
+		}
+		
+		if(op.journal != null)
+			op.journal.delete();
+		
+		synchronized(_checksums)
+		{
+			_checksums.put(op.file, checksum);
+		}
+	}
+	
+	private static Long checksum(byte[] data)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return new Long(crc.getValue() ^ ((long)data.length << 32));
+	}
+	
+	private void append(Operation op) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(op.file, true);
+		try
+		{
+			out.write(op.data);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	private static final class Operation
+	{
+		final File file, journal;
+		final byte[] data;
+		final boolean append;
+		
+		Operation(File file, File journal, byte[] data, boolean append)
+		{
+			this.file = file;
+			this.journal = journal;
+			this.data = data;
+			this.append = append;
+		}
+	}
+}
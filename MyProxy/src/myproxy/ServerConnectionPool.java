@@ -0,0 +1,147 @@
+package myproxy;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the idle connections to servers that prefetching has left open,
+ * so that the entities of a page that come from one server are fetched
+ * over a few connections instead of one new connection each.
+ *
+ * A connection is given back once its response has been read in full and
+ * the server keeps it open; it is handed out again to any prefetch for
+ * the same server. At most <code>MAX_IDLE</code> connections are kept
+ * per server, none for longer than <code>IDLE_TIME</code>. Before a kept
+ * connection is handed out, it is checked to be still open, the way
+ * request handlers check theirs.
+ *
+ * @author dh
+ */
+final class ServerConnectionPool {
+	private static final Logger _logger = Logger.getLogger("myproxy.handler");
+
+	/** the most idle connections kept per server */
+	private static final int MAX_IDLE = Integer.getInteger("myproxy.prefetch.idle", 8).intValue();
+
+	/** how long a connection is kept idle, in milliseconds */
+	private static final long IDLE_TIME = 30 * 1000;
+
+	private static final ServerConnectionPool _instance = new ServerConnectionPool();
+
+	/** "host:port" to a list of idle connections, the most recently used last */
+	private final Map _idle = new HashMap();
+
+	private long _created, _reused;
+
+	static ServerConnectionPool getInstance() {
+		return _instance;
+	}
+
+	/**
+	 * Returns an idle connection to the server, or <tt>null</tt> if
+	 * there is none and the caller has to open one.
+	 */
+	Connection get(String host, int port) {
+		String key = key(host, port);
+		while(true) {
+			Connection server;
+			synchronized(this) {
+				LinkedList idle = (LinkedList)_idle.get(key);
+				if(idle == null || idle.isEmpty()) {
+					_created++;
+					return null;
+				}
+				server = (Connection)idle.removeLast();
+				if(idle.isEmpty())
+					_idle.remove(key);
+			}
+
+			if(server.getIdleTime() <= IDLE_TIME && isAlive(server)) {
+				synchronized(this) {
+					_reused++;
+				}
+				_logger.finest("Reusing prefetch connection to " + key);
+				return server;
+			}
+			server.safeClose();
+		}
+	}
+
+	/**
+	 * Takes back a connection whose response has been read in full,
+	 * to be used for the next request to the same server.
+	 */
+	void put(String host, int port, Connection server) {
+		String key = key(host, port);
+		Connection dropped = null;
+		synchronized(this) {
+			LinkedList idle = (LinkedList)_idle.get(key);
+			if(idle == null) {
+				idle = new LinkedList();
+				_idle.put(key, idle);
+			}
+			idle.addLast(server);
+			if(idle.size() > MAX_IDLE)
+				dropped = (Connection)idle.removeFirst();
+		}
+		if(dropped != null)
+			dropped.safeClose();
+	}
+
+	/**
+	 * Closes the connections that have been idle for too long.
+	 */
+	void closeIdle() {
+		LinkedList expired = new LinkedList();
+		synchronized(this) {
+			for(Iterator i = _idle.values().iterator(); i.hasNext();) {
+				LinkedList idle = (LinkedList)i.next();
+				for(Iterator j = idle.iterator(); j.hasNext();) {
+					Connection server = (Connection)j.next();
+					if(server.getIdleTime() > IDLE_TIME) {
+						j.remove();
+						expired.add(server);
+					}
+				}
+				if(idle.isEmpty())
+					i.remove();
+			}
+		}
+		for(Iterator i = expired.iterator(); i.hasNext();)
+			((Connection)i.next()).safeClose();
+	}
+
+	public synchronized String toString() {
+		return "ServerConnectionPool: " + _idle.size() + " servers, " + _created + " connections opened, " + _reused + " reused";
+	}
+
+	/**
+	 * Returns true if nothing has been received on the idle connection,
+	 * in particular not its end.
+	 */
+	private static boolean isAlive(Connection server) {
+		try {
+			int oldTimeout = server.getTimeout();
+			server.setTimeout(1);
+			try {
+				server.in.read();
+				// either the server has closed it, or there is some crap in the socket
+				return false;
+			} catch(SocketTimeoutException e) {
+				server.setTimeout(oldTimeout);
+				return true;
+			}
+		} catch(IOException e) {
+			return false;
+		}
+	}
+
+	private static String key(String host, int port) {
+		return host + ':' + port;
+	}
+}
@@ -38,6 +38,7 @@ public class Settings
 	public void set(String key, String value)
 	{
 		_props.setProperty(key, value);
+		changed();
 	}
 	
 	public String get(String key, String defaultValue)
@@ -48,6 +49,7 @@ public class Settings
 	public void setInteger(String key, int value)
 	{
 		_props.setProperty(key, Integer.toString(value));
+		changed();
 	}
 	
 	public int getInteger(String key, int defaultValue)
@@ -61,6 +63,14 @@ public class Settings
 	public void read(InputStream in) throws IOException
 	{
 		_props.load(in);
+		changed();
+	}
+	
+	/**
+	 * Called after any property was set or read.
+	 */
+	protected void changed()
+	{
 	}
 	
 	public void write(OutputStream out, String header) throws IOException
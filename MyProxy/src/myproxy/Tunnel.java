@@ -0,0 +1,547 @@
+/**
+ * This file is part of MyProxy.
+ * 
+ * Copyright (C) 2002 Alexander Dietrich
+ * 
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.logging.*;
+
+import myproxy.httpio.*;
+
+/**
+ * Carries any number of streams over one connection between the local
+ * and the remote end of a prefetching pair.
+ *
+ * Each stream looks like a <code>Socket</code> of its own, so handlers
+ * can use it through a <code>Connection</code> like any other socket.
+ * The bytes of all streams are sent in frames of at most
+ * <code>MAX_FRAME</code> bytes, each tagged with the ID of its stream:
+ *
+ * <pre>
+ *   stream ID (4 bytes) | type (1 byte) | length (4 bytes) | data
+ * </pre>
+ *
+ * An <tt>OPEN</tt> frame starts a stream, a <tt>CLOSE</tt> frame ends it
+ * in both directions. Every stream may have <code>WINDOW_SIZE</code>
+ * unread bytes in flight; the receiver
+ * hands out more with <tt>WINDOW</tt> frames, whose length field is the
+ * number of bytes read, so one slow reader cannot stall the others.
+ *
+ * The local end opens the streams in ascending ID order; the remote end
+ * accepts every stream with a higher ID and hands it to a <code>Handler</code>.
+ * A tunnel is set up by upgrading an ordinary HTTP connection, see
+ * <code>UPGRADE</code>.
+ */
+final class Tunnel implements Runnable
+{
+	/** the value of the <tt>Upgrade</tt> header that asks for a tunnel */
+	static final String UPGRADE = "myproxy-mux/1";
+	
+	private static final byte DATA   = 0;
+	private static final byte CLOSE  = 1;
+	private static final byte WINDOW = 2;
+	private static final byte OPEN   = 3;
+	
+	private static final int MAX_FRAME = 16 * 1024;
+	private static final int WINDOW_SIZE = 256 * 1024;
+	
+	private static final Logger _logger = Logger.getLogger("myproxy.handler");
+	
+	private final Connection _connection;
+	private final DataInputStream _in;
+	private final DataOutputStream _out;
+	private final MyProxy _acceptor;
+	private final Map _streams;
+	
+	private int _lastID;
+	private boolean _closed;
+	private long _idleSince;
+	
+	/**
+	 * @param acceptor the controller to hand accepted streams to,
+	 * or <tt>null</tt> on the end that opens the streams
+	 */
+	Tunnel(Connection connection, MyProxy acceptor)
+	{
+		_connection = connection;
+		_in = new DataInputStream(connection.in);
+		_out = new DataOutputStream(connection.out);
+		_acceptor = acceptor;
+		_streams = new HashMap();
+		_lastID = 0;
+		_closed = false;
+		_idleSince = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if <code>request</code> asks to be upgraded to a tunnel.
+	 */
+	static boolean isUpgrade(Request request)
+	{
+		String upgrade = request.getHeaders().getValue("Upgrade");
+		return upgrade != null && upgrade.equals(UPGRADE);
+	}
+	
+	/**
+	 * Returns the tunnel <code>socket</code> is a stream of,
+	 * or <tt>null</tt> if it is an ordinary socket.
+	 */
+	static Tunnel tunnelOf(Socket socket)
+	{
+		if(socket instanceof Stream)
+			return ((Stream)socket).getTunnel();
+		return null;
+	}
+	
+	/**
+	 * Opens a new stream.
+	 */
+	synchronized Socket openStream() throws IOException
+	{
+		if(_closed)
+			throw new SocketException("Tunnel closed.");
+		
+		Stream stream = new Stream(++_lastID);
+		_streams.put(new Integer(stream._id), stream);
+		
+		// announce it while holding the lock, so the IDs go out in order
+		writeFrame(stream._id, OPEN, null, 0, 0);
+		return stream;
+	}
+	
+	synchronized int streamCount()
+	{
+		return _streams.size();
+	}
+	
+	synchronized boolean isClosed()
+	{
+		return _closed;
+	}
+	
+	/**
+	 * Returns how long the tunnel has not carried any
+	 * streams, in milliseconds, or <tt>0</tt> if it does.
+	 */
+	synchronized long getIdleTime()
+	{
+		return _streams.isEmpty() ? System.currentTimeMillis() - _idleSince : 0;
+	}
+	
+	/**
+	 * Reads frames and passes them on to their streams,
+	 * until the connection breaks or is closed.
+	 */
+	public void run()
+	{
+		byte[] buffer = new byte[MAX_FRAME];
+		
+		try
+		{
+			while(true)
+			{
+				int id = _in.readInt();
+				byte type = _in.readByte();
+				int length = _in.readInt();
+				
+				if(type == DATA && (length < 0 || length > MAX_FRAME))
+					throw new IOException("Invalid frame length: " + length);
+				
+				Stream stream = getStream(id, type == OPEN);
+				
+				switch(type)
+				{
+					case DATA:
+						_in.readFully(buffer, 0, length);
+						if(stream != null)
+							stream.received(buffer, length);
+						break;
+					case CLOSE:
+						if(stream != null)
+							stream.closed();
+						break;
+					case WINDOW:
+						if(stream != null)
+							stream.credit(length);
+						break;
+					case OPEN:
+						break;
+					default:
+						throw new IOException("Invalid frame type: " + type);
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			if(!isClosed())
+				_logger.logp(Level.FINE, "Tunnel", "run", "Tunnel to " + _connection + " ended: " + e.getMessage());
+		}
+		finally
+		{
+			close();
+		}
+	}
+	
+	/**
+	 * Closes the connection and all streams on it.
+	 */
+	void close()
+	{
+		Stream[] streams;
+		
+		synchronized(this)
+		{
+			if(_closed)
+				return;
+			
+			_closed = true;
+			streams = (Stream[])_streams.values().toArray(new Stream[_streams.size()]);
+			_streams.clear();
+		}
+		
+		for(int i = 0; i < streams.length; i++)
+			streams[i].closed();
+		_connection.safeClose();
+	}
+	
+	public String toString()
+	{
+		return "Tunnel " + _connection;
+	}
+	
+	/**
+	 * Returns the stream for <code>id</code>, or accepts a new one if
+	 * <code>accept</code> is set and this end accepts streams. Frames
+	 * for streams that are already closed are dropped.
+	 */
+	private Stream getStream(int id, boolean accept)
+	{
+		Stream stream;
+		
+		synchronized(this)
+		{
+			stream = (Stream)_streams.get(new Integer(id));
+			if(stream != null || !accept || _acceptor == null || id <= _lastID)
+				return stream;
+			
+			_lastID = id;
+			stream = new Stream(id);
+			_streams.put(new Integer(id), stream);
+		}
+		
+		try
+		{
+			_acceptor.acceptStream(stream);
+		}
+		catch(IOException e)
+		{
+			_logger.logp(Level.WARNING, "Tunnel", "getStream", "Cannot accept stream: " + e.getMessage());
+			stream.close();
+			return null;
+		}
+		
+		return stream;
+	}
+	
+	private synchronized void remove(Stream stream)
+	{
+		_streams.remove(new Integer(stream._id));
+		if(_streams.isEmpty())
+			_idleSince = System.currentTimeMillis();
+	}
+	
+	private void writeFrame(int id, byte type, byte[] buf, int off, int len) throws IOException
+	{
+		synchronized(_out)
+		{
+			_out.writeInt(id);
+			_out.writeByte(type);
+			if(type == DATA)
+			{
+				_out.writeInt(len);
+				_out.write(buf, off, len);
+			}
+			else
+			{
+				// the length field carries the amount for WINDOW frames, and nothing for the others
+				_out.writeInt(off);
+			}
+			_out.flush();
+		}
+	}
+	
+	/**
+	 * One stream, as seen by its handler.
+	 */
+	private final class Stream extends Socket
+	{
+		private final int _id;
+		private final LinkedList _received;
+		private final InputStream _input;
+		private final OutputStream _output;
+		
+		private int _available, _unconfirmed, _credit, _timeout;
+		private boolean _streamClosed;
+		
+		Stream(int id)
+		{
+			_id = id;
+			_received = new LinkedList();
+			_available = 0;
+			_unconfirmed = 0;
+			_credit = WINDOW_SIZE;
+			_timeout = 0;
+			_streamClosed = false;
+			
+			_input = new InputStream() {
+				public int read() throws IOException
+				{
+					byte[] b = new byte[1];
+					return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+				}
+				
+				public int read(byte[] buf, int off, int len) throws IOException
+				{
+					return Stream.this.read(buf, off, len);
+				}
+				
+				public int available()
+				{
+					return Stream.this.available();
+				}
+			};
+			
+			_output = new OutputStream() {
+				public void write(int b) throws IOException
+				{
+					write(new byte[] { (byte)b }, 0, 1);
+				}
+				
+				public void write(byte[] buf, int off, int len) throws IOException
+				{
+					Stream.this.write(buf, off, len);
+				}
+			};
+		}
+		
+		public InputStream getInputStream()
+		{
+			return _input;
+		}
+		
+		/**
+		 * Streams are not connected themselves; they are
+		 * from the other end of the tunnel.
+		 */
+		public InetAddress getInetAddress()
+		{
+			return _connection.getRemoteAddress();
+		}
+		
+		public int getPort()
+		{
+			return _connection.getRemotePort();
+		}
+		
+		Tunnel getTunnel()
+		{
+			return Tunnel.this;
+		}
+		
+		public OutputStream getOutputStream()
+		{
+			return _output;
+		}
+		
+		public synchronized void setSoTimeout(int timeout)
+		{
+			_timeout = timeout;
+		}
+		
+		public synchronized int getSoTimeout()
+		{
+			return _timeout;
+		}
+		
+		public synchronized boolean isClosed()
+		{
+			return _streamClosed;
+		}
+		
+		public void close()
+		{
+			synchronized(this)
+			{
+				if(_streamClosed)
+					return;
+				_streamClosed = true;
+				notifyAll();
+			}
+			
+			remove(this);
+			try
+			{
+				writeFrame(_id, CLOSE, null, 0, 0);
+			}
+			catch(IOException e)
+			{
+				Tunnel.this.close();
+			}
+		}
+		
+		public String toString()
+		{
+			return "Stream " + _id + " on " + _connection;
+		}
+		
+		/**
+		 * The other end closed the stream, or the tunnel broke.
+		 */
+		synchronized void closed()
+		{
+			_streamClosed = true;
+			notifyAll();
+			remove(this);
+		}
+		
+		synchronized void received(byte[] buf, int len)
+		{
+			if(_streamClosed)
+				return;
+			
+			byte[] data = new byte[len];
+			System.arraycopy(buf, 0, data, 0, len);
+			_received.add(data);
+			_available += len;
+			notifyAll();
+		}
+		
+		synchronized void credit(int amount)
+		{
+			_credit += amount;
+			notifyAll();
+		}
+		
+		synchronized int available()
+		{
+			return _available;
+		}
+		
+		/**
+		 * Reads like a socket: blocks until some data is there, returns
+		 * <tt>-1</tt> once the stream is closed and everything is read.
+		 */
+		int read(byte[] buf, int off, int len) throws IOException
+		{
+			int read = 0, confirm = 0;
+			
+			synchronized(this)
+			{
+				long deadline = _timeout > 0 ? System.currentTimeMillis() + _timeout : 0;
+				
+				while(_available == 0 && !_streamClosed)
+				{
+					long wait = deadline > 0 ? deadline - System.currentTimeMillis() : 0;
+					if(deadline > 0 && wait <= 0)
+						throw new SocketTimeoutException("Read timed out");
+					
+					try
+					{
+						wait(wait);
+					}
+					catch(InterruptedException e)
+					{
+						throw new InterruptedIOException();
+					}
+				}
+				
+				if(_available == 0)
+					return len == 0 ? 0 : -1;
+				
+				while(read < len && !_received.isEmpty())
+				{
+					byte[] data = (byte[])_received.getFirst();
+					int n = Math.min(len - read, data.length);
+					System.arraycopy(data, 0, buf, off + read, n);
+					read += n;
+					
+					if(n == data.length)
+					{
+						_received.removeFirst();
+					}
+					else
+					{
+						byte[] rest = new byte[data.length - n];
+						System.arraycopy(data, n, rest, 0, rest.length);
+						_received.set(0, rest);
+					}
+				}
+				
+				_available -= read;
+				_unconfirmed += read;
+				if(_unconfirmed >= WINDOW_SIZE / 2)
+				{
+					confirm = _unconfirmed;
+					_unconfirmed = 0;
+				}
+			}
+			
+			// let the other end send more, outside the lock
+			if(confirm > 0 && !isClosed())
+				writeFrame(_id, WINDOW, null, confirm, 0);
+			
+			return read;
+		}
+		
+		void write(byte[] buf, int off, int len) throws IOException
+		{
+			while(len > 0)
+			{
+				int n;
+				
+				synchronized(this)
+				{
+					while(_credit == 0 && !_streamClosed)
+					{
+						try
+						{
+							wait();
+						}
+						catch(InterruptedException e)
+						{
+							throw new InterruptedIOException();
+						}
+					}
+					
+					if(_streamClosed)
+						throw new SocketException("Stream closed.");
+					
+					n = Math.min(Math.min(len, _credit), MAX_FRAME);
+					_credit -= n;
+				}
+				
+				writeFrame(_id, DATA, buf, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/**
+ * This file is part of MyProxy.
+ * 
+ * Copyright (C) 2002 Alexander Dietrich
+ * 
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.logging.*;
+
+import myproxy.httpio.*;
+
+/**
+ * Keeps a few long-lived <code>Tunnel</code>s from the local to the
+ * remote end of a prefetching pair, and opens a stream on one of them
+ * for every page load. Page loads thus skip connecting (and the
+ * <tt>CONNECT</tt> through a forwarding proxy) and share connections
+ * whose TCP windows are already open.
+ *
+ * Streams go to the tunnel with the fewest streams; another tunnel is
+ * only opened when all of them are busy. If the remote end does not
+ * understand the upgrade, every page load gets a connection of its own
+ * as before. Tunnels that have been idle for a while are closed.
+ */
+final class TunnelPool implements Scheduler.Task
+{
+	public static final long INTERVAL = 60 * 1000;
+	
+	public static final int DEFAULT_TUNNELS = 2;
+	
+	/** how long a tunnel without streams is kept open */
+	private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+	
+	/** a busy tunnel is shared until another one may be opened */
+	private static final int STREAMS_PER_TUNNEL = 8;
+	
+	private static final Logger _logger = Logger.getLogger("myproxy.handler");
+	
+	private final MyProxy _controller;
+	private final int _maxTunnels;
+	private final List _tunnels;
+	private int _connecting;
+	private boolean _unsupported;
+	
+	TunnelPool(MyProxy controller, int maxTunnels)
+	{
+		_controller = controller;
+		_maxTunnels = Math.max(1, maxTunnels);
+		_tunnels = new Vector();
+		_connecting = 0;
+		_unsupported = false;
+	}
+	
+	/**
+	 * Returns a new stream to the remote end, or <tt>null</tt>
+	 * if the remote end does not support tunnels.
+	 */
+	Socket openStream() throws IOException, MessageFormatException
+	{
+		synchronized(this)
+		{
+			if(_unsupported)
+				return null;
+			
+			Tunnel tunnel = leastBusy();
+			if(
+				tunnel != null &&
+				(tunnel.streamCount() < STREAMS_PER_TUNNEL || _tunnels.size() + _connecting >= _maxTunnels)
+			)
+				return tunnel.openStream();
+			
+			_connecting++;
+		}
+		
+		// connect without holding the lock, streams on other tunnels go on meanwhile
+		Tunnel tunnel = null;
+		try
+		{
+			tunnel = openTunnel();
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				_connecting--;
+				if(tunnel != null)
+					_tunnels.add(tunnel);
+			}
+		}
+		
+		return tunnel != null ? tunnel.openStream() : null;
+	}
+	
+	/**
+	 * Connects to the remote end, through the forwarding proxy if there is one.
+	 */
+	Connection connect() throws IOException, MessageFormatException
+	{
+		InetSocketAddress remote = _controller.getPrefetchingRemoteAddress();
+		InetSocketAddress target = _controller.getForwardAddress() != null ? _controller.getForwardAddress() : remote;
+		
+		// experimental, DNS problem still happens
+		InetAddress address = InetAddress.getByName(target.getHostName());
+		
+		Connection connection = new Connection(new Socket(address, target.getPort()));
+		connection.setTimeout(AbstractRequestHandler.SERVER_COMM_TIMEOUT);
+		
+		// send a CONNECT Request, if this connection is forwarded over a proxy
+		if(_controller.getForwardAddress() != null)
+		{
+			Request connectRequest = new Request();
+			connectRequest.setMethod("CONNECT");
+			connectRequest.setVersion(1, 1);
+			connectRequest.setURI("https://" + remote.getHostName() + ":" + remote.getPort());
+			
+			Response connectResponse = new Response();
+			
+			connection.write(connectRequest);
+			connection.read(connectResponse);
+			
+			if(!connectResponse.getStatusCode().equals("200"))
+			{
+				connection.safeClose();
+				throw new ProtocolException("Forwarding proxy refused to connect to the remote end.");
+			}
+		}
+		
+		return connection;
+	}
+	
+	/**
+	 * Closes tunnels that have been idle for too long.
+	 */
+	public synchronized void execute(Scheduler scheduler)
+	{
+		for(Iterator i = _tunnels.iterator(); i.hasNext();)
+		{
+			Tunnel tunnel = (Tunnel)i.next();
+			if(tunnel.getIdleTime() > IDLE_TIMEOUT)
+				tunnel.close();
+			if(tunnel.isClosed())
+				i.remove();
+		}
+		scheduler.queue(this, System.currentTimeMillis() + INTERVAL);
+	}
+	
+	synchronized void closeAll()
+	{
+		for(Iterator i = _tunnels.iterator(); i.hasNext();)
+			((Tunnel)i.next()).close();
+		_tunnels.clear();
+	}
+	
+	private Tunnel leastBusy()
+	{
+		Tunnel leastBusy = null;
+		
+		for(Iterator i = _tunnels.iterator(); i.hasNext();)
+		{
+			Tunnel tunnel = (Tunnel)i.next();
+			if(tunnel.isClosed())
+				i.remove();
+			else if(leastBusy == null || tunnel.streamCount() < leastBusy.streamCount())
+				leastBusy = tunnel;
+		}
+		
+		return leastBusy;
+	}
+	
+	/**
+	 * Upgrades a new connection to a tunnel, or returns
+	 * <tt>null</tt> if the remote end does not support it.
+	 */
+	private Tunnel openTunnel() throws IOException, MessageFormatException
+	{
+		InetSocketAddress remote = _controller.getPrefetchingRemoteAddress();
+		Connection connection = connect();
+		
+		Request upgrade = new Request();
+		upgrade.setMethod("GET");
+		upgrade.setVersion(1, 1);
+		upgrade.setURI("/");
+		upgrade.getHeaders().put("Host", remote.getHostName() + ":" + remote.getPort());
+		upgrade.getHeaders().put("Upgrade", Tunnel.UPGRADE);
+		upgrade.getHeaders().put("X-Accept-Prefetching", "toptobottom");
+		
+		Response response = new Response();
+		connection.write(upgrade);
+		connection.read(response);
+		
+		if(!response.getStatusCode().equals("101"))
+		{
+			_logger.logp(Level.INFO, "TunnelPool", "openTunnel", "Remote end does not support tunnels, using a connection per page.");
+			connection.safeClose();
+			synchronized(this)
+			{
+				_unsupported = true;
+			}
+			return null;
+		}
+		
+		// the tunnel is idle between page loads
+		connection.setTimeout(0);
+		
+		Tunnel tunnel = new Tunnel(connection, null);
+		Thread reader = new Thread(tunnel, "Tunnel-" + connection);
+		reader.setDaemon(true);
+		reader.start();
+		
+		_logger.logp(Level.FINE, "TunnelPool", "openTunnel", "Opened " + tunnel);
+		return tunnel;
+	}
+}
@@ -66,16 +66,33 @@ public final class UserSettings extends Settings
 	public static final String PREFETCHING_DEFAULT_REMOTE_ADDRESS = "";
 	
 	public static final int MAX_JARSIZE = 20;
+	
+	/** journals larger than this are merged into their rule file */
+	private static final long MAX_JOURNALSIZE = 64 * 1024;
+	/** all journals are merged into their rule files this often */
+	private static final long COMPACT_INTERVAL = 24 * 60 * 60 * 1000;
+	
+	private static final String[] RULE_FILES = {
+		"cookiehosts", "sessioncookies", "cookieexceptions", "blockrules", "blockexceptions", "imagerules"
+	};
 
 	private final File _configDir;
 	private final CookieHostList _cookieHosts, _sessionCookies, _cookieExceptions;
 	private final URLRuleList _blockRules, _blockExceptions, _imageRules;
 	private final List _inJar, _outJar;
 	private final UIHandler _uiHandler;
+	private final RuleWriter _writer;
+	private final RuleFileWatcher _watcher;
+	private volatile Policy _policy;
+	private long _lastCompaction;
 	
 	public UserSettings(File configDir, String username)
 	{
 		_configDir = new File(configDir, "users/" + username);
+		_writer = new RuleWriter();
+		_watcher = new RuleFileWatcher(this);
+		_policy = new Policy(this, 0);
+		_lastCompaction = System.currentTimeMillis();
 		_cookieHosts = new CookieHostList();
 		_sessionCookies = new CookieHostList();
 		_cookieExceptions = new CookieHostList();
@@ -92,6 +109,31 @@ public final class UserSettings extends Settings
 		readAllRules();
 
 		_uiHandler = new UIHandler(this, Locale.getDefault());
+		
+		Thread writer = new Thread(_writer, "RuleWriter-" + username);
+		writer.setDaemon(true);
+		writer.start();
+		
+		for(int i = 0; i < RULE_FILES.length; i++)
+			_watcher.watch(new File(_configDir, RULE_FILES[i]));
+		_watcher.watch(new File(_configDir, BlockListIndex.SOURCE_DIR));
+		
+		Thread watcher = new Thread(_watcher, "RuleFileWatcher-" + username);
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Returns the current settings, pre-parsed for request handling.
+	 */
+	Policy getPolicy()
+	{
+		return _policy;
+	}
+	
+	protected synchronized void changed()
+	{
+		_policy = new Policy(this, _policy.version + 1);
 	}
 
 	public CookieHostList cookieHosts()
@@ -201,10 +243,9 @@ public final class UserSettings extends Settings
 	{
 		try
 		{
-			File propsFile = new File(_configDir, "properties");
-			FileOutputStream out = new FileOutputStream(propsFile);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
 			write(out, "MyProxy Properties");
-			out.close();
+			_writer.write(new File(_configDir, "properties"), null, out.toByteArray());
 		}
 		catch(IOException e)
 		{
@@ -222,6 +263,37 @@ public final class UserSettings extends Settings
 		writeImageRules();
 	}
 	
+	/**
+	 * Saves the hit counts that changed since the last call, by
+	 * appending them to the journals of the rule files. Journals that
+	 * grew too large, or all of them once a day, are merged into
+	 * their rule files instead.
+	 */
+	public void writeAllHitCounts()
+	{
+		if(System.currentTimeMillis() - _lastCompaction > COMPACT_INTERVAL)
+		{
+			_lastCompaction = System.currentTimeMillis();
+			writeAllRules();
+			return;
+		}
+		
+		writeHitCounts(_cookieHosts, "cookiehosts", "cookie hosts");
+		writeHitCounts(_sessionCookies, "sessioncookies", "session cookies");
+		writeHitCounts(_cookieExceptions, "cookieexceptions", "cookie exceptions");
+		writeHitCounts(_blockRules, "blockrules", "block rules");
+		writeHitCounts(_blockExceptions, "blockexceptions", "block exceptions");
+		writeHitCounts(_imageRules, "imagerules", "image rules");
+	}
+	
+	/**
+	 * Blocks until all queued writes have reached the disk.
+	 */
+	public void flush()
+	{
+		_writer.flush();
+	}
+	
 	public void refreshAllRules()
 	{
 		_cookieHosts.refreshOrder();
@@ -231,165 +303,256 @@ public final class UserSettings extends Settings
 		_imageRules.refreshOrder();
 	}
 	
+	/**
+	 * Called by the <code>RuleFileWatcher</code> when a rule file or
+	 * the block list directory was changed by another program.
+	 */
+	void fileChanged(File file)
+	{
+		String name = file.getName();
+		
+		if(name.equals("cookiehosts"))
+			reloadRuleList(_cookieHosts, name, "cookie hosts");
+		else if(name.equals("sessioncookies"))
+			reloadRuleList(_sessionCookies, name, "session cookies");
+		else if(name.equals("cookieexceptions"))
+			reloadRuleList(_cookieExceptions, name, "cookie exceptions");
+		else if(name.equals("blockrules"))
+			reloadRuleList(_blockRules, name, "block rules");
+		else if(name.equals("blockexceptions"))
+			reloadRuleList(_blockExceptions, name, "block exceptions");
+		else if(name.equals("imagerules"))
+			reloadRuleList(_imageRules, name, "image rules");
+		else if(name.equals(BlockListIndex.SOURCE_DIR))
+			readBlockListIndex();
+	}
+	
 	public void readCookieHosts()
 	{
-		readCookieHostList(_cookieHosts, "cookiehosts", "cookie hosts");
+		readRuleList(_cookieHosts, "cookiehosts", "cookie hosts");
 	}
 
 	public void readSessionCookies()
 	{
-		readCookieHostList(_sessionCookies, "sessioncookies", "session cookies");
+		readRuleList(_sessionCookies, "sessioncookies", "session cookies");
 	}
 	
 	public void readCookieExceptions()
 	{
-		readCookieHostList(_cookieExceptions, "cookieexceptions", "cookie exceptions");
+		readRuleList(_cookieExceptions, "cookieexceptions", "cookie exceptions");
 	}
 	
 	public void writeCookieHosts()
 	{
-		writeCookieHostList(_cookieHosts, "cookiehosts", "cookie hosts");
+		writeRuleList(_cookieHosts, "cookiehosts", "cookie hosts");
 	}
 
 	public void writeSessionCookies()
 	{
-		writeCookieHostList(_sessionCookies, "sessioncookies", "session cookies");
+		writeRuleList(_sessionCookies, "sessioncookies", "session cookies");
 	}
 
 	public void writeCookieExceptions()
 	{
-		writeCookieHostList(_cookieExceptions, "cookieexceptions", "cookie exceptions");
+		writeRuleList(_cookieExceptions, "cookieexceptions", "cookie exceptions");
 	}
 	
-	private void readCookieHostList(CookieHostList list, String filename, String description)
+	public void readBlockRules()
 	{
-		synchronized(list)
+		readRuleList(_blockRules, "blockrules", "block rules");
+		readBlockListIndex();
+	}
+	
+	/**
+	 * Maps the compiled block list index into memory, after recompiling
+	 * it if one of the lists in the <tt>blocklists</tt> directory changed.
+	 */
+	public void readBlockListIndex()
+	{
+		File indexFile = new File(_configDir, BlockListIndex.INDEX_FILE);
+		File[] sources = BlockListIndex.listSources(new File(_configDir, BlockListIndex.SOURCE_DIR));
+		
+		try
 		{
-			try
-			{
-				File listFile = new File(_configDir, filename);
-				if(listFile.exists())
-				{
-					FileInputStream in = new FileInputStream(listFile);
-					list.read(in);
-					in.close();
-				}
-			}
-			catch(IOException e)
+			if(sources != null && BlockListIndex.isOutdated(indexFile, sources))
 			{
+				long start = System.currentTimeMillis();
+				int count = BlockListIndex.compile(sources, indexFile);
 				_logger.logp(
 					Level.CONFIG,
 					"UserSettings",
-					"readCookieHostList",
-					"Error reading " + description + ", aborting.",
-					e
+					"readBlockListIndex",
+					"Compiled " + count + " block list entries in " + (System.currentTimeMillis() - start) + " ms."
 				);
 			}
-		}
-	}
-	
-	private void writeCookieHostList(CookieHostList list, String filename, String description)
-	{
-		synchronized(list)
-		{
-			try
+			
+			if(indexFile.exists())
 			{
-				File listFile = new File(_configDir, filename);
-				FileOutputStream out = new FileOutputStream(listFile);
-				list.write(out);
-				out.close();
+				BlockListIndex index = BlockListIndex.load(indexFile);
+				_blockRules.setIndex(index, "Block list (" + index.size() + " entries)");
 			}
-			catch(IOException e)
+			else
 			{
-				_logger.logp(
-					Level.CONFIG,
-					"UserSettings",
-					"writeCookieHostList",
-					"Error writing " + description + ", aborting.",
-					e
-				);
+				_blockRules.setIndex(null, null);
 			}
 		}
-	}
-
-	public void readBlockRules()
-	{
-		readURLRules(_blockRules, "blockrules", "block rules");
+		catch(IOException e)
+		{
+			_logger.logp(
+				Level.CONFIG,
+				"UserSettings",
+				"readBlockListIndex",
+				"Error reading block list index, aborting.",
+				e
+			);
+		}
 	}
 
 	public void readBlockExceptions()
 	{
-		readURLRules(_blockExceptions, "blockexceptions", "block exceptions");
+		readRuleList(_blockExceptions, "blockexceptions", "block exceptions");
 	}
 
 	public void readImageRules()
 	{
-		readURLRules(_imageRules, "imagerules", "image rules");
+		readRuleList(_imageRules, "imagerules", "image rules");
 	}
 
 	public void writeBlockRules()
 	{
-		writeURLRules(_blockRules, "blockrules", "block rules");
+		writeRuleList(_blockRules, "blockrules", "block rules");
 	}
 
 	public void writeBlockExceptions()
 	{
-		writeURLRules(_blockExceptions, "blockexceptions", "block exceptions");
+		writeRuleList(_blockExceptions, "blockexceptions", "block exceptions");
 	}
 
 	public void writeImageRules()
 	{
-		writeURLRules(_imageRules, "imagerules", "image rules");
+		writeRuleList(_imageRules, "imagerules", "image rules");
 	}
 
-	private void readURLRules(URLRuleList rules, String filename, String description)
+	private void readRuleList(RuleList list, String filename, String description)
+	{
+		loadRuleList(list, filename, description, false);
+	}
+	
+	/**
+	 * Reads a rule file again after it changed on disk, unless
+	 * the change was just our own <code>RuleWriter</code> at work.
+	 */
+	private void reloadRuleList(RuleList list, String filename, String description)
+	{
+		if(_writer.isPending(new File(_configDir, filename)))
+			return;
+		
+		loadRuleList(list, filename, description, true);
+	}
+	
+	private void loadRuleList(RuleList list, String filename, String description, boolean reload)
 	{
-		synchronized(rules)
+		try
 		{
-			try
-			{
-				File rulesFile = new File(_configDir, filename);
-				if(rulesFile.exists())
-				{
-					FileInputStream in = new FileInputStream(rulesFile);
-					rules.read(in);
-					in.close();
-				}
-			}
-			catch(IOException e)
-			{
-				_logger.logp(
-					Level.CONFIG,
-					"UserSettings",
-					"readURLRules",
-					"Error reading " + description + ", aborting.",
-					e
-				);
-			}
+			File listFile = new File(_configDir, filename);
+			byte[] data = listFile.exists() ? readFile(listFile) : new byte[0];
+			if(reload && _writer.isLastWritten(listFile, data))
+				return;
+			
+			File journalFile = journalFile(filename);
+			byte[] journal = journalFile.exists() ? readFile(journalFile) : null;
+			
+			list.load(
+				new ByteArrayInputStream(data),
+				journal != null ? new ByteArrayInputStream(journal) : null
+			);
+			
+			if(reload)
+				_logger.logp(Level.CONFIG, "UserSettings", "loadRuleList", "Reloaded " + description + ".");
+		}
+		catch(IOException e)
+		{
+			_logger.logp(
+				Level.CONFIG,
+				"UserSettings",
+				"loadRuleList",
+				"Error reading " + description + ", aborting.",
+				e
+			);
+		}
+	}
+	
+	private static byte[] readFile(File file) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int)file.length());
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+			return out.toByteArray();
+		}
+		finally
+		{
+			in.close();
 		}
 	}
 
-	private void writeURLRules(URLRuleList rules, String filename, String description)
+	/**
+	 * Takes a snapshot of the list and queues it for writing,
+	 * the list is only locked while the snapshot is taken.
+	 */
+	private void writeRuleList(RuleList list, String filename, String description)
 	{
-		synchronized(rules)
+		try
 		{
-			try
-			{
-				File rulesFile = new File(_configDir, filename);
-				FileOutputStream out = new FileOutputStream(rulesFile);
-				rules.write(out);
-				out.close();
-			}
-			catch(IOException e)
-			{
-				_logger.logp(
-					Level.CONFIG,
-					"UserSettings",
-					"writeURLRules",
-					"Error writing " + description + ", aborting.",
-					e
-				);
-			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			list.write(out);
+			_writer.write(new File(_configDir, filename), journalFile(filename), out.toByteArray());
 		}
+		catch(IOException e)
+		{
+			_logger.logp(
+				Level.CONFIG,
+				"UserSettings",
+				"writeRuleList",
+				"Error writing " + description + ", aborting.",
+				e
+			);
+		}
+	}
+	
+	private void writeHitCounts(RuleList list, String filename, String description)
+	{
+		File journalFile = journalFile(filename);
+		if(journalFile.length() > MAX_JOURNALSIZE && !_writer.isPending(journalFile))
+		{
+			writeRuleList(list, filename, description);
+			return;
+		}
+		
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if(list.writeHitCounts(out))
+				_writer.append(journalFile, out.toByteArray());
+		}
+		catch(IOException e)
+		{
+			_logger.logp(
+				Level.CONFIG,
+				"UserSettings",
+				"writeHitCounts",
+				"Error writing " + description + " hit counts, aborting.",
+				e
+			);
+		}
+	}
+	
+	private File journalFile(String filename)
+	{
+		return new File(_configDir, filename + ".journal");
 	}
 }
@@ -0,0 +1,286 @@
+/**
+ * This file is part of MyProxy.
+ * 
+ * Copyright (C) 2002 Alexander Dietrich
+ * 
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy.cache;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import myproxy.HTTPDate;
+import myproxy.httpio.*;
+
+/**
+ * A response in the <code>HttpCache</code>. Entries never change;
+ * revalidating one stores a new entry in its place.
+ */
+public final class CacheEntry
+{
+	private final SegmentStore.Record _record;
+	
+	private final String _etag, _lastModified;
+	private final String[] _varyNames;
+	private final String[] _varyValues;
+	private final long _initialAge, _lifetime;
+	
+	CacheEntry(SegmentStore.Record record) throws IOException
+	{
+		_record = record;
+		
+		Response response = getStoredResponse();
+		Headers headers = response.getHeaders();
+		
+		_etag = headers.getValue("ETag");
+		_lastModified = headers.getValue("Last-Modified");
+		
+		// initial age: how old the response already was when it was stored
+		long date = HTTPDate.parse(headers.getValue("Date"));
+		long age = date >= 0 ? Math.max(0, record.time - date) : 0;
+		try
+		{
+			if(headers.contains("Age"))
+				age = Math.max(age, Long.parseLong(headers.getValue("Age").trim()) * 1000);
+		}
+		catch(NumberFormatException e)
+		{
+			// ignore
+		}
+		_initialAge = age;
+		_lifetime = lifetime(headers, date >= 0 ? date : record.time, response.getStatusCode());
+		
+		// the request headers the response varies on, see HttpCache.varyBlock()
+		String vary = new String(record.vary, "ISO-8859-1");
+		String[] lines = vary.length() > 0 ? vary.split("\n") : new String[0];
+		_varyNames = new String[lines.length];
+		_varyValues = new String[lines.length];
+		for(int i = 0; i < lines.length; i++)
+		{
+			int pos = lines[i].indexOf(": ");
+			if(pos == -1)
+			{
+				_varyNames[i] = lines[i];
+				_varyValues[i] = null;
+			}
+			else
+			{
+				_varyNames[i] = lines[i].substring(0, pos);
+				_varyValues[i] = lines[i].substring(pos + 2);
+			}
+		}
+	}
+	
+	public String getURL()
+	{
+		return _record.key;
+	}
+	
+	public String getETag()
+	{
+		return _etag;
+	}
+	
+	public String getLastModified()
+	{
+		return _lastModified;
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the entry can be used without
+	 * asking the origin server.
+	 */
+	public boolean isFresh(long now)
+	{
+		return _lifetime > getAge(now);
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the entry can be revalidated.
+	 */
+	public boolean hasValidator()
+	{
+		return _etag != null || _lastModified != null;
+	}
+	
+	public long getAge(long now)
+	{
+		return _initialAge + Math.max(0, now - _record.time);
+	}
+	
+	/**
+	 * Reads the stored response headers into <code>response</code>,
+	 * with an <tt>Age</tt> header for <code>now</code>.
+	 */
+	public void readResponse(Response response, long now) throws IOException
+	{
+		readHead(response);
+		response.getHeaders().put("Age", Long.toString(getAge(now) / 1000));
+	}
+	
+	/**
+	 * Returns a read-only view of the stored body.
+	 */
+	public ByteBuffer getBody()
+	{
+		return _record.segment.view(_record.bodyOffset, _record.bodyLength);
+	}
+	
+	public int getBodyLength()
+	{
+		return _record.bodyLength;
+	}
+	
+	public void writeBody(OutputStream out) throws IOException
+	{
+		ByteBuffer body = getBody();
+		byte[] buf = new byte[Math.min(8192, Math.max(body.remaining(), 1))];
+		
+		while(body.hasRemaining())
+		{
+			int len = Math.min(buf.length, body.remaining());
+			body.get(buf, 0, len);
+			out.write(buf, 0, len);
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the request headers the
+	 * response varies on are the same as when it was stored.
+	 */
+	boolean matches(Headers requestHeaders)
+	{
+		for(int i = 0; i < _varyNames.length; i++)
+		{
+			String value = requestHeaders.getValue(_varyNames[i]);
+			if(value == null ? _varyValues[i] != null : !value.equals(_varyValues[i]))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the client's own conditional
+	 * request headers are satisfied by this entry, so the client
+	 * can be answered with <tt>304 Not Modified</tt>.
+	 */
+	public boolean isNotModified(Headers requestHeaders)
+	{
+		String[] tags = requestHeaders.getValueList("If-None-Match");
+		if(tags != null)
+		{
+			if(_etag == null)
+				return false;
+			
+			for(int i = 0; i < tags.length; i++)
+			{
+				if(tags[i].equals("*") || weak(tags[i]).equals(weak(_etag)))
+					return true;
+			}
+			return false;
+		}
+		
+		long since = HTTPDate.parse(requestHeaders.getValue("If-Modified-Since"));
+		long modified = HTTPDate.parse(_lastModified);
+		
+		return since >= 0 && modified >= 0 && modified <= since;
+	}
+	
+	SegmentStore.Record getRecord()
+	{
+		return _record;
+	}
+	
+	/**
+	 * Returns the response headers exactly as they were stored.
+	 */
+	Response getStoredResponse() throws IOException
+	{
+		Response response = new Response();
+		readHead(response);
+		return response;
+	}
+	
+	private void readHead(Response response) throws IOException
+	{
+		try
+		{
+			response.read(new ByteArrayInputStream(_record.head));
+		}
+		catch(MessageFormatException e)
+		{
+			throw new IOException("Damaged cache entry for " + _record.key);
+		}
+	}
+	
+	private static String weak(String tag)
+	{
+		return tag.startsWith("W/") ? tag.substring(2) : tag;
+	}
+	
+	/**
+	 * Returns how long the response is fresh: from <tt>s-maxage</tt>,
+	 * <tt>max-age</tt> or <tt>Expires</tt>, or a tenth of the time since
+	 * it was last modified, but no more than a day.
+	 */
+	private static long lifetime(Headers headers, long date, String statusCode)
+	{
+		String[] directives = headers.getValueList("Cache-Control");
+		long maxAge = -1, sharedMaxAge = -1;
+		
+		for(int i = 0; directives != null && i < directives.length; i++)
+		{
+			String directive = directives[i].toLowerCase();
+			if(directive.equals("no-cache") || directive.startsWith("no-cache="))
+				return 0;
+			else if(directive.startsWith("max-age="))
+				maxAge = seconds(directive.substring(8));
+			else if(directive.startsWith("s-maxage="))
+				sharedMaxAge = seconds(directive.substring(9));
+		}
+		
+		if(sharedMaxAge >= 0)
+			return sharedMaxAge;
+		if(maxAge >= 0)
+			return maxAge;
+		
+		if(headers.contains("Expires"))
+		{
+			long expires = HTTPDate.parse(headers.getValue("Expires"));
+			return expires >= 0 ? Math.max(0, expires - date) : 0;
+		}
+		
+		long modified = HTTPDate.parse(headers.getValue("Last-Modified"));
+		if(modified >= 0 && statusCode.equals("200"))
+			return Math.min(Math.max(0, date - modified) / 10, 24 * 60 * 60 * 1000L);
+		
+		return 0;
+	}
+	
+	private static long seconds(String value)
+	{
+		try
+		{
+			return Long.parseLong(value.replace('"', ' ').trim()) * 1000;
+		}
+		catch(NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+}
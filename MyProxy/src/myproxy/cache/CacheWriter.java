@@ -0,0 +1,120 @@
+/**
+ * This file is part of MyProxy.
+ * 
+ * Copyright (C) 2002 Alexander Dietrich
+ * 
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy.cache;
+
+import java.io.*;
+import java.util.logging.*;
+
+import myproxy.httpio.*;
+import myproxy.prefetching.EntityBody;
+
+/**
+ * Collects the decoded body of a response while it is sent to the
+ * client, and stores the response in the <code>HttpCache</code> once
+ * the body is complete. Bodies that grow beyond the size limit of
+ * the cache are given up silently. A writer that is not committed
+ * has to be closed, so that a body held in a file is removed.
+ */
+public final class CacheWriter extends OutputStream
+{
+	private static final Logger _logger = Logger.getLogger("myproxy");
+	
+	private final HttpCache _cache;
+	private final String _url;
+	private final Headers _requestHeaders;
+	private final Response _response;
+	private final long _expectedLength;
+	private final int _maxSize;
+	
+	private EntityBody _body;
+	
+	CacheWriter(HttpCache cache, String url, Headers requestHeaders, Response response, long expectedLength, int maxSize)
+	{
+		_cache = cache;
+		_url = url;
+		_requestHeaders = requestHeaders;
+		_response = response;
+		_expectedLength = expectedLength;
+		_maxSize = maxSize;
+		_body = new EntityBody(expectedLength);
+	}
+	
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+	
+	public void write(byte[] buf, int off, int len) throws IOException
+	{
+		if(_body == null)
+			return;
+		
+		if((long)_body.size() + len > _maxSize)
+		{
+			close();
+			return;
+		}
+		
+		_body.write(buf, off, len);
+	}
+	
+	/**
+	 * Stores the response, if its body arrived completely,
+	 * and returns the new entry, or <tt>null</tt>.
+	 */
+	public CacheEntry commit()
+	{
+		if(_body == null)
+			return null;
+		if(_expectedLength >= 0 && _body.size() != _expectedLength)
+		{
+			close();
+			return null;
+		}
+		
+		try
+		{
+			_body.seal();
+			return _cache.store(_url, _requestHeaders, _response, _body.asReadOnlyBuffer());
+		}
+		catch(IOException e)
+		{
+			_logger.logp(Level.CONFIG, "CacheWriter", "commit", "Could not cache " + _url, e);
+			_body.discard();
+			return null;
+		}
+		finally
+		{
+			_body = null;
+		}
+	}
+	
+	/**
+	 * Gives up the body unless it has been committed.
+	 */
+	public void close()
+	{
+		if(_body != null)
+		{
+			_body.discard();
+			_body = null;
+		}
+	}
+}
\ No newline at end of file
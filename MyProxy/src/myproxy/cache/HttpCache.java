@@ -0,0 +1,403 @@
+/**
+ * This file is part of MyProxy.
+ * 
+ * Copyright (C) 2002 Alexander Dietrich
+ * 
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy.cache;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.logging.*;
+
+import myproxy.httpio.*;
+
+/**
+ * An HTTP/1.1 cache for the end of the proxy next to the browser.
+ *
+ * Responses to <tt>GET</tt> requests are kept in a <code>SegmentStore</code>
+ * on disk, and an index of all of them is kept in memory. The cache
+ * honors <tt>Cache-Control</tt>, <tt>Expires</tt> and <tt>Vary</tt>:
+ * fresh entries are served directly, stale ones are revalidated with
+ * <tt>If-None-Match</tt> or <tt>If-Modified-Since</tt> by the handler,
+ * which then calls <code>update()</code> with the <tt>304</tt> response.
+ * Since the store is a log, the cache survives restarts.
+ *
+ * It is a shared cache: responses with <tt>Cache-Control: private</tt>,
+ * with cookies or to requests with credentials are not stored.
+ */
+public final class HttpCache
+{
+	private static final Logger _logger = Logger.getLogger("myproxy");
+	
+	public static final long DEFAULT_SIZE = 64 * 1024 * 1024;
+	
+	private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+	private static final int MIN_SEGMENT_SIZE = 256 * 1024;
+	
+	/** status codes that may be cached without explicit permission, RFC 2616, 13.4 */
+	private static final Set CACHEABLE_STATUS = new HashSet(Arrays.asList(new String[] { "200", "203", "300", "301", "410" }));
+	
+	/** hop-by-hop headers, which are not stored, RFC 2616, 13.5.1 */
+	private static final String[] HOP_BY_HOP = {
+		"Connection", "Keep-Alive", "Proxy-Connection", "Proxy-Authenticate", "Proxy-Authorization",
+		"TE", "Trailer", "Trailers", "Transfer-Encoding", "Upgrade"
+	};
+	
+	private final SegmentStore _store;
+	private final Map _index;
+	private final int _maxEntrySize;
+	private long _hits, _misses, _revalidations, _stores;
+	
+	public HttpCache(File dir, long maxSize) throws IOException
+	{
+		int segmentSize = (int)Math.max(MIN_SEGMENT_SIZE, Math.min(SEGMENT_SIZE, maxSize / 4));
+		
+		_store = new SegmentStore(dir, segmentSize, (int)(maxSize / segmentSize));
+		_index = new HashMap();
+		_maxEntrySize = segmentSize / 2;
+		
+		List records = _store.recover();
+		for(Iterator i = records.iterator(); i.hasNext();)
+			apply((SegmentStore.Record)i.next());
+		
+		_logger.logp(Level.CONFIG, "HttpCache", "HttpCache", "Cache opened with " + _index.size() + " entries.");
+	}
+	
+	/**
+	 * Returns the entry for <code>url</code> that fits the request
+	 * headers, fresh or not, or <tt>null</tt>.
+	 */
+	public synchronized CacheEntry lookup(String url, Headers requestHeaders)
+	{
+		CacheEntry entry = (CacheEntry)_index.get(url);
+		
+		if(entry == null || !entry.matches(requestHeaders))
+		{
+			_misses++;
+			return null;
+		}
+		
+		return entry;
+	}
+	
+	/**
+	 * Counts a response that was served from the cache,
+	 * after revalidation if <code>revalidated</code> is set.
+	 */
+	public synchronized void countHit(boolean revalidated)
+	{
+		if(revalidated)
+			_revalidations++;
+		else
+			_hits++;
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the response to <code>request</code>
+	 * may come from the cache or go into it at all.
+	 */
+	public static boolean isCacheable(Request request)
+	{
+		Headers headers = request.getHeaders();
+		
+		return
+			request.getMethod().equals("GET") &&
+			!headers.contains("Authorization") &&
+			!hasDirective(headers, "no-store");
+	}
+	
+	/**
+	 * Returns <tt>false</tt> if the client asked for a response
+	 * that is checked with the origin server.
+	 */
+	public static boolean mayServeStored(Request request)
+	{
+		Headers headers = request.getHeaders();
+		
+		if(hasDirective(headers, "no-cache") || hasDirective(headers, "max-age=0"))
+			return false;
+		
+		String pragma = headers.getValue("Pragma");
+		return pragma == null || pragma.toLowerCase().indexOf("no-cache") == -1;
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if <code>response</code> may be stored.
+	 */
+	public boolean isCacheable(Request request, Response response)
+	{
+		Headers headers = response.getHeaders();
+		
+		if(!isCacheable(request) || !CACHEABLE_STATUS.contains(response.getStatusCode()))
+			return false;
+		
+		if(
+			hasDirective(headers, "no-store") || hasDirective(headers, "private") ||
+			response.getHeaders().getCookies().size() > 0
+		)
+			return false;
+		
+		String vary = headers.getValue("Vary");
+		if(vary != null && vary.indexOf('*') != -1)
+			return false;
+		
+		if(
+			!headers.contains("ETag") && !headers.contains("Last-Modified") &&
+			!headers.contains("Expires") && !hasDirective(headers, "max-age") && !hasDirective(headers, "s-maxage")
+		)
+			return false;
+		
+		if(headers.contains("Content-Length"))
+		{
+			try
+			{
+				if(Long.parseLong(headers.getValue("Content-Length").trim()) > _maxEntrySize)
+					return false;
+			}
+			catch(NumberFormatException e)
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns a stream that takes the body of <code>response</code> while
+	 * it is sent to the client, or <tt>null</tt> if it cannot be cached.
+	 */
+	public CacheWriter newWriter(String url, Request request, Response response) throws IOException
+	{
+		if(!isCacheable(request, response))
+			return null;
+		
+		long expected = -1;
+		if(response.lastTransferCoding() == null && response.getHeaders().contains("Content-Length"))
+			expected = Long.parseLong(response.getHeaders().getValue("Content-Length").trim());
+		
+		return new CacheWriter(this, url, request.getHeaders(), response, expected, _maxEntrySize);
+	}
+	
+	/**
+	 * Stores a response with its complete body, replacing any earlier
+	 * entry for <code>url</code>. Returns the new entry, or <tt>null</tt>
+	 * if the body is too large for the cache.
+	 */
+	public CacheEntry store(String url, Headers requestHeaders, Response response, ByteBuffer body) throws IOException
+	{
+		if(body.remaining() > _maxEntrySize)
+			return null;
+		
+		byte[] head = storedHead(response, body.remaining(), null);
+		byte[] vary = varyBlock(response.getHeaders(), requestHeaders);
+		
+		return append(SegmentStore.TYPE_ENTRY, url, vary, head, body);
+	}
+	
+	/**
+	 * Refreshes <code>entry</code> with the headers of a
+	 * <tt>304 Not Modified</tt> response and returns the new entry.
+	 */
+	public CacheEntry update(CacheEntry entry, Response notModified) throws IOException
+	{
+		SegmentStore.Record record = entry.getRecord();
+		byte[] head = storedHead(entry.getStoredResponse(), record.bodyLength, notModified.getHeaders());
+		
+		CacheEntry updated = append(SegmentStore.TYPE_ENTRY, record.key, record.vary, head, entry.getBody());
+		return updated != null ? updated : entry;
+	}
+	
+	/**
+	 * Forgets <code>url</code>, after a request that may have changed it.
+	 */
+	public void invalidate(String url)
+	{
+		synchronized(this)
+		{
+			if(!_index.containsKey(url))
+				return;
+		}
+		
+		append(SegmentStore.TYPE_REMOVAL, url, new byte[0], new byte[0], null);
+	}
+	
+	/**
+	 * Writes everything to disk.
+	 */
+	public void close()
+	{
+		_store.force();
+	}
+	
+	public synchronized String toString()
+	{
+		StringBuffer buffer = new StringBuffer("HttpCache: ");
+		buffer.append(_index.size()).append(" entries, ");
+		buffer.append(_store.size()).append(" bytes, ");
+		buffer.append(_hits).append(" hits, ");
+		buffer.append(_revalidations).append(" revalidated, ");
+		buffer.append(_misses).append(" misses, ");
+		buffer.append(_stores).append(" stored");
+		return buffer.toString();
+	}
+	
+	private synchronized CacheEntry append(byte type, String url, byte[] vary, byte[] head, ByteBuffer body)
+	{
+		List dropped = new ArrayList();
+		SegmentStore.Record record;
+		try
+		{
+			record = _store.append(type, System.currentTimeMillis(), url, vary, head, body, dropped);
+		}
+		catch(IOException e)
+		{
+			// a full disk must not fail the request
+			_logger.logp(Level.WARNING, "HttpCache", "append", "Could not write cache entry for " + url, e);
+			record = null;
+		}
+		
+		for(Iterator i = dropped.iterator(); i.hasNext();)
+		{
+			Object segment = i.next();
+			for(Iterator j = _index.values().iterator(); j.hasNext();)
+			{
+				if(((CacheEntry)j.next()).getRecord().segment == segment)
+					j.remove();
+			}
+		}
+		
+		if(record == null)
+		{
+			_index.remove(url);
+			return null;
+		}
+		
+		if(type == SegmentStore.TYPE_ENTRY)
+			_stores++;
+		return apply(record);
+	}
+	
+	private CacheEntry apply(SegmentStore.Record record)
+	{
+		if(record.type != SegmentStore.TYPE_ENTRY)
+		{
+			_index.remove(record.key);
+			return null;
+		}
+		
+		try
+		{
+			CacheEntry entry = new CacheEntry(record);
+			_index.put(record.key, entry);
+			return entry;
+		}
+		catch(IOException e)
+		{
+			_logger.logp(Level.CONFIG, "HttpCache", "apply", e.getMessage());
+			_index.remove(record.key);
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns the response headers as they are stored: without hop-by-hop
+	 * headers, with the real body length and the given updated headers.
+	 */
+	private static byte[] storedHead(Response response, int bodyLength, Headers updates) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+		response.write(out);
+		
+		Response stored = new Response();
+		try
+		{
+			stored.read(new ByteArrayInputStream(out.toByteArray()));
+		}
+		catch(MessageFormatException e)
+		{
+			throw new IOException(e.getMessage());
+		}
+		
+		Headers headers = stored.getHeaders();
+		if(updates != null)
+		{
+			headers.put("Age", null);
+			for(Iterator i = updates.iterator(); i.hasNext();)
+			{
+				String line = (String)i.next();
+				int pos = line.indexOf(": ");
+				if(pos > 0 && !line.regionMatches(true, 0, "Content-Length:", 0, 15))
+					headers.put(line.substring(0, pos), line.substring(pos + 2));
+			}
+		}
+		
+		String[] connection = headers.getValueList("Connection");
+		for(int i = 0; connection != null && i < connection.length; i++)
+			headers.put(connection[i], null);
+		for(int i = 0; i < HOP_BY_HOP.length; i++)
+			headers.put(HOP_BY_HOP[i], null);
+		headers.getCookies().clear();
+		headers.put("Content-Length", Integer.toString(bodyLength));
+		
+		out.reset();
+		stored.write(out);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Returns the request headers named in the <tt>Vary</tt> header
+	 * of the response, one <tt>name: value</tt> line each; headers
+	 * missing from the request are listed by name only.
+	 */
+	private static byte[] varyBlock(Headers responseHeaders, Headers requestHeaders) throws IOException
+	{
+		String[] names = responseHeaders.getValueList("Vary");
+		if(names == null)
+			return new byte[0];
+		
+		StringBuffer block = new StringBuffer();
+		for(int i = 0; i < names.length; i++)
+		{
+			if(names[i].length() == 0)
+				continue;
+			
+			block.append(names[i].toLowerCase());
+			String value = requestHeaders.getValue(names[i]);
+			if(value != null)
+				block.append(": ").append(value);
+			block.append('\n');
+		}
+		
+		return block.toString().getBytes("ISO-8859-1");
+	}
+	
+	private static boolean hasDirective(Headers headers, String directive)
+	{
+		String[] directives = headers.getValueList("Cache-Control");
+		
+		for(int i = 0; directives != null && i < directives.length; i++)
+		{
+			String value = directives[i].toLowerCase();
+			if(value.equals(directive) || value.startsWith(directive + "="))
+				return true;
+		}
+		
+		return false;
+	}
+}
@@ -0,0 +1,331 @@
+/**
+ * This file is part of MyProxy.
+ * 
+ * Copyright (C) 2002 Alexander Dietrich
+ * 
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy.cache;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.logging.*;
+import java.util.zip.CRC32;
+
+/**
+ * A log of cache records, kept in a fixed number of equally sized,
+ * memory-mapped segment files.
+ *
+ * Records are only ever appended to the newest segment. When it is
+ * full, a new segment is started, and once there are too many, the
+ * oldest one is dropped together with all records in it. Every record
+ * carries a checksum, so after a crash the log is read up to the last
+ * complete record and continues from there.
+ *
+ * Record layout: magic, record length, type, time, the lengths of
+ * key, vary, head and body, the four byte blocks, and a CRC-32 over
+ * everything from the type on.
+ */
+final class SegmentStore
+{
+	private static final Logger _logger = Logger.getLogger("myproxy");
+	
+	static final byte TYPE_ENTRY   = 1;
+	static final byte TYPE_REMOVAL = 2;
+	
+	private static final int MAGIC = 0x4d504345;
+	/** magic, length, type, time, four lengths */
+	private static final int HEADER_SIZE = 4 + 4 + 1 + 8 + 4 * 4;
+	private static final int TRAILER_SIZE = 4;
+	private static final String PREFIX = "segment-";
+	
+	private final File _dir;
+	private final int _segmentSize, _maxSegments;
+	private final LinkedList _segments;
+	private Segment _active;
+	
+	SegmentStore(File dir, int segmentSize, int maxSegments)
+	{
+		_dir = dir;
+		_segmentSize = segmentSize;
+		_maxSegments = Math.max(maxSegments, 2);
+		_segments = new LinkedList();
+	}
+	
+	/**
+	 * Maps the existing segments and returns all records in them, oldest
+	 * first. Must be called once, before anything is appended.
+	 */
+	synchronized List recover() throws IOException
+	{
+		if(!_dir.exists())
+			_dir.mkdirs();
+		
+		String[] names = _dir.list();
+		List ids = new ArrayList();
+		for(int i = 0; names != null && i < names.length; i++)
+		{
+			if(!names[i].startsWith(PREFIX))
+				continue;
+			try
+			{
+				ids.add(new Long(Long.parseLong(names[i].substring(PREFIX.length()))));
+			}
+			catch(NumberFormatException e)
+			{
+				// not ours
+			}
+		}
+		Collections.sort(ids);
+		
+		List records = new ArrayList();
+		for(Iterator i = ids.iterator(); i.hasNext();)
+		{
+			Segment segment = openSegment(((Long)i.next()).longValue());
+			_segments.add(segment);
+			segment.position = scan(segment, records);
+		}
+		
+		while(_segments.size() > _maxSegments)
+			((Segment)_segments.removeFirst()).delete();
+		
+		if(_segments.isEmpty())
+			_segments.add(openSegment(0));
+		_active = (Segment)_segments.getLast();
+		
+		return records;
+	}
+	
+	/**
+	 * Appends a record.
+	 * 
+	 * @param body the body, from its position to its limit, or <tt>null</tt>
+	 * @param dropped receives the segment that had to be dropped to make room, if any
+	 * @return the record, or <tt>null</tt> if it is larger than a segment
+	 */
+	synchronized Record append(byte type, long time, String key, byte[] vary, byte[] head, ByteBuffer body, List dropped) throws IOException
+	{
+		byte[] keyBytes = key.getBytes("UTF-8");
+		int bodyLength = body != null ? body.remaining() : 0;
+		long length = (long)HEADER_SIZE + keyBytes.length + vary.length + head.length + bodyLength + TRAILER_SIZE;
+		
+		if(length > _segmentSize)
+			return null;
+		
+		if(_active.position + length > _segmentSize)
+		{
+			_active.buffer.force();
+			_active = openSegment(_active.id + 1);
+			_segments.add(_active);
+			while(_segments.size() > _maxSegments)
+			{
+				Segment oldest = (Segment)_segments.removeFirst();
+				oldest.delete();
+				dropped.add(oldest);
+			}
+		}
+		
+		ByteBuffer out = _active.buffer.duplicate();
+		int start = _active.position;
+		out.position(start);
+		out.putInt(MAGIC);
+		out.putInt((int)length);
+		out.put(type);
+		out.putLong(time);
+		out.putInt(keyBytes.length);
+		out.putInt(vary.length);
+		out.putInt(head.length);
+		out.putInt(bodyLength);
+		out.put(keyBytes);
+		out.put(vary);
+		out.put(head);
+		int bodyOffset = out.position();
+		if(body != null)
+			out.put(body.duplicate());
+		
+		CRC32 crc = new CRC32();
+		update(crc, _active.buffer, start + 8, out.position());
+		out.putInt((int)crc.getValue());
+		
+		_active.position = out.position();
+		
+		// mark the end of the log, in case older data follows
+		if(out.remaining() >= 4)
+			out.putInt(out.position(), 0);
+		
+		return new Record(type, time, key, vary, head, _active, bodyOffset, bodyLength);
+	}
+	
+	/**
+	 * Writes all changes to disk.
+	 */
+	synchronized void force()
+	{
+		for(Iterator i = _segments.iterator(); i.hasNext();)
+			((Segment)i.next()).buffer.force();
+	}
+	
+	/**
+	 * Returns the number of bytes used by all segments.
+	 */
+	synchronized long size()
+	{
+		long size = 0;
+		for(Iterator i = _segments.iterator(); i.hasNext();)
+			size += ((Segment)i.next()).position;
+		return size;
+	}
+	
+	private Segment openSegment(long id) throws IOException
+	{
+		File file = new File(_dir, PREFIX + id);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			if(raf.length() != _segmentSize)
+				raf.setLength(_segmentSize);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, _segmentSize);
+			return new Segment(id, file, buffer);
+		}
+		finally
+		{
+			// the mapping stays valid
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Adds the valid records of <code>segment</code> to
+	 * <code>records</code> and returns the end of the last one.
+	 */
+	private int scan(Segment segment, List records) throws IOException
+	{
+		ByteBuffer in = segment.buffer.duplicate();
+		int pos = 0;
+		
+		while(pos + HEADER_SIZE + TRAILER_SIZE <= _segmentSize)
+		{
+			in.position(pos);
+			if(in.getInt() != MAGIC)
+				break;
+			
+			int length = in.getInt();
+			if(length < HEADER_SIZE + TRAILER_SIZE || pos + (long)length > _segmentSize)
+				break;
+			
+			byte type = in.get();
+			long time = in.getLong();
+			int keyLength = in.getInt(), varyLength = in.getInt(), headLength = in.getInt(), bodyLength = in.getInt();
+			if(
+				keyLength < 0 || varyLength < 0 || headLength < 0 || bodyLength < 0 ||
+				(long)HEADER_SIZE + keyLength + varyLength + headLength + bodyLength + TRAILER_SIZE != length
+			)
+				break;
+			
+			CRC32 crc = new CRC32();
+			update(crc, segment.buffer, pos + 8, pos + length - TRAILER_SIZE);
+			in.position(pos + length - TRAILER_SIZE);
+			if(in.getInt() != (int)crc.getValue())
+			{
+				_logger.logp(Level.CONFIG, "SegmentStore", "scan", "Damaged cache record in " + segment.file + " at " + pos + ", ignoring the rest.");
+				break;
+			}
+			
+			in.position(pos + HEADER_SIZE);
+			byte[] key = new byte[keyLength], vary = new byte[varyLength], head = new byte[headLength];
+			in.get(key);
+			in.get(vary);
+			in.get(head);
+			
+			records.add(new Record(type, time, new String(key, "UTF-8"), vary, head, segment, in.position(), bodyLength));
+			pos += length;
+		}
+		
+		return pos;
+	}
+	
+	private static void update(CRC32 crc, ByteBuffer buffer, int from, int to)
+	{
+		ByteBuffer view = buffer.duplicate();
+		view.position(from);
+		view.limit(to);
+		
+		byte[] buf = new byte[Math.min(8192, Math.max(to - from, 1))];
+		while(view.hasRemaining())
+		{
+			int len = Math.min(buf.length, view.remaining());
+			view.get(buf, 0, len);
+			crc.update(buf, 0, len);
+		}
+	}
+	
+	static final class Segment
+	{
+		final long id;
+		final File file;
+		final MappedByteBuffer buffer;
+		int position;
+		
+		Segment(long id, File file, MappedByteBuffer buffer)
+		{
+			this.id = id;
+			this.file = file;
+			this.buffer = buffer;
+			this.position = 0;
+		}
+		
+		/**
+		 * Returns a read-only view of <code>length</code> bytes at <code>offset</code>.
+		 */
+		ByteBuffer view(int offset, int length)
+		{
+			ByteBuffer view = buffer.duplicate();
+			view.position(offset);
+			view.limit(offset + length);
+			return view.slice().asReadOnlyBuffer();
+		}
+		
+		void delete()
+		{
+			// readers may still use the mapping, which outlives the file
+			if(!file.delete())
+				file.deleteOnExit();
+		}
+	}
+	
+	static final class Record
+	{
+		final byte type;
+		final long time;
+		final String key;
+		final byte[] vary, head;
+		final Segment segment;
+		final int bodyOffset, bodyLength;
+		
+		Record(byte type, long time, String key, byte[] vary, byte[] head, Segment segment, int bodyOffset, int bodyLength)
+		{
+			this.type = type;
+			this.time = time;
+			this.key = key;
+			this.vary = vary;
+			this.head = head;
+			this.segment = segment;
+			this.bodyOffset = bodyOffset;
+			this.bodyLength = bodyLength;
+		}
+	}
+}
@@ -0,0 +1,557 @@
+/**
+ * This file is part of MyProxy.
+ *
+ * Copyright (C) 2002 Alexander Dietrich
+ *
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy.filter;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A read-only, memory-mapped index of host names (and optional
+ * literal path prefixes) compiled from external block lists.
+ *
+ * Understands hosts files (<tt>0.0.0.0 ads.example.com</tt>), plain
+ * host name lists and the host anchored subset of Adblock filters
+ * (<tt>||example.com^</tt>, <tt>||example.com/ads/</tt>,
+ * <tt>|http://example.com/ads/</tt>). Adblock lines with wildcards,
+ * options, exceptions or element hiding cannot be expressed
+ * as host rules and are skipped.
+ *
+ * File layout, all integers big-endian:
+ * <pre>
+ *   header   magic, version, record count, pool offset (4 ints)
+ *   records  host offset (int), path offset (int), host length,
+ *            path length, flags, reserved (shorts); sorted by
+ *            reversed host name, then path
+ *   pool     reversed, lower-case host names and path prefixes
+ * </pre>
+ * Host names are stored reversed (<tt>moc.elpmaxe.sda</tt>), so a host
+ * and all of its parent domains are found with one binary search each.
+ */
+public final class BlockListIndex
+{
+	public static final String INDEX_FILE = "blocklist.idx";
+	public static final String SOURCE_DIR = "blocklists";
+
+	private static final int MAGIC = 0x4d504249; // "MPBI"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 16;
+	private static final int MAX_HOST_LENGTH = 255;
+	private static final int MAX_PATH_LENGTH = 0xffff;
+
+	/** the entry also matches all subdomains of its host */
+	private static final int SUBDOMAINS = 1;
+
+	private final ByteBuffer _data;
+	private final int _count, _pool;
+
+	private BlockListIndex(ByteBuffer data) throws IOException
+	{
+		if(data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC)
+			throw new IOException("Not a block list index.");
+		if(data.getInt(4) != VERSION)
+			throw new IOException("Unsupported block list index version: " + data.getInt(4));
+
+		_data = data;
+		_count = data.getInt(8);
+		_pool = data.getInt(12);
+
+		if(_count < 0 || _pool != HEADER_SIZE + _count * RECORD_SIZE || _pool > data.capacity())
+			throw new IOException("Corrupt block list index.");
+	}
+
+	/**
+	 * Maps an index file created by <code>compile()</code> into memory.
+	 */
+	public static BlockListIndex load(File file) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			return new BlockListIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally
+		{
+			// the mapping stays valid after closing the channel
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the number of entries in the index.
+	 */
+	public int size()
+	{
+		return _count;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if the host, or one of its parent domains,
+	 * is listed in the index and the path starts with the listed prefix.
+	 *
+	 * @param hostPart the request host, optionally with a port
+	 * @param pathPart the request path, or <tt>null</tt>
+	 */
+	public boolean matches(String hostPart, String pathPart)
+	{
+		int length = hostPart.indexOf(':');
+		if(length == -1)
+			length = hostPart.length();
+		while(length > 0 && hostPart.charAt(length - 1) == '.')
+			length--;
+		if(length == 0 || length > MAX_HOST_LENGTH)
+			return false;
+
+		// characters outside US-ASCII never occur in the index, map them to 0
+		byte[] reversed = new byte[length];
+		for(int i = 0; i < length; i++)
+		{
+			char c = lowerCase(hostPart.charAt(length - 1 - i));
+			reversed[i] = (byte)(c < 0x80 ? c : 0);
+		}
+
+		if(matches(reversed, length, false, pathPart))
+			return true;
+
+		// parent domains are prefixes of the reversed host name
+		for(int i = length - 1; i > 0; i--)
+		{
+			if(reversed[i] == '.' && matches(reversed, i, true, pathPart))
+				return true;
+		}
+
+		return false;
+	}
+
+	private boolean matches(byte[] host, int length, boolean parent, String pathPart)
+	{
+		for(int i = lowerBound(host, length); i < _count; i++)
+		{
+			int record = HEADER_SIZE + i * RECORD_SIZE;
+			if(compareHost(record, host, length) != 0)
+				return false;
+
+			if(parent && (_data.getShort(record + 12) & SUBDOMAINS) == 0)
+				continue;
+
+			int pathLength = _data.getShort(record + 10) & 0xffff;
+			if(pathLength == 0)
+				return true;
+			if(pathPart != null && startsWith(pathPart, _pool + _data.getInt(record + 4), pathLength))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns the first record whose host is not smaller than <code>host</code>.
+	 */
+	private int lowerBound(byte[] host, int length)
+	{
+		int low = 0, high = _count;
+
+		while(low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if(compareHost(HEADER_SIZE + middle * RECORD_SIZE, host, length) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low;
+	}
+
+	private int compareHost(int record, byte[] host, int length)
+	{
+		int offset = _pool + _data.getInt(record);
+		int hostLength = _data.getShort(record + 8) & 0xffff;
+		int compareLength = Math.min(hostLength, length);
+
+		for(int i = 0; i < compareLength; i++)
+		{
+			int a = _data.get(offset + i) & 0xff;
+			int b = host[i] & 0xff;
+			if(a != b)
+				return a - b;
+		}
+
+		return hostLength - length;
+	}
+
+	private boolean startsWith(String path, int offset, int length)
+	{
+		if(path.length() < length)
+			return false;
+
+		for(int i = 0; i < length; i++)
+		{
+			if(path.charAt(i) != (char)(_data.get(offset + i) & 0xff))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Parses the block lists and writes a new index to <code>target</code>.
+	 * The index is first written to a temporary file and then renamed,
+	 * so a running proxy never maps a half-written index.
+	 *
+	 * @return the number of entries in the new index
+	 */
+	public static int compile(File[] sources, File target) throws IOException
+	{
+		List entries = new ArrayList();
+
+		for(int i = 0; i < sources.length; i++)
+		{
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(sources[i]), "ISO-8859-1"));
+			try
+			{
+				String line;
+				while((line = in.readLine()) != null)
+					parseLine(line.trim(), entries);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		Object[] sorted = entries.toArray();
+		Arrays.sort(sorted, new EntryComparator());
+
+		// drop duplicates and lay out the pool, sharing repeated host names
+		List records = new ArrayList(sorted.length);
+		ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		Entry last = null;
+		int lastHostOffset = 0;
+
+		for(int i = 0; i < sorted.length; i++)
+		{
+			Entry entry = (Entry)sorted[i];
+			if(last != null && EntryComparator.compareEntries(last, entry) == 0)
+				continue;
+
+			if(last != null && Arrays.equals(last.host, entry.host))
+			{
+				entry.hostOffset = lastHostOffset;
+			}
+			else
+			{
+				entry.hostOffset = pool.size();
+				pool.write(entry.host);
+			}
+			entry.pathOffset = pool.size();
+			pool.write(entry.path);
+
+			records.add(entry);
+			lastHostOffset = entry.hostOffset;
+			last = entry;
+		}
+
+		File temp = new File(target.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(records.size());
+			out.writeInt(HEADER_SIZE + records.size() * RECORD_SIZE);
+
+			for(Iterator i = records.iterator(); i.hasNext();)
+			{
+				Entry entry = (Entry)i.next();
+				out.writeInt(entry.hostOffset);
+				out.writeInt(entry.pathOffset);
+				out.writeShort(entry.host.length);
+				out.writeShort(entry.path.length);
+				out.writeShort(entry.flags);
+				out.writeShort(0);
+			}
+
+			pool.writeTo(out);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		if(!temp.renameTo(target))
+		{
+			// some platforms refuse to rename onto an existing file
+			target.delete();
+			if(!temp.renameTo(target))
+				throw new IOException("Cannot rename " + temp + " to " + target);
+		}
+
+		return records.size();
+	}
+
+	/**
+	 * Returns the readable files in <code>directory</code>,
+	 * or <tt>null</tt> if there are none.
+	 */
+	public static File[] listSources(File directory)
+	{
+		if(!directory.isDirectory())
+			return null;
+
+		File[] files = directory.listFiles();
+		List sources = new ArrayList();
+		for(int i = 0; i < files.length; i++)
+		{
+			if(files[i].isFile() && files[i].canRead())
+				sources.add(files[i]);
+		}
+
+		if(sources.size() == 0)
+			return null;
+
+		return (File[])sources.toArray(new File[sources.size()]);
+	}
+
+	/**
+	 * Returns <tt>true</tt> if <code>index</code> doesn't exist
+	 * or is older than one of the sources.
+	 */
+	public static boolean isOutdated(File index, File[] sources)
+	{
+		if(!index.exists())
+			return true;
+
+		for(int i = 0; i < sources.length; i++)
+		{
+			if(sources[i].lastModified() > index.lastModified())
+				return true;
+		}
+
+		return false;
+	}
+
+	private static void parseLine(String line, List entries)
+	{
+		if(line.length() == 0 || line.charAt(0) == '!' || line.charAt(0) == '#' || line.charAt(0) == '[')
+			return;
+
+		if(line.startsWith("||"))
+		{
+			// Adblock: host and all subdomains, optionally with a path
+			parseAdblock(line.substring(2), SUBDOMAINS, entries);
+		}
+		else if(line.startsWith("|http://") || line.startsWith("|https://"))
+		{
+			// Adblock: anchored URL, this host only
+			parseAdblock(line.substring(line.indexOf("//") + 2), 0, entries);
+		}
+		else
+		{
+			// hosts file or plain host name list
+			int pos = line.indexOf('#');
+			if(pos != -1)
+				line = line.substring(0, pos);
+
+			StringTokenizer t = new StringTokenizer(line, " \t");
+			if(t.countTokens() == 0)
+				return;
+
+			String first = t.nextToken();
+			if(!t.hasMoreTokens())
+			{
+				if(!isAddress(first))
+					addEntry(first, "", 0, entries);
+				return;
+			}
+
+			if(!isAddress(first))
+				return;
+
+			while(t.hasMoreTokens())
+			{
+				String host = t.nextToken();
+				if(!host.equals("localhost") && !host.equals("localhost.localdomain") &&
+					!host.equals("local") && !host.equals("broadcasthost") && !isAddress(host))
+					addEntry(host, "", 0, entries);
+			}
+		}
+	}
+
+	private static void parseAdblock(String rule, int flags, List entries)
+	{
+		if(rule.indexOf('$') != -1 || rule.indexOf('*') != -1 || rule.indexOf("##") != -1)
+			return;
+
+		int end = rule.length();
+		while(end > 0 && (rule.charAt(end - 1) == '^' || rule.charAt(end - 1) == '|'))
+			end--;
+		rule = rule.substring(0, end);
+
+		int pos = rule.indexOf('/');
+		if(pos == -1)
+		{
+			if(rule.indexOf('^') != -1)
+				return;
+			addEntry(rule, "", flags, entries);
+		}
+		else
+		{
+			String host = rule.substring(0, pos);
+			if(host.endsWith("^"))
+				host = host.substring(0, host.length() - 1);
+			String path = rule.substring(pos);
+			if(path.indexOf('^') != -1 || path.indexOf('|') != -1)
+				return;
+			addEntry(host, path, flags, entries);
+		}
+	}
+
+	private static void addEntry(String host, String path, int flags, List entries)
+	{
+		int pos = host.indexOf(':');
+		if(pos != -1)
+			host = host.substring(0, pos);
+		while(host.endsWith("."))
+			host = host.substring(0, host.length() - 1);
+		if(host.startsWith("."))
+		{
+			host = host.substring(1);
+			flags |= SUBDOMAINS;
+		}
+
+		if(host.length() == 0 || host.length() > MAX_HOST_LENGTH || path.length() > MAX_PATH_LENGTH)
+			return;
+
+		byte[] reversed = new byte[host.length()];
+		for(int i = 0; i < reversed.length; i++)
+		{
+			char c = lowerCase(host.charAt(reversed.length - 1 - i));
+			if(!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9') && c != '.' && c != '-' && c != '_')
+				return;
+			reversed[i] = (byte)c;
+		}
+
+		byte[] pathBytes = new byte[path.length()];
+		for(int i = 0; i < pathBytes.length; i++)
+		{
+			char c = path.charAt(i);
+			if(c > 0xff)
+				return;
+			pathBytes[i] = (byte)c;
+		}
+
+		entries.add(new Entry(reversed, pathBytes, flags));
+	}
+
+	/**
+	 * Returns <tt>true</tt> for numeric IPv4 and for IPv6 addresses.
+	 */
+	private static boolean isAddress(String token)
+	{
+		if(token.indexOf(':') != -1)
+			return true;
+
+		for(int i = 0; i < token.length(); i++)
+		{
+			char c = token.charAt(i);
+			if(!(c >= '0' && c <= '9') && c != '.')
+				return false;
+		}
+
+		return true;
+	}
+
+	private static char lowerCase(char c)
+	{
+		if(c >= 'A' && c <= 'Z')
+			return (char)(c + ('a' - 'A'));
+		else
+			return c;
+	}
+
+	/**
+	 * Compiles the block lists given on the command line into an index,
+	 * e.g. <tt>java myproxy.filter.BlockListIndex blocklist.idx hosts easylist.txt</tt>
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 2)
+		{
+			System.err.println("Usage: BlockListIndex <index file> <block list>...");
+			return;
+		}
+
+		File[] sources = new File[args.length - 1];
+		for(int i = 1; i < args.length; i++)
+			sources[i - 1] = new File(args[i]);
+
+		long start = System.currentTimeMillis();
+		int count = compile(sources, new File(args[0]));
+		System.out.println("Compiled " + count + " entries in " + (System.currentTimeMillis() - start) + " milliseconds");
+	}
+
+	private static final class Entry
+	{
+		final byte[] host, path;
+		final int flags;
+		int hostOffset, pathOffset;
+
+		Entry(byte[] host, byte[] path, int flags)
+		{
+			this.host = host;
+			this.path = path;
+			this.flags = flags;
+		}
+	}
+
+	private static final class EntryComparator implements Comparator
+	{
+		public int compare(Object o1, Object o2)
+		{
+			return compareEntries((Entry)o1, (Entry)o2);
+		}
+
+		static int compareEntries(Entry a, Entry b)
+		{
+			int result = compareBytes(a.host, b.host);
+			if(result == 0)
+				result = compareBytes(a.path, b.path);
+			if(result == 0)
+				result = a.flags - b.flags;
+			return result;
+		}
+
+		private static int compareBytes(byte[] a, byte[] b)
+		{
+			int length = Math.min(a.length, b.length);
+			for(int i = 0; i < length; i++)
+			{
+				int result = (a[i] & 0xff) - (b[i] & 0xff);
+				if(result != 0)
+					return result;
+			}
+			return a.length - b.length;
+		}
+	}
+}
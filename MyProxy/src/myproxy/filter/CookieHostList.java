@@ -22,9 +22,9 @@ package myproxy.filter;
 import java.io.*;
 import java.util.*;
 
-public final class CookieHostList
+public final class CookieHostList implements RuleList
 {
-	private final List _hosts;
+	private List _hosts;
 	private int _nextID;
 	
 	public CookieHostList()
@@ -106,12 +106,53 @@ public final class CookieHostList
 		return null;
 	}
 	
-	public synchronized void read(InputStream in) throws IOException
+	public void read(InputStream in) throws IOException
+	{
+		load(in, null);
+	}
+	
+	/**
+	 * Replaces all hosts with the ones read from <code>in</code> and
+	 * applies the hit counts read from <code>journal</code>, which may
+	 * be <tt>null</tt>. Like <code>URLRuleList.load()</code>, the list
+	 * is parsed without the lock and swapped in as a whole.
+	 */
+	public void load(InputStream in, InputStream journal) throws IOException
+	{
+		List hosts = parse(in);
+		Map keys = keyMap(hosts);
+		if(journal != null)
+			applyHitCounts(keys, journal);
+		
+		Object[] array = hosts.toArray();
+		Arrays.sort(array, new HostRuleComparator(true));
+		
+		synchronized(this)
+		{
+			boolean merged = false;
+			for(Iterator i = _hosts.iterator(); i.hasNext();)
+			{
+				CookieHost oldHost = (CookieHost)i.next();
+				if(!oldHost.hitCountChanged())
+					continue;
+				
+				CookieHost host = (CookieHost)keys.get(hostKey(oldHost));
+				if(host != null && host.mergeHitCount(oldHost.getHitCount()))
+					merged = true;
+			}
+			
+			if(merged)
+				Arrays.sort(array, new HostRuleComparator(true));
+			_hosts = new Vector(Arrays.asList(array));
+		}
+	}
+	
+	private List parse(InputStream in) throws IOException
 	{
 		BufferedReader bin = new BufferedReader(new InputStreamReader(in));
+		List hosts = new ArrayList();
 		String line;
 		
-		_hosts.clear();
 		while((line = bin.readLine()) != null)
 		{
 			line = line.trim();
@@ -123,12 +164,12 @@ public final class CookieHostList
 				continue;
 			
 			if(parts[0].charAt(0) != '^')
-				_hosts.add(new CookieHost(nextID(), parts[0], Integer.parseInt(parts[1]), false));
+				hosts.add(new CookieHost(nextID(), parts[0], Integer.parseInt(parts[1]), false));
 			else
-				_hosts.add(new CookieHost(nextID(), parts[0].substring(1), Integer.parseInt(parts[1]), true));
+				hosts.add(new CookieHost(nextID(), parts[0].substring(1), Integer.parseInt(parts[1]), true));
 		}
 		
-		sortByHitCount();
+		return hosts;
 	}
 	
 	public synchronized void write(OutputStream out) throws IOException
@@ -138,17 +179,91 @@ public final class CookieHostList
 		for(Iterator i = _hosts.iterator(); i.hasNext();)
 		{
 			CookieHost host = (CookieHost)i.next();
-			StringBuffer buffer = new StringBuffer(host.getSource());
-			if(host.isExactMatch())
-				buffer.insert(0, '^');
-			buffer.append(' ').append(host.getHitCount());
+			String line = hostKey(host) + ' ' + host.getHitCount();
+			bout.write(line, 0, line.length());
+			bout.newLine();
+			host.hitCountSaved();
+		}
+		
+		bout.flush();
+	}
+	
+	public synchronized boolean writeHitCounts(OutputStream out) throws IOException
+	{
+		BufferedWriter bout = new BufferedWriter(new OutputStreamWriter(out));
+		boolean written = false;
+		
+		for(Iterator i = _hosts.iterator(); i.hasNext();)
+		{
+			CookieHost host = (CookieHost)i.next();
+			if(!host.hitCountChanged())
+				continue;
 			
-			String line = buffer.toString();
+			String line = hostKey(host) + ' ' + host.getHitCount();
 			bout.write(line, 0, line.length());
 			bout.newLine();
+			host.hitCountSaved();
+			written = true;
 		}
 		
 		bout.flush();
+		return written;
+	}
+	
+	public synchronized void readHitCounts(InputStream in) throws IOException
+	{
+		applyHitCounts(keyMap(_hosts), in);
+		sortByHitCount();
+	}
+	
+	private static Map keyMap(List hosts)
+	{
+		Map keys = new HashMap();
+		
+		for(Iterator i = hosts.iterator(); i.hasNext();)
+		{
+			CookieHost host = (CookieHost)i.next();
+			keys.put(hostKey(host), host);
+		}
+		
+		return keys;
+	}
+	
+	private static void applyHitCounts(Map keys, InputStream in) throws IOException
+	{
+		BufferedReader bin = new BufferedReader(new InputStreamReader(in));
+		String line;
+		
+		while((line = bin.readLine()) != null)
+		{
+			String[] parts = line.trim().split(" ");
+			if(parts.length != 2)
+				continue;
+			
+			CookieHost host = (CookieHost)keys.get(parts[0]);
+			if(host == null)
+				continue;
+			
+			try
+			{
+				host.setHitCount(Integer.parseInt(parts[1]));
+			}
+			catch(NumberFormatException e)
+			{
+				// incomplete last line
+			}
+		}
+	}
+	
+	/**
+	 * Returns the host as it appears at the start of a line in the host file.
+	 */
+	private static String hostKey(CookieHost host)
+	{
+		if(host.isExactMatch())
+			return '^' + host.getSource();
+		else
+			return host.getSource();
 	}
 	
 	private void resetHitCounts()
@@ -31,7 +31,7 @@ public class HostRule
 	private final int _id;
 	private final String _source;
 	private final Object[] _parts;
-	private int _hitCount;
+	private int _hitCount, _savedHitCount;
 	
 	HostRule(int id, String host, int hitCount)
 	{
@@ -58,6 +58,7 @@ public class HostRule
 		}
 
 		_hitCount = hitCount;
+		_savedHitCount = hitCount;
 	}
 	
 	final boolean matches(String[] hostParts, boolean allowLonger, boolean allowShorter)
@@ -109,4 +110,39 @@ public class HostRule
 	{
 		_hitCount = 0;
 	}
+	
+	final void setHitCount(int hitCount)
+	{
+		_hitCount = hitCount;
+		_savedHitCount = hitCount;
+	}
+	
+	/**
+	 * Raises the hit count to <code>hitCount</code>, without counting it
+	 * as saved. Used to keep unsaved hits when the list is reloaded.
+	 * 
+	 * @return <tt>true</tt> if the hit count changed
+	 */
+	final boolean mergeHitCount(int hitCount)
+	{
+		if(hitCount <= _hitCount)
+			return false;
+		
+		_hitCount = hitCount;
+		return true;
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the hit count changed
+	 * since the last call to <code>hitCountSaved()</code>.
+	 */
+	final boolean hitCountChanged()
+	{
+		return _hitCount != _savedHitCount;
+	}
+	
+	final void hitCountSaved()
+	{
+		_savedHitCount = _hitCount;
+	}
 }
@@ -0,0 +1,65 @@
+/**
+ * This file is part of MyProxy.
+ * 
+ * Copyright (C) 2002 Alexander Dietrich
+ * 
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy.filter;
+
+import java.io.*;
+
+/**
+ * The operations <code>UserSettings</code> needs to keep a
+ * rule list on disk: the rule file itself, and a journal of
+ * hit counts that is much cheaper to write than the rule file.
+ *
+ * Both use the same line format, <tt>&lt;rule&gt; &lt;hit count&gt;</tt>,
+ * so a journal line is the beginning of the corresponding rule line.
+ */
+public interface RuleList
+{
+	public void read(InputStream in) throws IOException;
+	
+	/**
+	 * Replaces the list with the rules read from <code>in</code> and the
+	 * hit counts read from <code>journal</code> (may be <tt>null</tt>).
+	 * Readers of the list see either the old or the new rules, never a mix,
+	 * and are not blocked while the new rules are parsed.
+	 */
+	public void load(InputStream in, InputStream journal) throws IOException;
+	
+	/**
+	 * Writes all rules. Afterwards, all hit counts count as saved.
+	 */
+	public void write(OutputStream out) throws IOException;
+	
+	/**
+	 * Writes the hit counts that changed since the last call
+	 * to <code>write()</code> or <code>writeHitCounts()</code>.
+	 * 
+	 * @return <tt>false</tt> if there was nothing to write
+	 */
+	public boolean writeHitCounts(OutputStream out) throws IOException;
+	
+	/**
+	 * Applies hit counts written by <code>writeHitCounts()</code>.
+	 * Later lines override earlier ones, unknown rules
+	 * and malformed lines are ignored.
+	 */
+	public void readHitCounts(InputStream in) throws IOException;
+	
+	public boolean refreshOrder();
+}
@@ -0,0 +1,230 @@
+/**
+ * This file is part of MyProxy.
+ *
+ * Copyright (C) 2002 Alexander Dietrich
+ *
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy.filter;
+
+import java.util.regex.*;
+
+/**
+ * One host or path part of a <code>URLRule</code>.
+ *
+ * The pattern is a regular expression that is searched for (not
+ * matched) in the text. Most rules however are plain host names or
+ * path fragments, so the pattern is classified once when the rule is
+ * created, and only patterns that really need it are handed to
+ * <code>java.util.regex</code>. The other classes are evaluated by
+ * simple character comparisons with exactly the same result.
+ *
+ * An unescaped <tt>.</tt> still matches any single character,
+ * a backslash followed by a non-alphanumeric character matches
+ * that character, and a leading <tt>^</tt> or trailing <tt>$</tt>
+ * anchor the pattern.
+ */
+final class URLPattern
+{
+	static final int MATCH_ALL = 0;
+	static final int EXACT     = 1;
+	static final int PREFIX    = 2;
+	static final int SUFFIX    = 3;
+	static final int SUBSTRING = 4;
+	static final int REGEX     = 5;
+
+	private static final String METACHARS = "\\^$.|?*+()[]{}";
+
+	private final String _source;
+	private final boolean _ignoreCase;
+	private final int _kind;
+
+	/** literal characters, for all kinds but REGEX and MATCH_ALL */
+	private final char[] _chars;
+	/** positions in _chars that match any character, or null */
+	private final boolean[] _any;
+	private final Pattern _pattern;
+
+	URLPattern(String source, boolean ignoreCase) throws PatternSyntaxException
+	{
+		_source = source;
+		_ignoreCase = ignoreCase;
+
+		if(source.equals(".*") || source.equals("^.*") || source.equals(".*$") || source.equals("^.*$"))
+		{
+			_kind = MATCH_ALL;
+			_chars = null;
+			_any = null;
+			_pattern = null;
+			return;
+		}
+
+		int start = 0, end = source.length();
+		boolean anchorStart = false, anchorEnd = false;
+
+		if(end > 0 && source.charAt(0) == '^')
+		{
+			anchorStart = true;
+			start = 1;
+		}
+		if(end > start && source.charAt(end - 1) == '$' && !isEscaped(source, end - 1))
+		{
+			anchorEnd = true;
+			end--;
+		}
+
+		char[] chars = new char[end - start];
+		boolean[] any = new boolean[end - start];
+		boolean hasAny = false, literal = true;
+		int length = 0;
+
+		for(int i = start; i < end && literal; i++)
+		{
+			char c = source.charAt(i);
+
+			if(c == '\\')
+			{
+				// only escaped punctuation is a literal character
+				if(i + 1 < end && !Character.isLetterOrDigit(source.charAt(i + 1)))
+					chars[length++] = fold(source.charAt(++i));
+				else
+					literal = false;
+			}
+			else if(c == '.')
+			{
+				any[length] = true;
+				chars[length++] = c;
+				hasAny = true;
+			}
+			else if(METACHARS.indexOf(c) != -1)
+			{
+				literal = false;
+			}
+			else
+			{
+				chars[length++] = fold(c);
+			}
+		}
+
+		if(!literal)
+		{
+			_kind = REGEX;
+			_chars = null;
+			_any = null;
+			_pattern = Pattern.compile(source, ignoreCase ? Pattern.CASE_INSENSITIVE : 0);
+			return;
+		}
+
+		_chars = new char[length];
+		System.arraycopy(chars, 0, _chars, 0, length);
+		if(hasAny)
+		{
+			_any = new boolean[length];
+			System.arraycopy(any, 0, _any, 0, length);
+		}
+		else
+		{
+			_any = null;
+		}
+		_pattern = null;
+
+		if(anchorStart && anchorEnd)
+			_kind = EXACT;
+		else if(anchorStart)
+			_kind = PREFIX;
+		else if(anchorEnd)
+			_kind = SUFFIX;
+		else
+			_kind = SUBSTRING;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if the pattern can be found in <code>text</code>.
+	 */
+	boolean find(String text)
+	{
+		switch(_kind)
+		{
+			case MATCH_ALL:
+				return true;
+			case EXACT:
+				return text.length() == _chars.length && regionMatches(text, 0);
+			case PREFIX:
+				return text.length() >= _chars.length && regionMatches(text, 0);
+			case SUFFIX:
+				return text.length() >= _chars.length && regionMatches(text, text.length() - _chars.length);
+			case SUBSTRING:
+				final int last = text.length() - _chars.length;
+				for(int i = 0; i <= last; i++)
+				{
+					if(regionMatches(text, i))
+						return true;
+				}
+				return false;
+			default:
+				return _pattern.matcher(text).find();
+		}
+	}
+
+	/**
+	 * Returns one of the kind constants.
+	 */
+	int getKind()
+	{
+		return _kind;
+	}
+
+	/**
+	 * Returns the pattern exactly as it was passed in.
+	 */
+	String pattern()
+	{
+		return _source;
+	}
+
+	private boolean regionMatches(String text, int offset)
+	{
+		for(int i = 0; i < _chars.length; i++)
+		{
+			if(_any != null && _any[i])
+				continue;
+			if(fold(text.charAt(offset + i)) != _chars[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Lower-cases US-ASCII letters if the pattern ignores case,
+	 * like <code>Pattern.CASE_INSENSITIVE</code> does.
+	 */
+	private char fold(char c)
+	{
+		if(_ignoreCase && c >= 'A' && c <= 'Z')
+			return (char)(c + ('a' - 'A'));
+		else
+			return c;
+	}
+
+	private static boolean isEscaped(String source, int pos)
+	{
+		int backslashes = 0;
+		while(pos > 0 && source.charAt(--pos) == '\\')
+			backslashes++;
+
+		return backslashes % 2 == 1;
+	}
+}
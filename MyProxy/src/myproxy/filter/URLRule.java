@@ -19,14 +19,14 @@
  */
 package myproxy.filter;
 
-import java.util.regex.*;
+import java.util.regex.PatternSyntaxException;
 
 public final class URLRule
 {
 	private final int _id;
-	private final Pattern _host, _path;
+	private final URLPattern _host, _path;
 	private final String _comment;
-	private int _hitCount;
+	private int _hitCount, _savedHitCount;
 	
 	URLRule(int id, String hostPart, String pathPart, int hitCount, String comment) throws PatternSyntaxException
 	{
@@ -37,18 +37,13 @@ public final class URLRule
 		
 		if(hostPart != null)
 		{
-			// strip port 80 from host part
+			// strip port 80 from host part; there might be
+			// more characters behind it, as it is a regex
 			int pos = hostPart.indexOf(":80");
 			if(pos != -1)
-			{
-				// delete from a StringBuffer because there
-				// might be more characters, as it is a regex
-				StringBuffer newHost = new StringBuffer(hostPart);
-				newHost.delete(pos, pos + 3);
-				hostPart = newHost.toString();
-			}
+				hostPart = hostPart.substring(0, pos).concat(hostPart.substring(pos + 3));
 			
-			_host = Pattern.compile(hostPart, Pattern.CASE_INSENSITIVE);
+			_host = new URLPattern(hostPart, true);
 		}
 		else
 		{
@@ -56,33 +51,38 @@ public final class URLRule
 		}
 			
 		if(pathPart != null)
-			_path = Pattern.compile(pathPart);
+			_path = new URLPattern(pathPart, false);
 		else
 			_path = null;
 		
 		_hitCount = hitCount;
+		_savedHitCount = hitCount;
 		_comment = comment;
 	}
 	
+	/**
+	 * Creates a rule without patterns, which stands
+	 * for all entries of a <code>BlockListIndex</code>.
+	 */
+	URLRule(int id, String comment)
+	{
+		_id = id;
+		_host = null;
+		_path = null;
+		_hitCount = 0;
+		_comment = comment;
+	}
+	
+	/**
+	 * @param hostPart the request host, with port 80 already stripped
+	 */
 	boolean matches(String hostPart, String pathPart)
 	{
-		if(_host != null)
-		{
-			// strip port 80 from host part
-			if(hostPart.endsWith(":80"))
-				hostPart = hostPart.substring(0, hostPart.length() - 3);
-			
-			Matcher m = _host.matcher(hostPart);
-			if(!m.find())
-				return false;
-		}
+		if(_host != null && !_host.find(hostPart))
+			return false;
 		
-		if(_path != null && pathPart != null)
-		{
-			Matcher m = _path.matcher(pathPart);
-			if(!m.find())
-				return false;
-		}
+		if(_path != null && pathPart != null && !_path.find(pathPart))
+			return false;
 		
 		_hitCount++;
 		
@@ -115,11 +115,51 @@ public final class URLRule
 		return _hitCount;
 	}
 	
+	void countHit()
+	{
+		_hitCount++;
+	}
+	
 	void resetHitCount()
 	{
 		_hitCount = 0;
 	}
 	
+	void setHitCount(int hitCount)
+	{
+		_hitCount = hitCount;
+		_savedHitCount = hitCount;
+	}
+	
+	/**
+	 * Raises the hit count to <code>hitCount</code>, without counting it
+	 * as saved. Used to keep unsaved hits when the list is reloaded.
+	 * 
+	 * @return <tt>true</tt> if the hit count changed
+	 */
+	boolean mergeHitCount(int hitCount)
+	{
+		if(hitCount <= _hitCount)
+			return false;
+		
+		_hitCount = hitCount;
+		return true;
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the hit count changed
+	 * since the last call to <code>hitCountSaved()</code>.
+	 */
+	boolean hitCountChanged()
+	{
+		return _hitCount != _savedHitCount;
+	}
+	
+	void hitCountSaved()
+	{
+		_savedHitCount = _hitCount;
+	}
+	
 	public String getComment()
 	{
 		return _comment;
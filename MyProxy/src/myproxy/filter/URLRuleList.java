@@ -27,10 +27,12 @@ import java.util.*;
  * the list (add, remove, replace rules), finding a matching rule and
  * reading or writing the list via streams.
  */
-public final class URLRuleList
+public final class URLRuleList implements RuleList
 {
-	private final List _rules;
+	private List _rules;
 	private int _nextID;
+	private BlockListIndex _index;
+	private URLRule _indexRule;
 	
 	public URLRuleList()
 	{
@@ -50,9 +52,27 @@ public final class URLRuleList
 	 */
 	public synchronized URLRule get(int id)
 	{
+		if(_indexRule != null && _indexRule.getID() == id)
+			return _indexRule;
+		
 		return find(id);
 	}
 	
+	/**
+	 * Sets the compiled block list that is searched after all rules,
+	 * or removes it if <code>index</code> is <tt>null</tt>. All hits
+	 * in the index are reported as one rule with the given comment,
+	 * which keeps its ID when the index is replaced.
+	 */
+	public synchronized void setIndex(BlockListIndex index, String comment)
+	{
+		_index = index;
+		if(index != null)
+			_indexRule = new URLRule(_indexRule != null ? _indexRule.getID() : nextID(), comment);
+		else
+			_indexRule = null;
+	}
+	
 	/**
 	 * Returns <tt>true</tt> if the requested
 	 * rule was actually removed.
@@ -124,6 +144,10 @@ public final class URLRuleList
 	 */
 	public synchronized URLRule match(String hostPart, String pathPart)
 	{
+		// strip port 80 from host part once, not for every rule
+		if(hostPart.endsWith(":80"))
+			hostPart = hostPart.substring(0, hostPart.length() - 3);
+		
 		for(Iterator i = _rules.iterator(); i.hasNext();)
 		{
 			URLRule rule = (URLRule)i.next();
@@ -135,15 +159,66 @@ public final class URLRuleList
 			}
 		}
 		
+		if(_index != null && _index.matches(hostPart, pathPart))
+		{
+			_indexRule.countHit();
+			if(_indexRule.getHitCount() == Integer.MAX_VALUE)
+				_indexRule.resetHitCount();
+			return _indexRule;
+		}
+		
 		return null;
 	}
 	
-	public synchronized void read(InputStream in) throws IOException
+	public void read(InputStream in) throws IOException
+	{
+		load(in, null);
+	}
+	
+	/**
+	 * Replaces all rules with the ones read from <code>in</code>, and
+	 * applies the hit counts read from <code>journal</code>, which may
+	 * be <tt>null</tt>. The new rules are parsed without holding the lock
+	 * and swapped in as a whole, so <code>match()</code> neither waits for
+	 * the parser nor sees a partially read list. Hits that were counted
+	 * but not saved yet are kept for rules that are still in the list.
+	 */
+	public void load(InputStream in, InputStream journal) throws IOException
+	{
+		List rules = parse(in);
+		Map keys = keyMap(rules);
+		if(journal != null)
+			applyHitCounts(keys, journal);
+		
+		Object[] array = rules.toArray();
+		Arrays.sort(array, new URLRuleComparator(true, true));
+		
+		synchronized(this)
+		{
+			boolean merged = false;
+			for(Iterator i = _rules.iterator(); i.hasNext();)
+			{
+				URLRule oldRule = (URLRule)i.next();
+				if(!oldRule.hitCountChanged())
+					continue;
+				
+				URLRule rule = (URLRule)keys.get(ruleKey(oldRule));
+				if(rule != null && rule.mergeHitCount(oldRule.getHitCount()))
+					merged = true;
+			}
+			
+			if(merged)
+				Arrays.sort(array, new URLRuleComparator(true, true));
+			_rules = new Vector(Arrays.asList(array));
+		}
+	}
+	
+	private List parse(InputStream in) throws IOException
 	{
 		BufferedReader bin = new BufferedReader(new InputStreamReader(in));
+		List rules = new ArrayList();
 		String line;
 		
-		_rules.clear();
 		while((line = bin.readLine()) != null)
 		{
 			line = line.trim();
@@ -175,20 +250,10 @@ public final class URLRuleList
 			}
 			
 			if(hostPart != null)
-			{
-				StringBuffer buffer = new StringBuffer(hostPart);
-				while((pos = buffer.indexOf("%20")) != -1)
-					buffer.replace(pos, pos + 3, " ");
-				hostPart = buffer.toString();
-			}
+				hostPart = replaceAll(hostPart, "%20", " ");
 			
 			if(pathPart != null)
-			{
-				StringBuffer buffer = new StringBuffer(pathPart);
-				while((pos = buffer.indexOf("%20")) != -1)
-					buffer.replace(pos, pos + 3, " ");
-				pathPart = buffer.toString();
-			}
+				pathPart = replaceAll(pathPart, "%20", " ");
 
 			pos = line.indexOf(' ');
 			if(pos == -1)
@@ -201,10 +266,10 @@ public final class URLRuleList
 				comment = line.substring(pos + 1);
 			}
 			
-			_rules.add(new URLRule(nextID(), hostPart, pathPart, hitCount, comment));
+			rules.add(new URLRule(nextID(), hostPart, pathPart, hitCount, comment));
 		}
 		
-		sortByHitCount();
+		return rules;
 	}
 	
 	public synchronized void write(OutputStream out) throws IOException
@@ -214,25 +279,7 @@ public final class URLRuleList
 		for(Iterator i = _rules.iterator(); i.hasNext();)
 		{
 			URLRule rule = (URLRule)i.next();
-			StringBuffer buffer = new StringBuffer();
-			
-			if(rule.getHostPart() != null)
-			{
-				StringBuffer hostPart = new StringBuffer(rule.getHostPart());
-				int pos;
-				while((pos = hostPart.indexOf(" ")) != -1)
-					hostPart.replace(pos, pos + 1, "%20");
-				buffer.append(hostPart.toString());
-			}
-			
-			if(rule.getPathPart() != null)
-			{
-				StringBuffer pathPart = new StringBuffer(rule.getPathPart());
-				int pos;
-				while((pos = pathPart.indexOf(" ")) != -1)
-					pathPart.replace(pos, pos + 1, "%20");
-				buffer.append(';').append(pathPart.toString());
-			}
+			StringBuffer buffer = new StringBuffer(ruleKey(rule));
 			
 			buffer.append(' ').append(rule.getHitCount());
 			
@@ -242,11 +289,118 @@ public final class URLRuleList
 			String line = buffer.toString();
 			bout.write(line, 0, line.length());
 			bout.newLine();
+			rule.hitCountSaved();
 		}
 		
 		bout.flush();
 	}
+	
+	public synchronized boolean writeHitCounts(OutputStream out) throws IOException
+	{
+		BufferedWriter bout = new BufferedWriter(new OutputStreamWriter(out));
+		boolean written = false;
+		
+		for(Iterator i = _rules.iterator(); i.hasNext();)
+		{
+			URLRule rule = (URLRule)i.next();
+			if(!rule.hitCountChanged())
+				continue;
+			
+			String line = ruleKey(rule) + ' ' + rule.getHitCount();
+			bout.write(line, 0, line.length());
+			bout.newLine();
+			rule.hitCountSaved();
+			written = true;
+		}
+		
+		bout.flush();
+		return written;
+	}
+	
+	public synchronized void readHitCounts(InputStream in) throws IOException
+	{
+		applyHitCounts(keyMap(_rules), in);
+		sortByHitCount();
+	}
+	
+	private static Map keyMap(List rules)
+	{
+		Map keys = new HashMap();
+		
+		for(Iterator i = rules.iterator(); i.hasNext();)
+		{
+			URLRule rule = (URLRule)i.next();
+			keys.put(ruleKey(rule), rule);
+		}
+		
+		return keys;
+	}
+	
+	private static void applyHitCounts(Map keys, InputStream in) throws IOException
+	{
+		BufferedReader bin = new BufferedReader(new InputStreamReader(in));
+		String line;
+		
+		while((line = bin.readLine()) != null)
+		{
+			int pos = line.lastIndexOf(' ');
+			if(pos == -1)
+				continue;
+			
+			URLRule rule = (URLRule)keys.get(line.substring(0, pos));
+			if(rule == null)
+				continue;
+			
+			try
+			{
+				rule.setHitCount(Integer.parseInt(line.substring(pos + 1)));
+			}
+			catch(NumberFormatException e)
+			{
+				// incomplete last line
+			}
+		}
+	}
+	
+	/**
+	 * Returns the rule as it appears at the start of a line in the rule file.
+	 */
+	private static String ruleKey(URLRule rule)
+	{
+		StringBuffer buffer = new StringBuffer();
+		
+		if(rule.getHostPart() != null)
+			buffer.append(replaceAll(rule.getHostPart(), " ", "%20"));
+		
+		if(rule.getPathPart() != null)
+			buffer.append(';').append(replaceAll(rule.getPathPart(), " ", "%20"));
+		
+		return buffer.toString();
+	}
 
+	/**
+	 * Replaces all occurrences of <code>target</code> in one pass,
+	 * without copying <code>text</code> if there are none.
+	 */
+	private static String replaceAll(String text, String target, String replacement)
+	{
+		int pos = text.indexOf(target);
+		if(pos == -1)
+			return text;
+		
+		StringBuffer buffer = new StringBuffer(text.length());
+		int last = 0;
+		do
+		{
+			buffer.append(text.substring(last, pos)).append(replacement);
+			last = pos + target.length();
+		}
+		while((pos = text.indexOf(target, last)) != -1);
+		buffer.append(text.substring(last));
+		
+		return buffer.toString();
+	}
+	
 	private void resetHitCounts()
 	{
 		for(Iterator i = _rules.iterator(); i.hasNext();)
@@ -23,21 +23,37 @@ import java.io.IOException;
 import java.io.InputStream;
 
 /**
- * Converts an HTTP <tt>chunked</tt> encoded
- * stream into a linear stream of bytes.
+ * Converts an HTTP <tt>chunked</tt> encoded stream, or a stream of
+ * binary frames as described by <code>FrameHeader</code>, into a
+ * linear stream of bytes.
  */
 public final class ChunkedInputStream extends InputStream
 {
 	private InputStream _in;
 	private int _chunkSize, _bytesRead;
 	private String _extensions;
+	private boolean _binary;
+	private final FrameHeader _frame;
+	/** <tt>true</tt> once <code>_frame</code> describes the current chunk */
+	private boolean _framed;
 	
 	public ChunkedInputStream(InputStream in)
+	{
+		this(in, false);
+	}
+	
+	/**
+	 * @param binary <tt>true</tt> to read binary frames instead of chunks
+	 */
+	public ChunkedInputStream(InputStream in, boolean binary)
 	{
 		_in = in;
 		_chunkSize = 0;
 		_bytesRead = 0;
 		_extensions = null;
+		_binary = binary;
+		_frame = new FrameHeader();
+		_framed = false;
 	}
 
 	public void startChunk() throws IOException
@@ -47,6 +63,16 @@ public final class ChunkedInputStream extends InputStream
 		
 		_bytesRead = 0;
 		
+		if(_binary)
+		{
+			_frame.readFrom(_in);
+			_chunkSize = _frame.getLength();
+			_extensions = null;
+			_framed = true;
+			return;
+		}
+		
+		_framed = false;
 		String startLine = readLine();
 		int pos = startLine.indexOf(';');
 		if(pos == -1)
@@ -87,7 +113,7 @@ public final class ChunkedInputStream extends InputStream
 		if(data != -1)
 		{
 			_bytesRead++;
-			if(_bytesRead == _chunkSize)
+			if(_bytesRead == _chunkSize && !_binary)
 				readLine(); // discard trailing CRLF
 		}
 		
@@ -116,13 +142,73 @@ public final class ChunkedInputStream extends InputStream
 		if(read != -1)
 		{
 			_bytesRead += read;
-			if(_bytesRead == _chunkSize)
+			if(_bytesRead == _chunkSize && !_binary)
 				readLine(); // discard trailing CRLF
 		}
 		
 		return read;
 	}
 	
+	/**
+	 * Returns a stream over the rest of the current chunk, which reports
+	 * the end of the chunk as the end of the stream. Chunks marked with
+	 * <tt>MORE</tt> are followed into the next one. Closing the stream
+	 * skips whatever its reader left of the chunks.
+	 * 
+	 * @see ChunkedOutputStream#chainedStream(byte[], FrameHeader, int)
+	 */
+	public InputStream chunkStream()
+	{
+		return new InputStream()
+		{
+			public int read() throws IOException
+			{
+				return nextPart() ? ChunkedInputStream.this.read() : -1;
+			}
+			
+			public int read(byte[] b, int offset, int length) throws IOException
+			{
+				if(length == 0)
+					return 0;
+				return nextPart() ? ChunkedInputStream.this.read(b, offset, length) : -1;
+			}
+			
+			public int available() throws IOException
+			{
+				return Math.min(chunkLeft(), ChunkedInputStream.this.available());
+			}
+			
+			public void close() throws IOException
+			{
+				byte[] buffer = new byte[4096];
+				while(nextPart())
+				{
+					if(ChunkedInputStream.this.read(buffer) == -1)
+						throw new IOException("Unexpected end of stream.");
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Starts the next chunk if the current one is finished and
+	 * continues in the next one.
+	 * 
+	 * @return false if there is nothing left to read
+	 */
+	private boolean nextPart() throws IOException
+	{
+		if(chunkLeft() == 0 && frame().isMore())
+		{
+			int stream = _frame.getStream();
+			startChunk();
+			
+			if(frame().getType() != FrameHeader.CONTINUED || _binary && _frame.getStream() != stream)
+				throw new IOException("Chunk does not continue the one before.");
+		}
+		return chunkLeft() > 0;
+	}
+	
 	/**
 	 * Returns the number of bytes in the current chunk.
 	 * <tt>0</tt> means you hit the last chunk.
@@ -140,6 +226,20 @@ public final class ChunkedInputStream extends InputStream
 		return _chunkSize - _bytesRead;
 	}
 	
+	/**
+	 * Returns the description of this chunk, taken from its binary frame
+	 * header or its extensions. The same instance is returned for every chunk.
+	 */
+	public FrameHeader frame()
+	{
+		if(!_framed)
+		{
+			_frame.parse(_extensions);
+			_framed = true;
+		}
+		return _frame;
+	}
+	
 	/**
 	 * Verbosely returns the extensions on this chunk, or <tt>null</tt>.
 	 */
@@ -23,7 +23,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 /**
- * Converts a byte stream into an HTTP <tt>chunked</tt> encoded stream.
+ * Converts a byte stream into an HTTP <tt>chunked</tt> encoded stream,
+ * or into binary frames as described by <code>FrameHeader</code>.
  */
 public final class ChunkedOutputStream extends OutputStream
 {
@@ -32,22 +33,33 @@ public final class ChunkedOutputStream extends OutputStream
 	private OutputStream _out;
 	private int _chunkSize, _bytesWritten;
 	private String _extensions;
+	private boolean _binary;
+	private int _streams;
 	
 	public ChunkedOutputStream(OutputStream out)
+	{
+		this(out, false);
+	}
+	
+	/**
+	 * @param binary <tt>true</tt> to write binary frames instead of chunks
+	 */
+	public ChunkedOutputStream(OutputStream out, boolean binary)
 	{
 		_out = out;
 		_chunkSize = 0;
 		_bytesWritten = 0;
 		_extensions = null;
+		_binary = binary;
+		_streams = 0;
 	}
 	
 	public void startChunk(int size, String extensions) throws IOException
 	{
-		if(_bytesWritten != _chunkSize)
-			throw new IOException("Unfinished chunk.");
-			
-		_chunkSize = size;
-		_bytesWritten = 0;
+		if(_binary)
+			throw new IOException("Chunk extensions in binary frames.");
+		
+		begin(size);
 		_extensions = extensions;
 		_out.write(Integer.toHexString(size).getBytes("US-ASCII"));
 		if(_extensions != null)
@@ -58,13 +70,44 @@ public final class ChunkedOutputStream extends OutputStream
 		_out.write(CRLF);
 	}
 	
+	/**
+	 * Starts a chunk described by <code>frame</code>. Unless it is
+	 * <tt>CONTINUED</tt>, the chunk is given the next stream id.
+	 */
+	public void startChunk(int size, FrameHeader frame) throws IOException
+	{
+		if(frame.getType() != FrameHeader.CONTINUED && frame.getType() != FrameHeader.END)
+			frame.setStream(++_streams);
+		
+		if(!_binary)
+		{
+			startChunk(size, frame.toExtensions());
+			return;
+		}
+		
+		begin(size);
+		frame.writeTo(_out, size);
+	}
+	
+	private void begin(int size) throws IOException
+	{
+		if(_bytesWritten != _chunkSize)
+			throw new IOException("Unfinished chunk.");
+			
+		_chunkSize = size;
+		_bytesWritten = 0;
+	}
+	
 	/**
 	 * Writes the last chunk, flushes and
 	 * clears the reference to the original stream.
 	 */
 	public void close() throws IOException
 	{
-		startChunk(0, null);
+		if(_binary)
+			startChunk(0, new FrameHeader(FrameHeader.END));
+		else
+			startChunk(0, (String)null);
 		_out.flush();
 		_out = null;
 	}
@@ -105,6 +148,77 @@ public final class ChunkedOutputStream extends OutputStream
 		return _chunkSize - _bytesWritten;
 	}
 
+	/**
+	 * Returns a stream that sends <code>head</code> and everything
+	 * written to it as one or more chunks, without knowing the total
+	 * length in advance. At most <code>window</code> bytes are held
+	 * back at a time. The first chunk is described by <code>frame</code>,
+	 * the ones after it are <tt>CONTINUED</tt>, and every chunk but the
+	 * last is marked with <tt>MORE</tt>. Closing the stream sends the
+	 * last chunk, but leaves this stream open.
+	 * 
+	 * @see ChunkedInputStream#chunkStream()
+	 */
+	public OutputStream chainedStream(final byte[] head, final FrameHeader frame, final int window)
+	{
+		return new OutputStream()
+		{
+			private byte[] _buffer = new byte[head.length + window];
+			private int _count = head.length;
+			private boolean _first = true;
+			
+			{
+				System.arraycopy(head, 0, _buffer, 0, head.length);
+			}
+			
+			public void write(int b) throws IOException
+			{
+				if(_count == _buffer.length)
+					sendPart(true);
+				_buffer[_count++] = (byte)b;
+			}
+			
+			public void write(byte[] b, int offset, int length) throws IOException
+			{
+				while(length > 0)
+				{
+					if(_count == _buffer.length)
+						sendPart(true);
+					
+					int n = Math.min(length, _buffer.length - _count);
+					System.arraycopy(b, offset, _buffer, _count, n);
+					_count += n;
+					offset += n;
+					length -= n;
+				}
+			}
+			
+			public void close() throws IOException
+			{
+				if(_buffer != null)
+				{
+					sendPart(false);
+					_buffer = null;
+				}
+			}
+			
+			private void sendPart(boolean more) throws IOException
+			{
+				if(!_first)
+					frame.set(FrameHeader.CONTINUED, -1, 0);
+				frame.setMore(more);
+				startChunk(_count, frame);
+				ChunkedOutputStream.this.write(_buffer, 0, _count);
+				endChunk();
+				
+				_first = false;
+				_count = 0;
+				if(_buffer.length > window)
+					_buffer = new byte[window];
+			}
+		};
+	}
+
 	/**
 	 * End chunk with CRLF (cf. RFC 2616 3.6.1:
 	 *   chunk = chunk-size [ chunk-extension ] CRLF
@@ -112,6 +226,7 @@ public final class ChunkedOutputStream extends OutputStream
 	 * @throws IOException 
 	 */
 	public void endChunk() throws IOException {
-		_out.write(CRLF);
+		if(!_binary)
+			_out.write(CRLF);
 	}
 }
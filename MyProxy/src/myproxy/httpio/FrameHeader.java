@@ -0,0 +1,272 @@
+package myproxy.httpio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Describes one chunk of a prefetch response or of the validators the
+ * local end sends: its type, the URL it belongs to, the length of the
+ * message head at its start and how head and body are encoded.
+ *
+ * In chunked mode this is carried as chunk extensions. In binary mode,
+ * negotiated with <tt>framing=1</tt> in <tt>X-Accept-Prefetching</tt>,
+ * each chunk is preceded by a header of <code>SIZE</code> bytes instead:
+ *
+ * <pre>
+ * type(1) flags(1) head encoding(1) body encoding(1)
+ * stream id(4) URL index(4) head length(4) chunk length(4)
+ * </pre>
+ *
+ * with the numbers in network byte order. Instances are meant to be
+ * reused; reading and writing a binary header allocates nothing.
+ *
+ * @author dh
+ */
+public final class FrameHeader {
+	/** the version of binary framing, as negotiated */
+	public static final int VERSION = 1;
+
+	/** the size of a binary frame header */
+	public static final int SIZE = 20;
+
+	public static final int END = 0;
+	public static final int RESPONSE = 1;
+	public static final int URLLIST = 2;
+	public static final int PREFETCHED = 3;
+	public static final int VALIDATORS = 4;
+	/** the next part of a chunk marked with <code>MORE</code> */
+	public static final int CONTINUED = 5;
+	/** an entity that is not sent after all, with the reason as its data */
+	public static final int SKIPPED = 6;
+	/** sent by the local end when the browser has left the page */
+	public static final int CANCEL = 7;
+
+	private static final String[] TYPES = { null, "response", "urllist", "prefetched", "validators", "continued", "skipped", "cancel" };
+
+	/** flag for a chunk that goes on in the next one */
+	public static final int MORE = 0x01;
+
+	/** head and body encodings by their number in binary frames */
+	private static final String[] ENCODINGS = { null, "gzip", "dict", "deflate", "br", "zstd", "prefix" };
+
+	private int _type;
+	private int _flags;
+	private int _headEncoding;
+	private int _bodyEncoding;
+	private int _stream;
+	private int _url;
+	private int _headerLength;
+	private int _length;
+
+	private final byte[] _bytes = new byte[SIZE];
+
+	public FrameHeader() {
+		this(END);
+	}
+
+	public FrameHeader(int type) {
+		set(type, -1, 0);
+	}
+
+	/**
+	 * Starts over with a chunk of <code>type</code>, without flags or encodings.
+	 *
+	 * @param url the index of the URL in the URL list, or <tt>-1</tt>
+	 */
+	public void set(int type, int url, int headerLength) {
+		_type = type;
+		_url = url;
+		_headerLength = headerLength;
+		_flags = 0;
+		_headEncoding = 0;
+		_bodyEncoding = 0;
+	}
+
+	public int getType() {
+		return _type;
+	}
+
+	public String getTypeName() {
+		return _type > 0 && _type < TYPES.length ? TYPES[_type] : String.valueOf(_type);
+	}
+
+	public boolean isMore() {
+		return (_flags & MORE) != 0;
+	}
+
+	public void setMore(boolean more) {
+		_flags = more ? _flags | MORE : _flags & ~MORE;
+	}
+
+	public int getStream() {
+		return _stream;
+	}
+
+	public void setStream(int stream) {
+		_stream = stream;
+	}
+
+	/**
+	 * Returns the index of the URL in the URL list, or <tt>-1</tt>.
+	 */
+	public int getUrl() {
+		return _url;
+	}
+
+	/**
+	 * Returns the length of the head, or <tt>-1</tt> if the
+	 * chunk extensions did not name a valid one.
+	 */
+	public int getHeaderLength() {
+		return _headerLength;
+	}
+
+	/**
+	 * Returns the length of the chunk as read from a binary header.
+	 */
+	public int getLength() {
+		return _length;
+	}
+
+	public String getHeaderEncoding() {
+		return ENCODINGS[_headEncoding];
+	}
+
+	public void setHeaderEncoding(String encoding) {
+		_headEncoding = encoding(encoding);
+	}
+
+	public String getBodyEncoding() {
+		return ENCODINGS[_bodyEncoding];
+	}
+
+	public void setBodyEncoding(String encoding) {
+		_bodyEncoding = encoding(encoding);
+	}
+
+	private static int encoding(String name) {
+		if(name == null)
+			return 0;
+		for(int i = 1; i < ENCODINGS.length; i++) {
+			if(ENCODINGS[i].equals(name))
+				return i;
+		}
+		throw new IllegalArgumentException("No frame number for encoding " + name);
+	}
+
+	/**
+	 * Writes a binary header for a chunk of <code>length</code> bytes.
+	 */
+	public void writeTo(OutputStream out, int length) throws IOException {
+		_length = length;
+		_bytes[0] = (byte)_type;
+		_bytes[1] = (byte)_flags;
+		_bytes[2] = (byte)_headEncoding;
+		_bytes[3] = (byte)_bodyEncoding;
+		putInt(4, _stream);
+		putInt(8, _url);
+		putInt(12, _headerLength);
+		putInt(16, length);
+		out.write(_bytes, 0, SIZE);
+	}
+
+	/**
+	 * Reads a binary header.
+	 */
+	public void readFrom(InputStream in) throws IOException {
+		int offset = 0;
+		while(offset < SIZE) {
+			int read = in.read(_bytes, offset, SIZE - offset);
+			if(read == -1)
+				throw new IOException("Unexpected end of stream.");
+			offset += read;
+		}
+
+		_type = _bytes[0] & 0xff;
+		_flags = _bytes[1] & 0xff;
+		_headEncoding = _bytes[2] & 0xff;
+		_bodyEncoding = _bytes[3] & 0xff;
+		_stream = getInt(4);
+		_url = getInt(8);
+		_headerLength = getInt(12);
+		_length = getInt(16);
+
+		if(_headEncoding >= ENCODINGS.length || _bodyEncoding >= ENCODINGS.length)
+			throw new IOException("Unknown encoding in frame header.");
+		if(_length < 0 || _headerLength < 0 || _headerLength > _length)
+			throw new IOException("Invalid lengths in frame header.");
+	}
+
+	/**
+	 * Returns the chunk extensions describing this chunk, or
+	 * <tt>null</tt> for the last chunk.
+	 */
+	public String toExtensions() {
+		if(_type == END)
+			return null;
+
+		StringBuffer ext = new StringBuffer("type=").append(getTypeName());
+		if(_url != -1)
+			ext.append(";url=").append(_url);
+		if(_type == RESPONSE || _type == PREFETCHED)
+			ext.append(";header-length=").append(_headerLength);
+		if(_headEncoding != 0)
+			ext.append(";HE=").append(getHeaderEncoding());
+		if(_bodyEncoding != 0)
+			ext.append(";BE=").append(getBodyEncoding());
+		if(isMore())
+			ext.append(";more=1");
+		return ext.toString();
+	}
+
+	/**
+	 * Takes the description of a chunk from its extensions, which
+	 * may be <tt>null</tt> for the last chunk.
+	 */
+	public void parse(String extensions) {
+		set(END, -1, -1);
+		if(extensions == null)
+			return;
+
+		ChunkExtensions ext = new ChunkExtensions(extensions);
+		_type = -1;
+		for(int i = 1; i < TYPES.length; i++) {
+			if(TYPES[i].equals(ext.getType()))
+				_type = i;
+		}
+
+		_url = parseInt(ext.getUrl());
+		_headerLength = parseInt(ext.get("header-length"));
+		setMore("1".equals(ext.get("more")));
+		try {
+			setHeaderEncoding(ext.getHeaderEncoding());
+			setBodyEncoding(ext.getBodyEncoding());
+		} catch(IllegalArgumentException e) {
+			// leave it to the reader to reject the chunk
+			_type = -1;
+		}
+	}
+
+	private static int parseInt(String value) {
+		if(value == null)
+			return -1;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void putInt(int offset, int value) {
+		_bytes[offset] = (byte)(value >>> 24);
+		_bytes[offset + 1] = (byte)(value >>> 16);
+		_bytes[offset + 2] = (byte)(value >>> 8);
+		_bytes[offset + 3] = (byte)value;
+	}
+
+	private int getInt(int offset) {
+		return (_bytes[offset] & 0xff) << 24 | (_bytes[offset + 1] & 0xff) << 16
+			| (_bytes[offset + 2] & 0xff) << 8 | _bytes[offset + 3] & 0xff;
+	}
+}
@@ -26,6 +26,12 @@ import java.util.logging.*;
 
 /**
  * A container for HTTP headers.
+ *
+ * Copies made with <code>copyFrom()</code> share the headers of the
+ * original. Headers put into a shared instance are kept apart from the
+ * shared ones and looked up first, until the headers are read into or
+ * iterated over, so deriving many messages from one template costs no
+ * more than the headers that differ.
  */
 public final class Headers
 {
@@ -33,13 +39,78 @@ public final class Headers
 	private static final Pattern LIST_SEP = Pattern.compile("[ \\t]*,[ \\t]*");
 	private static final Logger _logger = Logger.getLogger("myproxy.httpio");
 	
-	private final LinkedHashMap _map;
+	private LinkedHashMap _map;
 	private final List _cookies;
 	
+	/** true while <code>_map</code> may be used by another instance, possibly in another thread */
+	private volatile boolean _shared;
+	
+	/**
+	 * The headers put while <code>_map</code> is shared, by key, with
+	 * <tt>null</tt> for removed ones; <tt>null</tt> if there are none.
+	 */
+	private LinkedHashMap _changes;
+	
 	public Headers()
 	{
 		_map = new LinkedHashMap();
 		_cookies = new Vector();
+		_shared = false;
+	}
+
+	/**
+	 * Replaces all headers and cookies with those of <code>template</code>.
+	 * The header lines are shared until either instance is changed.
+	 */
+	public void copyFrom(Headers template)
+	{
+		if(template == this)
+			return;
+		
+		if(template._changes != null)
+			template.own();
+		_map = template._map;
+		_changes = null;
+		_shared = true;
+		template._shared = true;
+		_cookies.clear();
+		_cookies.addAll(template._cookies);
+	}
+	
+	/**
+	 * Makes <code>_map</code> private to this instance, with the changes
+	 * made while it was shared. The header lines themselves are never
+	 * changed once stored.
+	 */
+	private void own()
+	{
+		if(_shared)
+		{
+			_map = new LinkedHashMap(_map);
+			if(_changes != null)
+			{
+				for(Iterator i = _changes.entrySet().iterator(); i.hasNext();)
+				{
+					Map.Entry change = (Map.Entry)i.next();
+					if(change.getValue() != null)
+						_map.put(change.getKey(), change.getValue());
+					else
+						_map.remove(change.getKey());
+				}
+				_changes = null;
+			}
+			_shared = false;
+		}
+	}
+	
+	/**
+	 * Returns the header line for <code>key</code>, or <tt>null</tt>.
+	 */
+	private StringBuffer line(String key)
+	{
+		if(_changes != null && _changes.containsKey(key))
+			return (StringBuffer)_changes.get(key);
+		return (StringBuffer)_map.get(key);
 	}
 
 	/**
@@ -48,7 +119,7 @@ public final class Headers
 	 */
 	public String get(String name)
 	{
-		return ((StringBuffer)_map.get(name.toLowerCase())).toString();
+		return line(name.toLowerCase()).toString();
 	}
 	
 	/**
@@ -56,7 +127,7 @@ public final class Headers
 	 */
 	public String getValue(String name)
 	{
-		StringBuffer header = (StringBuffer)_map.get(name.toLowerCase());
+		StringBuffer header = line(name.toLowerCase());
 		
 		if(header == null)
 			return null;
@@ -70,7 +141,7 @@ public final class Headers
 	 */
 	public String[] getValueList(String name)
 	{
-		StringBuffer header = (StringBuffer)_map.get(name.toLowerCase());
+		StringBuffer header = line(name.toLowerCase());
 		
 		if(header == null)
 			return null;
@@ -84,15 +155,28 @@ public final class Headers
 	 */
 	public void put(String name, String value)
 	{
+		String key = name.toLowerCase();
+		StringBuffer header = null;
 		if(value != null)
 		{
-			StringBuffer header = new StringBuffer(name.length() + value.length() + 2);
+			header = new StringBuffer(name.length() + value.length() + 2);
 			header.append(name).append(": ").append(value);
-			_map.put(name.toLowerCase(), header);
+		}
+		
+		if(_shared)
+		{
+			// kept apart, the shared headers are not copied for a few changes
+			if(_changes == null)
+				_changes = new LinkedHashMap(8);
+			_changes.put(key, header);
+		}
+		else if(header != null)
+		{
+			_map.put(key, header);
 		}
 		else
 		{
-			_map.remove(name.toLowerCase());
+			_map.remove(key);
 		}
 	}
 	
@@ -101,7 +185,7 @@ public final class Headers
 	 */
 	public boolean contains(String name)
 	{
-		return _map.containsKey(name.toLowerCase());
+		return line(name.toLowerCase()) != null;
 	}
 	
 	/**
@@ -109,7 +193,16 @@ public final class Headers
 	 */
 	public void clear()
 	{
-		_map.clear();
+		if(_shared)
+		{
+			_map = new LinkedHashMap();
+			_shared = false;
+		}
+		else
+		{
+			_map.clear();
+		}
+		_changes = null;
 		_cookies.clear();
 	}
 	
@@ -118,6 +211,7 @@ public final class Headers
 	 */
 	public Iterator iterator()
 	{
+		own();
 		final Iterator it = _map.values().iterator();
 		
 		return new Iterator() {
@@ -161,6 +255,8 @@ public final class Headers
 			headerList.add(headerLine);
 			headerLine = readLine(in);
 		}
+		
+		own();
 
 		for(int i = 0; i < headerList.size(); i++)
 		{
@@ -188,8 +284,8 @@ public final class Headers
 			}
 			else
 			{
-				// merge repeated header lines
-				header = (StringBuffer)_map.get(headerKey);
+				// merge repeated header lines, into a new line as the old one may be shared
+				header = new StringBuffer((StringBuffer)_map.get(headerKey));
 				if(!emptyValue)
 					header.append(", ").append(headerValue);
 			}
@@ -239,8 +335,22 @@ public final class Headers
 	 */
 	public void write(OutputStream out) throws IOException
 	{
-		for(Iterator i = iterator(); i.hasNext();)
-			writeLine((String)i.next(), out);
+		for(Iterator i = _map.keySet().iterator(); i.hasNext();)
+		{
+			StringBuffer header = line((String)i.next());
+			if(header != null)
+				writeLine(header.toString(), out);
+		}
+		if(_changes != null)
+		{
+			// headers added to the shared ones
+			for(Iterator i = _changes.entrySet().iterator(); i.hasNext();)
+			{
+				Map.Entry change = (Map.Entry)i.next();
+				if(change.getValue() != null && !_map.containsKey(change.getKey()))
+					writeLine(change.getValue().toString(), out);
+			}
+		}
 		for(Iterator i = _cookies.iterator(); i.hasNext();)
 			writeLine((String)i.next(), out);
 		out.write(CRLF);
@@ -80,6 +80,28 @@ public final class Request extends Message
 		}
 	}
 	
+	/**
+	 * Returns a request with the same request line and headers, which
+	 * shares the header lines with this one until either is changed.
+	 */
+	public Request copy()
+	{
+		Request copy = new Request();
+		copy._method = _method;
+		try
+		{
+			copy.setURI(_uri.getSource());
+		}
+		catch(MessageFormatException e)
+		{
+			// this one parsed the same URI already
+		}
+		copy.setVersion(getMajorVersion(), getMinorVersion());
+		copy.getHeaders().copyFrom(getHeaders());
+		copy.getTrailer().copyFrom(getTrailer());
+		return copy;
+	}
+	
 	public void read(InputStream in) throws IOException, MessageFormatException
 	{
 		clear();
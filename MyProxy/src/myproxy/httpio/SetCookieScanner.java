@@ -0,0 +1,181 @@
+/**
+ * This file is part of MyProxy.
+ * 
+ * Copyright (C) 2002 Alexander Dietrich
+ * 
+ * MyProxy is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MyProxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MyProxy; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package myproxy.httpio;
+
+/**
+ * Steps through the attributes of a <tt>Set-Cookie</tt> header
+ * without splitting it up. The scanner only keeps positions in the
+ * header string, so it can be reused for any number of cookies and
+ * allocates nothing unless a value is asked for as a string.
+ *
+ * Fields are separated by <tt>;</tt>, whitespace around the
+ * separator, the attribute name and the value is ignored, and empty
+ * fields are skipped.
+ */
+public final class SetCookieScanner
+{
+	private String _cookie;
+	private int _pos, _end;
+	private int _nameStart, _nameEnd, _valueStart, _valueEnd;
+	private int _firstStart, _firstEnd;
+	
+	/**
+	 * Starts scanning <code>cookie</code> at <code>offset</code>,
+	 * which usually skips <tt>"Set-Cookie: "</tt>. The first field,
+	 * the cookie itself, is consumed right away.
+	 */
+	public void reset(String cookie, int offset)
+	{
+		_cookie = cookie;
+		_end = cookie.length();
+		_pos = offset;
+		
+		scanField();
+		_firstStart = _nameStart;
+		_firstEnd = _valueStart >= 0 ? _valueEnd : _nameEnd;
+	}
+	
+	/**
+	 * Advances to the next attribute.
+	 * 
+	 * @return <tt>false</tt> if there are no more attributes
+	 */
+	public boolean next()
+	{
+		while(_pos < _end)
+		{
+			scanField();
+			if(_nameEnd > _nameStart || _valueStart >= 0)
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the current attribute is called
+	 * <code>name</code>, ignoring case.
+	 */
+	public boolean nameIs(String name)
+	{
+		return
+			_nameEnd - _nameStart == name.length() &&
+			_cookie.regionMatches(true, _nameStart, name, 0, name.length());
+	}
+	
+	/**
+	 * Returns <tt>false</tt> for attributes
+	 * without <tt>=</tt>, like <tt>secure</tt>.
+	 */
+	public boolean hasValue()
+	{
+		return _valueStart >= 0;
+	}
+	
+	/**
+	 * Returns the value of the current attribute, or <tt>null</tt>.
+	 */
+	public String value()
+	{
+		if(_valueStart < 0)
+			return null;
+		
+		return _cookie.substring(_valueStart, _valueEnd);
+	}
+	
+	/**
+	 * Returns the current attribute as it appears in the header.
+	 */
+	public String field()
+	{
+		return _cookie.substring(_nameStart, _valueStart >= 0 ? _valueEnd : _nameEnd);
+	}
+	
+	/**
+	 * Appends the cookie itself, the first field of the header.
+	 */
+	public void appendFirst(StringBuffer buffer)
+	{
+		buffer.append(_cookie.substring(_firstStart, _firstEnd));
+	}
+	
+	/**
+	 * Appends the current attribute with its name lowercased.
+	 */
+	public void appendLowerCase(StringBuffer buffer)
+	{
+		for(int i = _nameStart; i < _nameEnd; i++)
+			buffer.append(Character.toLowerCase(_cookie.charAt(i)));
+		
+		if(_valueStart >= 0)
+			buffer.append('=').append(_cookie.substring(_valueStart, _valueEnd));
+	}
+	
+	/**
+	 * Finds the boundaries of the field at <code>_pos</code>
+	 * and moves <code>_pos</code> behind its separator.
+	 */
+	private void scanField()
+	{
+		int pos = skipWhitespace(_pos);
+		int stop = _cookie.indexOf(';', pos);
+		if(stop == -1)
+			stop = _end;
+		
+		int equals = _cookie.indexOf('=', pos);
+		if(equals == -1 || equals > stop)
+		{
+			_nameStart = pos;
+			_nameEnd = trimEnd(pos, stop);
+			_valueStart = -1;
+			_valueEnd = -1;
+		}
+		else
+		{
+			_nameStart = pos;
+			_nameEnd = trimEnd(pos, equals);
+			_valueStart = skipWhitespace(equals + 1);
+			_valueEnd = trimEnd(_valueStart, stop);
+		}
+		
+		_pos = stop < _end ? stop + 1 : _end;
+	}
+	
+	private int skipWhitespace(int pos)
+	{
+		while(pos < _end && isWhitespace(_cookie.charAt(pos)))
+			pos++;
+		
+		return pos;
+	}
+	
+	private int trimEnd(int start, int end)
+	{
+		while(end > start && isWhitespace(_cookie.charAt(end - 1)))
+			end--;
+		
+		return end;
+	}
+	
+	private static boolean isWhitespace(char c)
+	{
+		return c == ' ' || c == '\t';
+	}
+}
@@ -0,0 +1,477 @@
+package myproxy.prefetching;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A compression format for entity bodies sent from the remote to the
+ * local end, named in the <tt>BE</tt> chunk extension.
+ *
+ * The local end lists the codecs it can decode in its
+ * <tt>X-Accept-Prefetching</tt> header as <tt>BE=name</tt> tokens, best
+ * first; the remote end uses the first one it knows as well. Besides
+ * <tt>gzip</tt> and <tt>deflate</tt>, <tt>zstd</tt> (zstd-jni) and
+ * <tt>br</tt> (Brotli4j) are offered if their libraries are on the
+ * class path.
+ *
+ * Codecs work on streams, so bodies are compressed and decompressed
+ * as they are copied and never held twice. The zlib based codecs take
+ * their <code>Deflater</code>s and <code>Inflater</code>s from the
+ * <code>ZipPool</code>; their streams must be closed to return them.
+ *
+ * @author dh
+ */
+public abstract class BodyCodec {
+	/** compress quickly, for data of doubtful compressibility */
+	public static final int FAST = 0;
+
+	/** compress well, for text */
+	public static final int DEFAULT = 1;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, 0 };
+
+	/** always available, for the URL list and the validators */
+	public static final BodyCodec GZIP = new GzipCodec();
+
+	/** all codecs that can be used, best first */
+	private static final List _codecs = new ArrayList();
+
+	static {
+		addIfAvailable(new ReflectiveCodec("zstd", null, "com.github.luben.zstd.ZstdOutputStream",
+			"com.github.luben.zstd.ZstdInputStream", 1, 3));
+		addIfAvailable(new ReflectiveCodec("br", "com.aayushatharva.brotli4j.Brotli4jLoader",
+			"com.aayushatharva.brotli4j.encoder.BrotliOutputStream",
+			"com.aayushatharva.brotli4j.decoder.BrotliInputStream", -1, -1));
+		_codecs.add(new DeflateCodec());
+		_codecs.add(GZIP);
+	}
+
+	private final String _name;
+
+	protected BodyCodec(String name) {
+		_name = name;
+	}
+
+	/**
+	 * Returns the name used in the <tt>BE</tt> chunk extension.
+	 */
+	public final String getName() {
+		return _name;
+	}
+
+	/**
+	 * Returns a stream that compresses into <code>out</code>.
+	 * Closing it finishes the compressed data and closes <code>out</code>.
+	 *
+	 * @param effort <code>FAST</code> or <code>DEFAULT</code>
+	 */
+	public abstract OutputStream compress(OutputStream out, int effort) throws IOException;
+
+	/**
+	 * Returns a stream that decompresses what it reads from <code>in</code>.
+	 */
+	public abstract InputStream decompress(InputStream in) throws IOException;
+
+	public String toString() {
+		return _name;
+	}
+
+	/**
+	 * Returns the codec called <code>name</code>, or
+	 * <tt>null</tt> if there is no such codec here.
+	 */
+	public static BodyCodec forName(String name) {
+		for(Iterator i = _codecs.iterator(); i.hasNext();) {
+			BodyCodec codec = (BodyCodec)i.next();
+			if(codec.getName().equals(name))
+				return codec;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the <tt>BE</tt> tokens for all codecs, best first,
+	 * to be listed in <tt>X-Accept-Prefetching</tt>.
+	 */
+	public static String acceptTokens() {
+		StringBuffer tokens = new StringBuffer();
+		for(Iterator i = _codecs.iterator(); i.hasNext();) {
+			if(tokens.length() > 0)
+				tokens.append(',');
+			tokens.append("BE=").append(((BodyCodec)i.next()).getName());
+		}
+		return tokens.toString();
+	}
+
+	/**
+	 * Returns the first codec of the <tt>BE</tt> tokens in an
+	 * <tt>X-Accept-Prefetching</tt> header that can be used here,
+	 * or <tt>null</tt> if bodies must not be compressed.
+	 */
+	public static BodyCodec negotiate(String acceptPrefetching) {
+		if(acceptPrefetching == null)
+			return null;
+
+		StringTokenizer tok = new StringTokenizer(acceptPrefetching, ", \t");
+		while(tok.hasMoreTokens()) {
+			String token = tok.nextToken();
+			if(token.startsWith("BE=")) {
+				BodyCodec codec = forName(token.substring(3));
+				if(codec != null)
+					return codec;
+			}
+		}
+		return null;
+	}
+
+	private static void addIfAvailable(ReflectiveCodec codec) {
+		if(codec.isAvailable())
+			_codecs.add(codec);
+	}
+
+	/**
+	 * gzip format, framed here around pooled raw deflate streams
+	 * since <code>java.util.zip</code> does not let its gzip streams
+	 * use a given <code>Deflater</code> or <code>Inflater</code>.
+	 */
+	private static final class GzipCodec extends BodyCodec {
+		GzipCodec() {
+			super("gzip");
+		}
+
+		public OutputStream compress(OutputStream out, int effort) throws IOException {
+			return new GzipOutputStream(out, level(effort));
+		}
+
+		public InputStream decompress(InputStream in) throws IOException {
+			return new GzipInputStream(in);
+		}
+	}
+
+	/**
+	 * zlib format, which saves the gzip header and CRC.
+	 */
+	private static final class DeflateCodec extends BodyCodec {
+		DeflateCodec() {
+			super("deflate");
+		}
+
+		public OutputStream compress(OutputStream out, int effort) throws IOException {
+			return new PooledDeflaterOutputStream(out, level(effort), false);
+		}
+
+		public InputStream decompress(InputStream in) throws IOException {
+			return new PooledInflaterInputStream(in, false);
+		}
+	}
+
+	private static int level(int effort) {
+		return effort == FAST ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION;
+	}
+
+	/**
+	 * Returns its deflater to the pool when it is closed; after that,
+	 * the deflater belongs to other streams and writing fails.
+	 */
+	private static class PooledDeflaterOutputStream extends DeflaterOutputStream {
+		private final int _level;
+		private final boolean _nowrap;
+
+		PooledDeflaterOutputStream(OutputStream out, int level, boolean nowrap) {
+			super(out, ZipPool.getDeflater(level, nowrap), BUFFER_SIZE);
+			_level = level;
+			_nowrap = nowrap;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			ensureOpen();
+			super.write(b, off, len);
+		}
+
+		public void finish() throws IOException {
+			ensureOpen();
+			super.finish();
+		}
+
+		public void close() throws IOException {
+			if(def == null)
+				return;
+
+			try {
+				finish();
+				out.close();
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Gives the deflater back to the pool, once.
+		 */
+		protected void release() {
+			if(def != null) {
+				ZipPool.release(def, _level, _nowrap);
+				def = null;
+			}
+		}
+
+		private void ensureOpen() throws IOException {
+			if(def == null)
+				throw new IOException("Stream closed.");
+		}
+	}
+
+	/**
+	 * Returns its inflater to the pool when it is closed; after that,
+	 * the inflater belongs to other streams and reading fails.
+	 */
+	private static class PooledInflaterInputStream extends InflaterInputStream {
+		private final boolean _nowrap;
+
+		PooledInflaterInputStream(InputStream in, boolean nowrap) {
+			super(in, ZipPool.getInflater(nowrap), BUFFER_SIZE);
+			_nowrap = nowrap;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			ensureOpen();
+			return super.read(b, off, len);
+		}
+
+		public int available() throws IOException {
+			ensureOpen();
+			return super.available();
+		}
+
+		public void close() throws IOException {
+			if(inf == null)
+				return;
+
+			try {
+				in.close();
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Gives the inflater back to the pool, once.
+		 */
+		protected void release() {
+			if(inf != null) {
+				ZipPool.release(inf, _nowrap);
+				inf = null;
+			}
+		}
+
+		private void ensureOpen() throws IOException {
+			if(inf == null)
+				throw new IOException("Stream closed.");
+		}
+
+		/**
+		 * Returns a stream over the input that the inflater has not
+		 * used, like the trailer that follows the deflate data.
+		 */
+		protected InputStream remainingInput() {
+			int remaining = inf.getRemaining();
+			if(remaining == 0)
+				return in;
+			return new SequenceInputStream(new ByteArrayInputStream(buf, len - remaining, remaining), in);
+		}
+	}
+
+	private static final class GzipOutputStream extends PooledDeflaterOutputStream {
+		private final CRC32 _crc;
+		private boolean _finished;
+
+		GzipOutputStream(OutputStream out, int level) throws IOException {
+			super(out, level, true);
+			_crc = new CRC32();
+			_finished = false;
+			try {
+				out.write(GZIP_HEADER);
+			} catch(IOException e) {
+				release();
+				throw e;
+			}
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			_crc.update(b, off, len);
+		}
+
+		public void finish() throws IOException {
+			if(_finished)
+				return;
+
+			_finished = true;
+			super.finish();
+			writeInt((int)_crc.getValue());
+			writeInt(def.getTotalIn());
+		}
+
+		private void writeInt(int value) throws IOException {
+			out.write(value & 0xff);
+			out.write((value >> 8) & 0xff);
+			out.write((value >> 16) & 0xff);
+			out.write((value >> 24) & 0xff);
+		}
+	}
+
+	private static final class GzipInputStream extends PooledInflaterInputStream {
+		private final CRC32 _crc;
+		private boolean _eof;
+
+		GzipInputStream(InputStream in) throws IOException {
+			super(in, true);
+			_crc = new CRC32();
+			_eof = false;
+			try {
+				readHeader(in);
+			} catch(IOException e) {
+				// the stream is not handed out, so nobody else would return the inflater
+				release();
+				throw e;
+			}
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(_eof)
+				return -1;
+
+			int read = super.read(b, off, len);
+			if(read == -1) {
+				_eof = true;
+				readTrailer();
+			} else {
+				_crc.update(b, off, read);
+			}
+			return read;
+		}
+
+		private void readHeader(InputStream in) throws IOException {
+			if(readByte(in) != 0x1f || readByte(in) != 0x8b || readByte(in) != 8)
+				throw new ZipException("Not in gzip format.");
+
+			int flags = readByte(in);
+			for(int i = 0; i < 6; i++)
+				readByte(in); // time, extra flags, OS
+
+			if((flags & 4) != 0) { // FEXTRA
+				int length = readByte(in) | (readByte(in) << 8);
+				for(int i = 0; i < length; i++)
+					readByte(in);
+			}
+			if((flags & 8) != 0) { // FNAME
+				while(readByte(in) != 0);
+			}
+			if((flags & 16) != 0) { // FCOMMENT
+				while(readByte(in) != 0);
+			}
+			if((flags & 2) != 0) { // FHCRC
+				readByte(in);
+				readByte(in);
+			}
+		}
+
+		private void readTrailer() throws IOException {
+			InputStream trailer = remainingInput();
+			if(readInt(trailer) != (int)_crc.getValue() || readInt(trailer) != inf.getTotalOut())
+				throw new ZipException("Corrupt gzip trailer.");
+		}
+
+		private static int readInt(InputStream in) throws IOException {
+			return readByte(in) | (readByte(in) << 8) | (readByte(in) << 16) | (readByte(in) << 24);
+		}
+
+		private static int readByte(InputStream in) throws IOException {
+			int b = in.read();
+			if(b == -1)
+				throw new EOFException("Unexpected end of gzip data.");
+			return b;
+		}
+	}
+
+	/**
+	 * A codec from an optional library, whose streams are
+	 * only known by the names of their classes.
+	 */
+	private static final class ReflectiveCodec extends BodyCodec {
+		private final int _fastLevel, _defaultLevel;
+		private Constructor _output, _outputWithLevel, _input;
+
+		/**
+		 * @param loaderClass a class whose <code>ensureAvailability()</code>
+		 * loads the native part of the library, or <tt>null</tt> if the
+		 * stream classes do that themselves
+		 * @param fastLevel the level for <code>FAST</code>, or -1 if
+		 * the output stream has no constructor that takes a level
+		 */
+		ReflectiveCodec(String name, String loaderClass, String outputClass, String inputClass, int fastLevel, int defaultLevel) {
+			super(name);
+			_fastLevel = fastLevel;
+			_defaultLevel = defaultLevel;
+
+			try {
+				if(loaderClass != null)
+					Class.forName(loaderClass).getMethod("ensureAvailability", new Class[0]).invoke(null, new Object[0]);
+
+				Class output = Class.forName(outputClass);
+				if(fastLevel >= 0)
+					_outputWithLevel = output.getConstructor(new Class[] { OutputStream.class, Integer.TYPE });
+				else
+					_output = output.getConstructor(new Class[] { OutputStream.class });
+				_input = Class.forName(inputClass).getConstructor(new Class[] { InputStream.class });
+			} catch(Throwable e) {
+				// not on the class path, or not usable on this platform
+				_input = null;
+			}
+		}
+
+		boolean isAvailable() {
+			return _input != null;
+		}
+
+		public OutputStream compress(OutputStream out, int effort) throws IOException {
+			if(_outputWithLevel != null)
+				return (OutputStream)create(_outputWithLevel,
+					new Object[] { out, new Integer(effort == FAST ? _fastLevel : _defaultLevel) });
+			return (OutputStream)create(_output, new Object[] { out });
+		}
+
+		public InputStream decompress(InputStream in) throws IOException {
+			return (InputStream)create(_input, new Object[] { in });
+		}
+
+		private static Object create(Constructor constructor, Object[] args) throws IOException {
+			try {
+				return constructor.newInstance(args);
+			} catch(InvocationTargetException e) {
+				if(e.getTargetException() instanceof IOException)
+					throw (IOException)e.getTargetException();
+				throw new IOException(e.getTargetException().toString());
+			} catch(Exception e) {
+				throw new IOException(e.toString());
+			}
+		}
+	}
+}
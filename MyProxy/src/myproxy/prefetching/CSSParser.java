@@ -16,18 +16,44 @@ public class CSSParser implements PrefetchingParser {
 	
 	
 	public List findURLsInResponse(URIParser baseUrl, String responseBody) throws MalformedURLException {
+		return EmbeddedURL.toURLs(findEmbeddedURLs(baseUrl, responseBody));
+	}
+	
+	public List findEmbeddedURLs(URIParser baseUrl, String responseBody) throws MalformedURLException {
+		return findEmbeddedURLs(baseUrl, responseBody, 0);
+	}
+	
+	/**
+	 * @param offset the offset of <code>responseBody</code> in its document
+	 */
+	List findEmbeddedURLs(URIParser baseUrl, String responseBody, int offset) throws MalformedURLException {
 		
 		Matcher matcher = URL_PATTERN.matcher(responseBody);
 		List matches = new ArrayList();
+		URLSet found = new URLSet();
 		URL context = new URL(baseUrl.getSource());
 		
 		while(matcher.find()) {
 			URL url = new URL(context, matcher.group(1));
-			if(url != null && !matches.contains(url.toExternalForm())) matches.add(url.toExternalForm());
+			String match = URLSet.normalize(url.toExternalForm());
+			// whatever is not recognized is most likely a background image
+			int type = isImport(responseBody, matcher.start()) ? EmbeddedURL.STYLESHEET : EmbeddedURL.typeOf(match, EmbeddedURL.IMAGE);
+			if(found.add(match))
+				matches.add(new EmbeddedURL(match, type, offset + matcher.start()));
 		}
 		
 		return matches;
 
 	}
+	
+	/**
+	 * Returns true if the <tt>url()</tt> at <code>start</code> follows <tt>@import</tt>.
+	 */
+	private static boolean isImport(String css, int start) {
+		int pos = start;
+		while(pos > 0 && Character.isWhitespace(css.charAt(pos - 1)))
+			pos--;
+		return pos >= 7 && css.regionMatches(true, pos - 7, "@import", 0, 7);
+	}
 
 }
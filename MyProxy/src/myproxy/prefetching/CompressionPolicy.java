@@ -0,0 +1,121 @@
+package myproxy.prefetching;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decides whether and how hard an entity body is compressed for the
+ * link to the local end, by its content type and content coding.
+ *
+ * Text is always compressed well. Media types that are compressed by
+ * their format and bodies with a content coding are sent as they are.
+ * For everything else a few samples of the body are taken, and it is
+ * compressed quickly only if the samples look compressible, judged by
+ * the entropy of their bytes.
+ *
+ * @author dh
+ */
+public final class CompressionPolicy {
+	/** returned by <code>getEffort()</code> for bodies to be sent as they are */
+	public static final int NONE = -1;
+
+	/** bodies smaller than this do not gain from compression */
+	private static final int MIN_SIZE = 256;
+
+	private static final int SAMPLES = 3;
+	private static final int SAMPLE_SIZE = 1024;
+
+	/** bits per byte above which a body is taken to be compressed already */
+	private static final double MAX_ENTROPY = 7.0;
+
+	/** content types, or prefixes ending with '/', of text */
+	private static final String[] TEXT_TYPES = {
+		"text/", "application/javascript", "application/x-javascript", "application/ecmascript",
+		"application/json", "application/xml", "application/xhtml+xml", "application/rss+xml",
+		"application/atom+xml", "image/svg+xml", "image/x-icon", "image/bmp"
+	};
+
+	/** content types, or prefixes ending with '/', whose format is compressed */
+	private static final String[] COMPRESSED_TYPES = {
+		"image/", "video/", "audio/", "font/woff", "font/woff2", "application/font-woff",
+		"application/zip", "application/gzip", "application/x-gzip", "application/x-compress",
+		"application/x-shockwave-flash", "application/x-rar-compressed", "application/x-7z-compressed"
+	};
+
+	private CompressionPolicy() {
+	}
+
+	/**
+	 * Returns <code>BodyCodec.FAST</code> or <code>BodyCodec.DEFAULT</code>
+	 * for bodies worth compressing, or <code>NONE</code>.
+	 */
+	public static int getEffort(String contentType, String contentEncoding, EntityBody body) throws IOException {
+		if(body.size() < MIN_SIZE)
+			return NONE;
+
+		if(contentEncoding != null && !contentEncoding.trim().equalsIgnoreCase("identity"))
+			return NONE;
+
+		String type = mediaType(contentType);
+		if(type != null) {
+			if(matches(type, TEXT_TYPES) || type.endsWith("+xml") || type.endsWith("+json"))
+				return BodyCodec.DEFAULT;
+			if(matches(type, COMPRESSED_TYPES))
+				return NONE;
+		}
+
+		return looksCompressible(body.asReadOnlyBuffer()) ? BodyCodec.FAST : NONE;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if samples from the start, middle and end
+	 * of <code>body</code> have a low enough entropy.
+	 */
+	static boolean looksCompressible(ByteBuffer body) {
+		int[] counts = new int[256];
+		int size = body.remaining();
+		int sampled = 0;
+
+		for(int sample = 0; sample < SAMPLES; sample++) {
+			int start = body.position() + (int)((long)Math.max(size - SAMPLE_SIZE, 0) * sample / (SAMPLES - 1));
+			int end = Math.min(start + SAMPLE_SIZE, body.limit());
+			for(int i = start; i < end; i++)
+				counts[body.get(i) & 0xff]++;
+			sampled += end - start;
+
+			if(size <= SAMPLE_SIZE)
+				break;
+		}
+
+		double entropy = 0;
+		for(int i = 0; i < counts.length; i++) {
+			if(counts[i] == 0)
+				continue;
+			double p = (double)counts[i] / sampled;
+			entropy -= p * Math.log(p);
+		}
+
+		return entropy / Math.log(2) <= MAX_ENTROPY;
+	}
+
+	/**
+	 * Returns the lower case media type without parameters.
+	 */
+	private static String mediaType(String contentType) {
+		if(contentType == null)
+			return null;
+
+		int pos = contentType.indexOf(';');
+		if(pos != -1)
+			contentType = contentType.substring(0, pos);
+		return contentType.trim().toLowerCase();
+	}
+
+	private static boolean matches(String type, String[] types) {
+		for(int i = 0; i < types.length; i++) {
+			if(types[i].endsWith("/") ? type.startsWith(types[i]) : type.equals(types[i]))
+				return true;
+		}
+		return false;
+	}
+}
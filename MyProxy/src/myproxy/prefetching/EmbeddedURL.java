@@ -0,0 +1,140 @@
+package myproxy.prefetching;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A URL found in a document, in its normalized form, tagged with the kind of resource it refers
+ * to and where in the document it was found.
+ *
+ * Embedded entities are ordered by how much the browser needs them to
+ * render the page: stylesheets first, then scripts that block rendering,
+ * fonts, other scripts and finally images, each in document order.
+ * Frames come last; they are only listed, not prefetched.
+ *
+ * @author dh
+ */
+public final class EmbeddedURL implements Comparable {
+	public static final int STYLESHEET = 0;
+	public static final int SCRIPT = 1;
+	public static final int FONT = 2;
+	public static final int IMAGE = 3;
+	public static final int OTHER = 4;
+	/** a frame, which belongs to the page but is a page of its own and not prefetched */
+	public static final int FRAME = 5;
+
+	private static final String[] FONT_EXTENSIONS = { ".woff", ".woff2", ".ttf", ".otf", ".eot" };
+	private static final String[] IMAGE_EXTENSIONS = { ".gif", ".jpg", ".jpeg", ".png", ".ico", ".svg", ".webp", ".bmp" };
+
+	private final String _url;
+	private final int _type;
+	private final int _offset;
+	private final boolean _blocking;
+
+	/**
+	 * @param offset where in the document the URL was found
+	 * @param blocking <tt>true</tt> for a script the browser has to run before it renders on
+	 */
+	public EmbeddedURL(String url, int type, int offset, boolean blocking) {
+		_url = URLSet.normalize(url);
+		_type = type;
+		_offset = offset;
+		_blocking = blocking;
+	}
+
+	public EmbeddedURL(String url, int type, int offset) {
+		this(url, type, offset, false);
+	}
+
+	public String getURL() {
+		return _url;
+	}
+
+	public int getType() {
+		return _type;
+	}
+
+	public int getOffset() {
+		return _offset;
+	}
+
+	public boolean isBlocking() {
+		return _blocking;
+	}
+
+	/**
+	 * Returns the priority class, lower ones first.
+	 */
+	public int getPriority() {
+		switch(_type) {
+		case STYLESHEET:
+			return 0;
+		case SCRIPT:
+			return _blocking ? 1 : 3;
+		case FONT:
+			return 2;
+		case IMAGE:
+			return 4;
+		case FRAME:
+			return 6;
+		default:
+			return 5;
+		}
+	}
+
+	/**
+	 * Orders by priority class, then by offset.
+	 */
+	public int compareTo(Object o) {
+		EmbeddedURL other = (EmbeddedURL)o;
+		if(getPriority() != other.getPriority())
+			return getPriority() - other.getPriority();
+		return _offset < other._offset ? -1 : (_offset == other._offset ? 0 : 1);
+	}
+
+	/**
+	 * Guesses the type of a resource from the extension of its URL.
+	 */
+	public static int typeOf(String url, int fallback) {
+		String path = url.toLowerCase();
+		int end = path.length();
+		if(path.indexOf('?') != -1)
+			end = path.indexOf('?');
+		if(path.indexOf('#') != -1 && path.indexOf('#') < end)
+			end = path.indexOf('#');
+		path = path.substring(0, end);
+
+		if(path.endsWith(".css"))
+			return STYLESHEET;
+		if(path.endsWith(".js"))
+			return SCRIPT;
+		if(endsWith(path, FONT_EXTENSIONS))
+			return FONT;
+		if(endsWith(path, IMAGE_EXTENSIONS))
+			return IMAGE;
+		return fallback;
+	}
+
+	private static boolean endsWith(String path, String[] extensions) {
+		for(int i = 0; i < extensions.length; i++) {
+			if(path.endsWith(extensions[i]))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the URLs of a list of <code>EmbeddedURL</code>s.
+	 */
+	public static List toURLs(List embeddedURLs) {
+		List urls = new ArrayList(embeddedURLs.size());
+		for(Iterator i = embeddedURLs.iterator(); i.hasNext();)
+			urls.add(((EmbeddedURL)i.next()).getURL());
+		return urls;
+	}
+
+	public String toString() {
+		return _url;
+	}
+}
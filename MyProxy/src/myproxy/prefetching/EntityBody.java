@@ -0,0 +1,302 @@
+package myproxy.prefetching;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Holds the body of a prefetched entity.
+ *
+ * Small bodies are kept in a byte array on the heap, medium ones in a
+ * direct <code>ByteBuffer</code>, and large ones in a temporary file
+ * that is mapped into memory for reading. A body starts out in the tier
+ * that suits its expected length and moves up a tier when it grows
+ * beyond it, so bodies of unknown length are only copied once per tier.
+ *
+ * Readers get read-only views of the body, never copies; several
+ * readers can use their views at the same time.
+ *
+ * @author dh
+ */
+public final class EntityBody {
+	/** bodies up to this size stay on the heap */
+	public static final int HEAP_LIMIT = 64 * 1024;
+
+	/** bodies larger than this go to a temporary file */
+	public static final int FILE_THRESHOLD = 1024 * 1024;
+
+	private byte[] _heap;
+	private ByteBuffer _direct;
+
+	private File _path;
+	private RandomAccessFile _file;
+	private FileChannel _channel;
+	private ByteBuffer _mapped;
+
+	private int _size;
+	private boolean _sealed;
+
+	public EntityBody() {
+		this(-1);
+	}
+
+	/**
+	 * @param expectedLength the length of the body if known, or -1
+	 */
+	public EntityBody(long expectedLength) {
+		_size = 0;
+		_sealed = false;
+
+		// a file is only opened once the first bytes arrive
+		if(expectedLength > FILE_THRESHOLD) {
+			_heap = null;
+		} else if(expectedLength > HEAP_LIMIT) {
+			_direct = ByteBuffer.allocateDirect((int)expectedLength);
+		} else {
+			_heap = new byte[expectedLength >= 0 ? (int)expectedLength : 4096];
+		}
+	}
+
+	public synchronized void write(byte[] buf, int off, int len) throws IOException {
+		if(_sealed)
+			throw new IOException("Entity body has already been completed.");
+
+		ensureCapacity((long)_size + len);
+
+		if(_heap != null) {
+			System.arraycopy(buf, off, _heap, _size, len);
+		} else if(_direct != null) {
+			_direct.put(buf, off, len);
+		} else {
+			ByteBuffer src = ByteBuffer.wrap(buf, off, len);
+			long pos = _size;
+			while(src.hasRemaining())
+				pos += _channel.write(src, pos);
+			_mapped = null;
+		}
+
+		_size += len;
+	}
+
+	public synchronized int size() {
+		return _size;
+	}
+
+	/**
+	 * Ends writing. A file-backed body is mapped into memory
+	 * and its file is closed and removed.
+	 */
+	public synchronized void seal() throws IOException {
+		if(_sealed)
+			return;
+
+		_sealed = true;
+		if(_channel != null) {
+			_mapped = _channel.map(FileChannel.MapMode.READ_ONLY, 0, _size);
+			_channel.close();
+			_file.close();
+			_channel = null;
+			_file = null;
+			_path.delete();
+		}
+	}
+
+	/**
+	 * Returns a read-only view of the body, positioned at its start.
+	 */
+	public synchronized ByteBuffer asReadOnlyBuffer() throws IOException {
+		if(_heap != null)
+			return ByteBuffer.wrap(_heap, 0, _size).asReadOnlyBuffer();
+
+		if(_direct != null) {
+			ByteBuffer view = _direct.duplicate();
+			view.flip();
+			return view.asReadOnlyBuffer();
+		}
+
+		if(_mapped == null) {
+			// nothing has been written, or the body has been discarded
+			if(_channel == null)
+				return ByteBuffer.allocate(0).asReadOnlyBuffer();
+			_mapped = _channel.map(FileChannel.MapMode.READ_ONLY, 0, _size);
+		}
+		return _mapped.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Gives up the body and what holds it, closing and removing its
+	 * file right away instead of when the body is collected. The body
+	 * is empty afterwards and cannot be written anymore; views that
+	 * readers already have stay valid.
+	 */
+	public synchronized void discard() {
+		_sealed = true;
+		_size = 0;
+		_heap = null;
+		_direct = null;
+		_mapped = null;
+		if(_channel != null) {
+			try {
+				_channel.close();
+				_file.close();
+			} catch(IOException e) {
+				// the file is gone anyway
+			}
+			_channel = null;
+			_file = null;
+			_path.delete();
+		}
+	}
+
+	/**
+	 * Returns a stream over a read-only view of the body.
+	 */
+	public InputStream openStream() throws IOException {
+		return new BufferInputStream(asReadOnlyBuffer());
+	}
+
+	/**
+	 * Returns a stream that appends to the body.
+	 */
+	public OutputStream openOutputStream() {
+		return new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte)b }, 0, 1);
+			}
+
+			public void write(byte[] buf, int off, int len) throws IOException {
+				EntityBody.this.write(buf, off, len);
+			}
+		};
+	}
+
+	/**
+	 * Writes the whole body to <code>out</code>.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] heap;
+		int size;
+		ByteBuffer view = null;
+
+		synchronized(this) {
+			heap = _heap;
+			size = _size;
+			if(heap == null)
+				view = asReadOnlyBuffer();
+		}
+
+		if(heap != null) {
+			out.write(heap, 0, size);
+			return;
+		}
+
+		byte[] buf = new byte[Math.min(8192, Math.max(size, 1))];
+		while(view.hasRemaining()) {
+			int len = Math.min(buf.length, view.remaining());
+			view.get(buf, 0, len);
+			out.write(buf, 0, len);
+		}
+	}
+
+	/**
+	 * Returns a copy of the body. Only for callers that
+	 * really need an array, like parsers working on strings.
+	 */
+	public byte[] toByteArray() throws IOException {
+		ByteBuffer view = asReadOnlyBuffer();
+		byte[] copy = new byte[view.remaining()];
+		view.get(copy);
+		return copy;
+	}
+
+	private void ensureCapacity(long capacity) throws IOException {
+		if(capacity > Integer.MAX_VALUE)
+			throw new IOException("Entity body too large.");
+
+		if(_heap != null) {
+			if(capacity <= _heap.length)
+				return;
+
+			if(capacity <= HEAP_LIMIT) {
+				byte[] heap = new byte[(int)Math.min(Math.max(capacity, _heap.length * 2L), HEAP_LIMIT)];
+				System.arraycopy(_heap, 0, heap, 0, _size);
+				_heap = heap;
+			} else if(capacity <= FILE_THRESHOLD) {
+				_direct = ByteBuffer.allocateDirect(growTo(capacity, HEAP_LIMIT));
+				_direct.put(_heap, 0, _size);
+				_heap = null;
+			} else {
+				openFile();
+				_channel.write(ByteBuffer.wrap(_heap, 0, _size), 0);
+				_heap = null;
+			}
+		} else if(_direct != null) {
+			if(capacity <= _direct.capacity())
+				return;
+
+			_direct.flip();
+			if(capacity <= FILE_THRESHOLD) {
+				ByteBuffer direct = ByteBuffer.allocateDirect(growTo(capacity, _direct.capacity()));
+				direct.put(_direct);
+				_direct = direct;
+			} else {
+				openFile();
+				while(_direct.hasRemaining())
+					_channel.write(_direct, _direct.position());
+				_direct = null;
+			}
+		} else if(_channel == null) {
+			openFile();
+		}
+	}
+
+	private static int growTo(long capacity, int current) {
+		return (int)Math.min(Math.max(capacity, current * 2L), FILE_THRESHOLD);
+	}
+
+	private void openFile() throws IOException {
+		_path = File.createTempFile("myproxy", ".body");
+		_file = new RandomAccessFile(_path, "rw");
+		_channel = _file.getChannel();
+
+		// where the platform allows it, the file disappears right away
+		// and lives on only as long as it is open or mapped
+		if(!_path.delete())
+			_path.deleteOnExit();
+	}
+
+	private static final class BufferInputStream extends InputStream {
+		private final ByteBuffer _buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			_buffer = buffer;
+		}
+
+		public int read() {
+			return _buffer.hasRemaining() ? _buffer.get() & 0xff : -1;
+		}
+
+		public int read(byte[] buf, int off, int len) {
+			if(!_buffer.hasRemaining())
+				return len == 0 ? 0 : -1;
+
+			len = Math.min(len, _buffer.remaining());
+			_buffer.get(buf, off, len);
+			return len;
+		}
+
+		public long skip(long n) {
+			int skipped = (int)Math.min(Math.max(n, 0), _buffer.remaining());
+			_buffer.position(_buffer.position() + skipped);
+			return skipped;
+		}
+
+		public int available() {
+			return _buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package myproxy.prefetching;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the message heads of one prefetch response, the main
+ * response and all prefetched ones, named <tt>HE=dict</tt> in the
+ * chunk extensions.
+ *
+ * Heads are a few hundred bytes each and mostly repeat each other, so
+ * compressing them one by one gains little. Instead, each head is
+ * deflated with the heads before it as preset dictionary, and both
+ * ends keep the same window of recent heads. The window starts out
+ * with common header text, so even the first head is shorter.
+ *
+ * Both ends need one instance per prefetch response, and the heads
+ * must be decompressed in the order they were compressed.
+ *
+ * @author dh
+ */
+public final class HeaderCodec {
+	/** the value of the <tt>HE</tt> chunk extension */
+	public static final String NAME = "dict";
+
+	/** deflate can look back 32 KB, but a few dozen heads are plenty */
+	private static final int WINDOW = 16 * 1024;
+
+	private static final byte[] SEED;
+
+	static {
+		String seed =
+			"HTTP/1.0 HTTP/1.1 200 OK\r\n301 Moved Permanently\r\n302 Found\r\n304 Not Modified\r\n" +
+			"404 Not Found\r\nDate: Mon, Tue, Wed, Thu, Fri, Sat, Sun, " +
+			"Jan Feb Mar Apr May Jun Jul Aug Sep Oct Nov Dec GMT\r\n" +
+			"Server: Apache/2.2 (Unix) Microsoft-IIS/6.0 nginx lighttpd\r\n" +
+			"X-Powered-By: PHP/5\r\nSet-Cookie: path=/; domain=; expires=\r\n" +
+			"Location: http://www.\r\nContent-Location: \r\nContent-Language: en\r\n" +
+			"Content-Encoding: gzip\r\nTransfer-Encoding: chunked\r\nConnection: close\r\nKeep-Alive: timeout=\r\n" +
+			"Vary: Accept-Encoding\r\nAccept-Ranges: bytes\r\nAge: 0\r\nVia: 1.1 \r\nP3P: CP=\"\r\n" +
+			"Pragma: no-cache\r\nCache-Control: private, public, no-cache, no-store, must-revalidate, max-age=\r\n" +
+			"Expires: \r\nLast-Modified: \r\nETag: \"\r\n" +
+			"Content-Type: image/gif\r\nContent-Type: image/jpeg\r\nContent-Type: image/png\r\n" +
+			"Content-Type: text/css\r\nContent-Type: application/x-javascript\r\nContent-Type: application/javascript\r\n" +
+			"Content-Type: text/html; charset=utf-8\r\nContent-Type: text/html; charset=iso-8859-1\r\n" +
+			"Content-Length: \r\n";
+		try {
+			SEED = seed.getBytes("ISO-8859-1");
+		} catch(java.io.UnsupportedEncodingException e) {
+			throw new Error(e.toString());
+		}
+	}
+
+	/** the most recent heads, the newest at the end */
+	private final byte[] _window;
+	private int _windowLength;
+
+	public HeaderCodec() {
+		_window = new byte[WINDOW];
+		remember(SEED, SEED.length);
+	}
+
+	public byte[] compress(byte[] head) {
+		Deflater deflater = ZipPool.getDeflater(Deflater.BEST_COMPRESSION, true);
+		try {
+			deflater.setDictionary(_window, 0, _windowLength);
+			deflater.setInput(head);
+			deflater.finish();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(head.length / 4 + 16);
+			byte[] buffer = new byte[512];
+			while(!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				out.write(buffer, 0, length);
+			}
+
+			remember(head, head.length);
+			return out.toByteArray();
+		} finally {
+			ZipPool.release(deflater, Deflater.BEST_COMPRESSION, true);
+		}
+	}
+
+	public byte[] decompress(byte[] data) throws IOException {
+		Inflater inflater = ZipPool.getInflater(true);
+		try {
+			inflater.setDictionary(_window, 0, _windowLength);
+			// raw inflate wants one byte more than the data to see its end
+			byte[] input = new byte[data.length + 1];
+			System.arraycopy(data, 0, input, 0, data.length);
+			inflater.setInput(input);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[1024];
+			while(!inflater.finished()) {
+				int length = inflater.inflate(buffer);
+				if(length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Truncated header block.");
+				out.write(buffer, 0, length);
+			}
+
+			byte[] head = out.toByteArray();
+			remember(head, head.length);
+			return head;
+		} catch(DataFormatException e) {
+			throw new IOException("Invalid header block: " + e.getMessage());
+		} finally {
+			ZipPool.release(inflater, true);
+		}
+	}
+
+	/**
+	 * Appends to the window, dropping the oldest bytes if it is full.
+	 */
+	private void remember(byte[] data, int length) {
+		if(length >= WINDOW) {
+			System.arraycopy(data, length - WINDOW, _window, 0, WINDOW);
+			_windowLength = WINDOW;
+			return;
+		}
+
+		int keep = Math.min(_windowLength, WINDOW - length);
+		System.arraycopy(_window, _windowLength - keep, _window, 0, keep);
+		System.arraycopy(data, 0, _window, keep, length);
+		_windowLength = keep + length;
+	}
+}
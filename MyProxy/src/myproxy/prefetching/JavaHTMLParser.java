@@ -6,6 +6,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import javax.swing.text.MutableAttributeSet;
 import javax.swing.text.html.HTML;
@@ -18,15 +19,27 @@ public class JavaHTMLParser implements PrefetchingParser {
 
 	
 	public List findURLsInResponse(URIParser baseUrl, String responseBody) throws MalformedURLException {
+		return EmbeddedURL.toURLs(findEmbeddedURLs(baseUrl, responseBody));
+	}
+	
+	public List findEmbeddedURLs(URIParser baseUrl, String responseBody) throws MalformedURLException {
 		final List matches = new ArrayList();
+		final Set found = new URLSet();
 		final URL context = new URL(baseUrl.getSource());
 
 		HTMLEditorKit.ParserCallback callback = 
 			new HTMLEditorKit.ParserCallback () {
+			// scripts in the head block rendering unless they say otherwise
+			private boolean inBody = false;
 			
 			private void parse(HTML.Tag tag, MutableAttributeSet attrSet, int pos) {
 				URL url = null; 
-				if (tag == HTML.Tag.IMG) {
+				int kind = EmbeddedURL.OTHER;
+				boolean blocking = false;
+				if (tag == HTML.Tag.BODY)
+					inBody = true;
+				else if (tag == HTML.Tag.IMG) {
+					kind = EmbeddedURL.IMAGE;
 					String src = (String)attrSet.getAttribute(HTML.Attribute.SRC);
 					if(src != null)
 						try {
@@ -39,6 +52,7 @@ public class JavaHTMLParser implements PrefetchingParser {
 					String rel = (String)attrSet.getAttribute(HTML.Attribute.REL);
 					String type = (String)attrSet.getAttribute(HTML.Attribute.TYPE);
 					String href = (String)attrSet.getAttribute(HTML.Attribute.HREF);
+					kind = EmbeddedURL.STYLESHEET;
 					if(href != null && (rel != null && rel.equals("stylesheet")) ||
 							(type != null && type.equals("text/css")) ) {
 						try {
@@ -50,6 +64,18 @@ public class JavaHTMLParser implements PrefetchingParser {
 				}
 				else if (tag == HTML.Tag.SCRIPT) {
 					String src = (String)attrSet.getAttribute(HTML.Attribute.SRC);
+					kind = EmbeddedURL.SCRIPT;
+					blocking = !inBody && !attrSet.isDefined("async") && !attrSet.isDefined("defer");
+					if(src!=null)
+						try {
+							url =  new URL(context, src);
+						} catch (MalformedURLException e) {
+							url = null;
+						}
+				}
+				else if (tag == HTML.Tag.FRAME || tag.toString().equals("iframe")) {
+					String src = (String)attrSet.getAttribute(HTML.Attribute.SRC);
+					kind = EmbeddedURL.FRAME;
 					if(src!=null)
 						try {
 							url =  new URL(context, src);
@@ -57,7 +83,7 @@ public class JavaHTMLParser implements PrefetchingParser {
 							url = null;
 						}
 				}
-				if(url != null && !matches.contains(url.toExternalForm())) matches.add(url.toExternalForm());
+				if(url != null && found.add(url.toExternalForm())) matches.add(new EmbeddedURL(url.toExternalForm(), kind, pos, blocking));
 			}
 			
 			public void handleStartTag(HTML.Tag tag, MutableAttributeSet attrSet, int pos) {
@@ -7,6 +7,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import au.id.jericho.lib.html.Element;
 import au.id.jericho.lib.html.HTMLElementName;
@@ -18,11 +19,18 @@ import myproxy.httpio.URIParser;
 public class JerichoHTMLParser implements PrefetchingParser {
 	
 	public List findURLsInResponse(URIParser baseUrl, String responseBody) throws MalformedURLException {
+		return EmbeddedURL.toURLs(findEmbeddedURLs(baseUrl, responseBody));
+	}
+	
+	public List findEmbeddedURLs(URIParser baseUrl, String responseBody) throws MalformedURLException {
 		final List matches = new ArrayList();
+		final Set found = new URLSet();
 		final URL context = new URL(baseUrl.getSource());
 		List tags;
 		URL url;
 		StartTag tag;
+		// scripts in the head block rendering unless they say otherwise
+		boolean inBody = false;
 		
 		try {
 			Source htmlSource = new Source(new StringReader(responseBody));
@@ -35,7 +43,9 @@ public class JerichoHTMLParser implements PrefetchingParser {
 			for (i=tags.iterator(); i.hasNext();) {
 				tag=(StartTag)i.next();
 				
-				if(tag.getName() == HTMLElementName.LINK) {
+				if(tag.getName() == HTMLElementName.BODY)
+					inBody = true;
+				else if(tag.getName() == HTMLElementName.LINK) {
 				
 					String rel = tag.getAttributeValue("rel");
 					String type = tag.getAttributeValue("type");
@@ -44,14 +54,14 @@ public class JerichoHTMLParser implements PrefetchingParser {
 							(type != null && type.equals("text/css")) ) {
 						try {
 							url =  new URL(context, href);
-							if(url != null && !matches.contains(url.toExternalForm())) matches.add(url.toExternalForm());
+							add(matches, found, new EmbeddedURL(url.toExternalForm(), EmbeddedURL.STYLESHEET, tag.getBegin()));
 						} catch (MalformedURLException e) {	}
 					}
 				}
 				else if(tag.getName() == HTMLElementName.IMG) {
 					try {
 						url =  new URL(context, tag.getAttributeValue("src"));
-						if(url != null && !matches.contains(url.toExternalForm())) matches.add(url.toExternalForm());
+						add(matches, found, new EmbeddedURL(url.toExternalForm(), EmbeddedURL.IMAGE, tag.getBegin()));
 					} catch (MalformedURLException e) {	}
 				}
 				else if(tag.getName() == HTMLElementName.SCRIPT) {
@@ -59,7 +69,18 @@ public class JerichoHTMLParser implements PrefetchingParser {
 						String src = tag.getAttributeValue("src");
 						if(src!=null) {
 							url =  new URL(context, src);
-							if(url != null && !matches.contains(url.toExternalForm())) matches.add(url.toExternalForm());
+							boolean blocking = !inBody && tag.getAttributes().get("async") == null && tag.getAttributes().get("defer") == null;
+							add(matches, found, new EmbeddedURL(url.toExternalForm(), EmbeddedURL.SCRIPT, tag.getBegin(), blocking));
+						}
+					} catch (MalformedURLException e) {	}
+				}
+				
+				else if(tag.getName() == HTMLElementName.FRAME || tag.getName() == HTMLElementName.IFRAME) {
+					try {
+						String src = tag.getAttributeValue("src");
+						if(src!=null) {
+							url =  new URL(context, src);
+							add(matches, found, new EmbeddedURL(url.toExternalForm(), EmbeddedURL.FRAME, tag.getBegin()));
 						}
 					} catch (MalformedURLException e) {	}
 				}
@@ -74,11 +95,9 @@ public class JerichoHTMLParser implements PrefetchingParser {
 					String cssContents = responseBody.substring(start, end); 
 					
 					CSSParser cssParser = new CSSParser();
-					List urlsInCSS = cssParser.findURLsInResponse(baseUrl, cssContents);
-					for(Iterator it=urlsInCSS.iterator();it.hasNext();) {
-						String cssURL = (String)it.next();
-						if(cssURL != null && !matches.contains(cssURL)) matches.add(cssURL);
-					}
+					List urlsInCSS = cssParser.findEmbeddedURLs(baseUrl, cssContents, start);
+					for(Iterator it=urlsInCSS.iterator();it.hasNext();)
+						add(matches, found, (EmbeddedURL)it.next());
 				}
 				
 				// look for urls contained in the STYLE="..." attributes of all tags
@@ -99,5 +118,10 @@ public class JerichoHTMLParser implements PrefetchingParser {
 		}
 		return matches;
 	}
+	
+	private static void add(List matches, Set found, EmbeddedURL url) {
+		if(found.add(url.getURL()))
+			matches.add(url);
+	}
 
 }
@@ -0,0 +1,228 @@
+package myproxy.prefetching;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers which entities the browser requested after a page, with how
+ * often it did so, for the <tt>learned</tt> prefetching strategy. This
+ * includes entities a script loads, which no parser finds in the page.
+ *
+ * A request counts as a visit of a page if the browser accepts HTML for
+ * it, and as a request for an entity of the page named in its
+ * <tt>Referer</tt> otherwise. The least recently visited pages are
+ * forgotten beyond <code>maxPages</code>, the least frequent entities
+ * of a page beyond <code>MAX_ENTITIES</code>.
+ *
+ * The history is kept in a text file, each page on a line with its
+ * visits, followed by a line for each entity with its count, indented
+ * by a tab.
+ *
+ * @author dh
+ */
+public final class PageHistory {
+	private static final Logger _logger = Logger.getLogger("myproxy");
+
+	/** the most entities remembered for a page */
+	private static final int MAX_ENTITIES = 128;
+
+	/** the share of visits an entity must have been requested in to be prefetched */
+	private static final double MIN_SHARE = 0.25;
+
+	private final File _file;
+	private final int _maxPages;
+
+	/** page URLs to their <code>Page</code>, the least recently visited first */
+	private final LinkedHashMap _pages;
+
+	private boolean _modified;
+
+	private static final class Page {
+		int _visits;
+		/** entity URLs to their count as <code>int[1]</code> */
+		final Map _entities = new HashMap();
+	}
+
+	public PageHistory(File file, int maxPages) {
+		_file = file;
+		_maxPages = maxPages;
+		_pages = new LinkedHashMap(64, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > _maxPages;
+			}
+		};
+		_modified = false;
+
+		if(_file.exists()) {
+			try {
+				load();
+			} catch(IOException e) {
+				_logger.logp(Level.WARNING, "PageHistory", "PageHistory", "Cannot read page history: " + _file, e);
+			}
+		}
+	}
+
+	/**
+	 * Counts a visit of <code>page</code>.
+	 */
+	public synchronized void pageRequested(String page) {
+		Page p = (Page)_pages.get(page);
+		if(p == null) {
+			p = new Page();
+			_pages.put(page, p);
+		}
+		p._visits++;
+		_modified = true;
+	}
+
+	/**
+	 * Counts a request for <code>url</code> after <code>page</code>,
+	 * if the page has been visited.
+	 */
+	public synchronized void entityRequested(String page, String url) {
+		Page p = (Page)_pages.get(page);
+		if(p == null || url.equals(page))
+			return;
+
+		int[] count = (int[])p._entities.get(url);
+		if(count == null) {
+			if(p._entities.size() >= MAX_ENTITIES)
+				forgetLeastFrequent(p);
+			count = new int[1];
+			p._entities.put(url, count);
+		}
+		// once per visit is enough
+		if(count[0] < p._visits)
+			count[0]++;
+		_modified = true;
+	}
+
+	/**
+	 * Returns the URLs the browser requested after <code>page</code> in at
+	 * least <code>MIN_SHARE</code> of its visits, the most frequent first.
+	 */
+	public synchronized List predict(String page) {
+		Page p = (Page)_pages.get(page);
+		if(p == null || p._visits == 0)
+			return Collections.EMPTY_LIST;
+
+		List entries = new ArrayList();
+		for(Iterator i = p._entities.entrySet().iterator(); i.hasNext();) {
+			Map.Entry entry = (Map.Entry)i.next();
+			if(((int[])entry.getValue())[0] >= MIN_SHARE * p._visits)
+				entries.add(entry);
+		}
+		Collections.sort(entries, BY_COUNT);
+
+		List urls = new ArrayList(entries.size());
+		for(Iterator i = entries.iterator(); i.hasNext();)
+			urls.add(((Map.Entry)i.next()).getKey());
+		return urls;
+	}
+
+	private static final Comparator BY_COUNT = new Comparator() {
+		public int compare(Object o1, Object o2) {
+			return ((int[])((Map.Entry)o2).getValue())[0] - ((int[])((Map.Entry)o1).getValue())[0];
+		}
+	};
+
+	private static void forgetLeastFrequent(Page p) {
+		Object least = null;
+		int leastCount = Integer.MAX_VALUE;
+		for(Iterator i = p._entities.entrySet().iterator(); i.hasNext();) {
+			Map.Entry entry = (Map.Entry)i.next();
+			int count = ((int[])entry.getValue())[0];
+			if(count < leastCount) {
+				least = entry.getKey();
+				leastCount = count;
+			}
+		}
+		p._entities.remove(least);
+	}
+
+	/**
+	 * Writes the history to its file, if it has changed.
+	 */
+	public void save() {
+		StringBuffer text = new StringBuffer();
+		synchronized(this) {
+			if(!_modified)
+				return;
+
+			for(Iterator i = _pages.entrySet().iterator(); i.hasNext();) {
+				Map.Entry page = (Map.Entry)i.next();
+				Page p = (Page)page.getValue();
+				text.append(page.getKey()).append('\t').append(p._visits).append('\n');
+				for(Iterator j = p._entities.entrySet().iterator(); j.hasNext();) {
+					Map.Entry entity = (Map.Entry)j.next();
+					text.append('\t').append(entity.getKey()).append('\t').append(((int[])entity.getValue())[0]).append('\n');
+				}
+			}
+			_modified = false;
+		}
+
+		// replace the file only once the new one is complete
+		File temp = new File(_file.getPath() + ".tmp");
+		try {
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+			out.write(text.toString());
+			out.close();
+			if(!temp.renameTo(_file)) {
+				_file.delete();
+				if(!temp.renameTo(_file))
+					throw new IOException("Cannot rename " + temp);
+			}
+		} catch(IOException e) {
+			_logger.logp(Level.WARNING, "PageHistory", "save", "Cannot write page history: " + _file, e);
+		}
+	}
+
+	private void load() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(_file), "UTF-8"));
+		try {
+			Page p = null;
+			String line;
+			while((line = in.readLine()) != null) {
+				boolean entity = line.startsWith("\t");
+				int tab = line.lastIndexOf('\t');
+				if(tab <= 0)
+					continue;
+
+				String url = line.substring(entity ? 1 : 0, tab);
+				int count;
+				try {
+					count = Integer.parseInt(line.substring(tab + 1));
+				} catch(NumberFormatException e) {
+					continue;
+				}
+
+				if(!entity) {
+					p = new Page();
+					p._visits = count;
+					_pages.put(url, p);
+				} else if(p != null && p._entities.size() < MAX_ENTITIES) {
+					p._entities.put(url, new int[] { count });
+				}
+			}
+		} finally {
+			in.close();
+		}
+		_logger.logp(Level.CONFIG, "PageHistory", "load", "Page history read with " + _pages.size() + " pages.");
+	}
+}
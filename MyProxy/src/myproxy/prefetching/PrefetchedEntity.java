@@ -5,6 +5,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,8 +27,8 @@ import myproxy.httpio.URIParser;
  */
 public class PrefetchedEntity {
 	
-	/** the buffer which contains the entity's body  */
-	private ByteArrayOutputStream _buffer;
+	/** the entity's body, created when the body starts to arrive */
+	private EntityBody _body;
 	
 	/** the response headers */
 	private Response _response;
@@ -42,13 +43,15 @@ public class PrefetchedEntity {
 	
 	/** Timestamp when this entity was completed */
 	private Date _completedAt;
+	
+	/** is given the body as it arrives, if set */
+	private OutputStream _observer;
 
 	// use this constructor for PrefetchedEntities which are storage containers
 	// on the local end
 	public PrefetchedEntity() {
 		_request = new Request();
 		_response = new Response();
-		_buffer = new ByteArrayOutputStream();
 		_completed = false;
 	}
 	
@@ -58,7 +61,6 @@ public class PrefetchedEntity {
 		_request = request;
 		_uri = _request.getURI().getSource();
 		_response = new Response();
-		_buffer = new ByteArrayOutputStream();
 		_completed = false;
 	}
 
@@ -75,6 +77,7 @@ public class PrefetchedEntity {
 		final int bufsize = 4096;
 		byte[] buf = new byte[bufsize];
 		int read = 0;
+		EntityBody body = body(length);
 		
 		if(length != -1)
 		{
@@ -83,50 +86,89 @@ public class PrefetchedEntity {
 				read = in.read(buf, 0, ((int)length>bufsize)?bufsize:(int)length);
 				if(read == -1)
 					throw new IOException("Unexpected end of stream.");
-				String buffer = buf.toString();
-				_buffer.write(buf, 0, read);
+				append(body, buf, read);
 				length -= read;
 			}
 		}
 		else
 		{
 			while((read = in.read(buf)) != -1)
-				_buffer.write(buf, 0, read);
+				append(body, buf, read);
 		}
-		_buffer.flush();
 	}
 	
 	public void write(byte [] buf) throws IOException {
-		_buffer.write(buf);
+		append(body(-1), buf, buf.length);
+	}
+	
+	private void append(EntityBody body, byte[] buf, int length) throws IOException {
+		body.write(buf, 0, length);
+		if(_observer != null)
+			_observer.write(buf, 0, length);
 	}
 	
-	public byte[] getBuffer() throws IOException {
-		return _buffer.toByteArray();
+	/**
+	 * Sets a stream that is given the body as it arrives, besides
+	 * the entity keeping it.
+	 */
+	public void setObserver(OutputStream observer) {
+		_observer = observer;
+	}
+	
+	/**
+	 * @return the number of body bytes held by this entity
+	 */
+	public int size() {
+		return _body != null ? _body.size() : 0;
+	}
+	
+	/**
+	 * Returns the body without copying it; use its read-only
+	 * views or <code>writeTo()</code> to get at the contents.
+	 */
+	public EntityBody getBody() {
+		return body(0);
+	}
+	
+	/**
+	 * Return the body contents as a stream, uncompressing
+	 * them on the fly if they are gzip-encoded
+	 * 
+	 * @throws IOException
+	 */
+	public InputStream openStreamUncompressed() throws IOException {
+		if(isGzipped())
+			return new GZIPInputStream(getBody().openStream(), 8192);
+		return getBody().openStream();
 	}
 	
 	/**
-	 * Return the (potentially unencrypted) body contents
+	 * Return the (potentially compressed) body contents uncompressed
 	 * 
 	 * @return Array of bytes containing the body 
 	 * @throws IOException
 	 */
 	public byte[] getBufferUncompressed() throws IOException {
-		if(_response != null) {
-			String contentEncoding = _response.getHeaders().getValue("Content-Encoding");
-			if(contentEncoding != null && contentEncoding.equals("gzip")) {
-				GZIPInputStream gzipIn = new GZIPInputStream(new ByteArrayInputStream(_buffer.toByteArray()));
-				ByteArrayOutputStream baos = new ByteArrayOutputStream(_buffer.size()); // conservative assumption
-				byte[] buf = new byte[8192];
-				int read = 0;
-				while( (read = gzipIn.read(buf)) > 0) {
-					baos.write(buf, 0, read);
-				}
-				gzipIn.close();
-				return baos.toByteArray();
-			}
-		}
+		if(!isGzipped())
+			return getBody().toByteArray();
 		
-		return _buffer.toByteArray();
+		InputStream in = openStreamUncompressed();
+		// at least the compressed size; large bodies grow the buffer as they inflate
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.min(Math.max(size(), 1024), 64 * 1024));
+		byte[] buf = new byte[8192];
+		int read = 0;
+		while( (read = in.read(buf)) > 0) {
+			baos.write(buf, 0, read);
+		}
+		in.close();
+		return baos.toByteArray();
+	}
+	
+	private boolean isGzipped() {
+		if(_response == null)
+			return false;
+		String contentEncoding = _response.getHeaders().getValue("Content-Encoding");
+		return contentEncoding != null && contentEncoding.equals("gzip");
 	}
 
 	public Request getRequest() {
@@ -143,6 +185,7 @@ public class PrefetchedEntity {
 
 	public void writeChunks(InputStream in) throws IOException {
 		ChunkedInputStream  cin  = new ChunkedInputStream(in);
+		EntityBody body = body(-1);
 		
 		byte[] buf = new byte[4096];
 		int read = 0;
@@ -155,7 +198,7 @@ public class PrefetchedEntity {
 				read = cin.read(buf);
 				if(read == -1)
 					throw new IOException("Unexpected end of stream.");
-				_buffer.write(buf, 0, read);
+				append(body, buf, read);
 			}
 			cin.startChunk();
 		}
@@ -170,6 +213,29 @@ public class PrefetchedEntity {
 	public void setCompleted(boolean _completed) {
 		this._completed = _completed;
 		this._completedAt = new Date();
+		
+		if(_completed && _body != null) {
+			try {
+				_body.seal();
+			} catch(IOException e) {
+				Logger.getLogger("myproxy").log(Level.WARNING, "Cannot complete entity body of " + _uri, e);
+			}
+		}
+	}
+	
+	/**
+	 * Gives up the body of an entity whose fetch failed or was
+	 * cancelled, without waiting for it to be collected.
+	 */
+	public synchronized void discardBody() {
+		if(_body != null)
+			_body.discard();
+	}
+	
+	private synchronized EntityBody body(long expectedLength) {
+		if(_body == null)
+			_body = new EntityBody(expectedLength);
+		return _body;
 	}
 	
 	public Date getCompletedAt() {
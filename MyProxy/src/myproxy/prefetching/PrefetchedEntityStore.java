@@ -1,77 +1,266 @@
 package myproxy.prefetching;
 
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 /**
  * Singleton store of prefetched entities
- * 
+ *
+ * The store is bounded by a total byte budget. Entities are kept in
+ * least recently used order and the oldest ones are evicted as soon as
+ * a new entity would exceed the budget; entities larger than the
+ * per-entry limit are not kept at all. Entities also expire some time
+ * after they were completed, since they were only fetched for one
+ * page load. All housekeeping happens when entities are stored, never
+ * when they are requested.
+ *
+ * Pages loaded at the same time often share entities. An entity is
+ * only announced once: further announcements join the first one and
+ * are counted, and the announcement is only given up once every page
+ * that made it has cancelled it. Everyone asking for the entity waits
+ * for the one copy on its way.
+ *
+ * The limits can be set with the system properties
+ * <tt>myproxy.prefetch.store.size</tt> and
+ * <tt>myproxy.prefetch.store.maxentry</tt> (in bytes).
+ *
  * @author dh
  *
  */
 public class PrefetchedEntityStore {
-	// locally cached prefetched entities
-	// stores URLs and PrefetchedEntities
-	
+	private static final Logger _logger = Logger.getLogger("myproxy");
+
 	private static PrefetchedEntityStore _instance = null;
-	
-	/** how many milliseconds should elements be kept in the store before they are purged? */
-	private static final int WEED_DELAY = 10 * 1000;
-	
-	private static final Map store = new HashMap();
-	
-	protected PrefetchedEntityStore() {	}
-	
-	public static PrefetchedEntityStore getInstance() {
-		if(_instance==null)
-			_instance = new PrefetchedEntityStore();
+
+	/** how many milliseconds should elements be kept in the store after they have been completed? */
+	private static final long EXPIRY_DELAY = 10 * 1000;
+
+	/** how long announced entities may take to arrive before their place is given up */
+	private static final long PENDING_DELAY = 60 * 1000;
+
+	/** rough size of the headers and bookkeeping of an entity */
+	private static final int ENTRY_OVERHEAD = 512;
+
+	public static final long DEFAULT_SIZE = 32 * 1024 * 1024;
+	public static final long DEFAULT_MAXENTRY = 4 * 1024 * 1024;
+
+	private final long _maxSize, _maxEntrySize;
+
+	/** URLs to entries, in access order */
+	private final LinkedHashMap _store;
+
+	private long _residentBytes;
+	private long _hits, _misses, _evictions, _rejections;
+
+	protected PrefetchedEntityStore(long maxSize, long maxEntrySize) {
+		_maxSize = maxSize;
+		_maxEntrySize = Math.min(maxEntrySize, maxSize);
+		_store = new LinkedHashMap(64, 0.75f, true);
+	}
+
+	public static synchronized PrefetchedEntityStore getInstance() {
+		if(_instance==null) {
+			_instance = new PrefetchedEntityStore(
+				Long.getLong("myproxy.prefetch.store.size", DEFAULT_SIZE).longValue(),
+				Long.getLong("myproxy.prefetch.store.maxentry", DEFAULT_MAXENTRY).longValue());
+		}
 		return _instance;
 	}
-	public boolean containsURL(String url) {
-		return store.containsKey(url);
-	}
-	
-	public void store(String url, PrefetchedEntity entity) {
-		store.put(url, entity);
-	}
-	
-	public void prepareForStorage(String url) {
-		store.put(url, null);
-	}
-	
-	public boolean isEntityAvailable(String url) {
-		return store.get(url)!=null;
-	}
-	
-	public PrefetchedEntity getEntity(String url) {
-		return (PrefetchedEntity) store.get(url);
-	}
-	
-	public void weedStore() {
-		ArrayList toBeDeleted = new ArrayList();
-		for(Iterator i=store.values().iterator();i.hasNext();) {
-			PrefetchedEntity pe = (PrefetchedEntity)i.next();
-			
-			if(pe==null) continue;
-			
-			Date completedAt = pe.getCompletedAt();
-			
-			if(completedAt==null) continue;
-			
-			Date now = new Date();
-			
-			if((now.getTime()-completedAt.getTime())>PrefetchedEntityStore.WEED_DELAY) {
-				toBeDeleted.add(pe.getURI());
-				System.out.println("Removing "+ pe.getURI() + " from store.");
+
+	public synchronized boolean containsURL(String url) {
+		return _store.containsKey(url);
+	}
+
+	/**
+	 * Stores a completed entity. If the entity is too large, it is dropped
+	 * and the URL is forgotten, so that clients waiting for it give up.
+	 */
+	public synchronized void store(String url, PrefetchedEntity entity) {
+		long size = entity.size() + ENTRY_OVERHEAD;
+		long now = System.currentTimeMillis();
+
+		remove(url);
+
+		if(size > _maxEntrySize) {
+			_rejections++;
+			_logger.finer("Not storing " + url + " (" + size + " bytes)");
+			notifyAll();
+			return;
+		}
+
+		makeRoom(size, now);
+		_store.put(url, new Entry(entity, size, now));
+		_residentBytes += size;
+		notifyAll();
+	}
+
+	/**
+	 * Announces that an entity for <code>url</code> is on its way. Each
+	 * announcement has to be followed by <code>store()</code> or
+	 * <code>cancel()</code>.
+	 */
+	public synchronized void prepareForStorage(String url) {
+		Entry entry = (Entry)_store.get(url);
+		if(entry != null) {
+			if(entry.entity == null)
+				entry.announcements++;
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		makeRoom(ENTRY_OVERHEAD, now);
+		entry = new Entry(null, ENTRY_OVERHEAD, now);
+		entry.announcements = 1;
+		_store.put(url, entry);
+		_residentBytes += ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * Returns true if an entity for <code>url</code> has been
+	 * announced and not been received yet.
+	 */
+	public synchronized boolean isPending(String url) {
+		Entry entry = (Entry)_store.get(url);
+		return entry != null && entry.entity == null;
+	}
+
+	/**
+	 * Withdraws an announcement of an entity that will not arrive. Once
+	 * nobody expects the entity anymore, clients waiting for it stop
+	 * waiting.
+	 */
+	public synchronized void cancel(String url) {
+		Entry entry = (Entry)_store.get(url);
+		if(entry != null && entry.entity == null && --entry.announcements <= 0) {
+			remove(url);
+			notifyAll();
+		}
+	}
+
+	public synchronized boolean isEntityAvailable(String url) {
+		Entry entry = (Entry)_store.get(url);
+		return entry != null && entry.entity != null;
+	}
+
+	public synchronized PrefetchedEntity getEntity(String url) {
+		Entry entry = (Entry)_store.get(url);
+		return entry != null ? entry.entity : null;
+	}
+
+	/**
+	 * Returns the entity for <code>url</code>, waiting up to <code>timeout</code>
+	 * milliseconds if it has been announced but not received yet. Returns
+	 * <tt>null</tt> if the store does not (or no longer) know about the URL,
+	 * or the entity did not arrive in time.
+	 */
+	public synchronized PrefetchedEntity awaitEntity(String url, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while(true) {
+			Entry entry = (Entry)_store.get(url);
+			long now = System.currentTimeMillis();
+
+			if(entry != null && entry.entity != null && now - entry.time > EXPIRY_DELAY) {
+				remove(url);
+				entry = null;
+			}
+
+			if(entry == null) {
+				_misses++;
+				return null;
+			}
+
+			if(entry.entity != null) {
+				_hits++;
+				return entry.entity;
 			}
+
+			if(now >= deadline) {
+				_misses++;
+				return null;
+			}
+
+			wait(deadline - now);
+		}
+	}
+
+	public synchronized long getResidentBytes() {
+		return _residentBytes;
+	}
+
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	public synchronized long getMisses() {
+		return _misses;
+	}
+
+	public synchronized long getEvictions() {
+		return _evictions;
+	}
+
+	public synchronized String toString() {
+		StringBuffer buffer = new StringBuffer("PrefetchedEntityStore: ");
+		buffer.append(_store.size()).append(" entities, ");
+		buffer.append(_residentBytes).append(" of ").append(_maxSize).append(" bytes, ");
+		buffer.append(_hits).append(" hits, ");
+		buffer.append(_misses).append(" misses, ");
+		buffer.append(_evictions).append(" evictions, ");
+		buffer.append(_rejections).append(" too large");
+		return buffer.toString();
+	}
+
+	/**
+	 * Drops expired entities, then the least recently used ones
+	 * until <code>size</code> more bytes fit into the budget.
+	 * Announced entities are only dropped once they are overdue.
+	 */
+	private void makeRoom(long size, long now) {
+		for(Iterator i = _store.values().iterator(); i.hasNext();) {
+			Entry entry = (Entry)i.next();
+			boolean expired = entry.entity != null ?
+				now - entry.time > EXPIRY_DELAY :
+				now - entry.time > PENDING_DELAY;
+
+			if(!expired && _residentBytes + size <= _maxSize)
+				break;
+
+			if(!expired && entry.entity == null)
+				continue;
+
+			i.remove();
+			_residentBytes -= entry.size;
+			if(!expired)
+				_evictions++;
 		}
-		
-		for(Iterator i=toBeDeleted.iterator();i.hasNext();) {
-			store.remove((String)i.next());
+
+		if(_logger.isLoggable(Level.FINEST))
+			_logger.finest(toString());
+	}
+
+	private void remove(String url) {
+		Entry entry = (Entry)_store.remove(url);
+		if(entry != null)
+			_residentBytes -= entry.size;
+	}
+
+	private static final class Entry {
+		/** null while the entity has only been announced */
+		final PrefetchedEntity entity;
+		final long size;
+		/** when the entity was announced or completed */
+		final long time;
+		/** how many pages expect the entity while it is on its way */
+		int announcements;
+
+		Entry(PrefetchedEntity entity, long size, long time) {
+			this.entity = entity;
+			this.size = size;
+			this.time = time;
 		}
 	}
-}
\ No newline at end of file
+}
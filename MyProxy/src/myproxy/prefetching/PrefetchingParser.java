@@ -7,4 +7,10 @@ import myproxy.httpio.URIParser;
 
 public interface PrefetchingParser {
 	public List findURLsInResponse(URIParser baseUrl, String responseBody) throws MalformedURLException;
+	
+	/**
+	 * Returns the same URLs as <code>findURLsInResponse()</code>, as
+	 * <code>EmbeddedURL</code>s tagged with their type and offset.
+	 */
+	public List findEmbeddedURLs(URIParser baseUrl, String responseBody) throws MalformedURLException;
 }
\ No newline at end of file
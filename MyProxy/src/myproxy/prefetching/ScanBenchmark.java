@@ -0,0 +1,309 @@
+package myproxy.prefetching;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import myproxy.httpio.URIParser;
+
+/**
+ * Measures how much sooner a page and what it embeds are complete when
+ * the embedded entities are fetched while the page is still arriving,
+ * as the remote end does with a <code>StreamingScanner</code>, instead
+ * of after the page is complete.
+ *
+ * A stub origin on the loopback interface sends a page in slices over
+ * a given time, and each embedded image after a given delay. The page
+ * is loaded both ways, fetching at most a given number of entities at
+ * a time, and the times until everything has arrived are reported, e.g.
+ * <tt>java myproxy.prefetching.ScanBenchmark 60 2000 200 8</tt>
+ * for 60 images, a page taking 2 seconds, images taking 200 milliseconds
+ * each and 8 parallel fetches.
+ *
+ * @author dh
+ */
+public final class ScanBenchmark {
+	private static final int SLICES = 20;
+	private static final int IMAGE_SIZE = 2048;
+
+	private final int _images;
+	private final int _dripTime;
+	private final int _imageDelay;
+	private final int _parallel;
+
+	private ServerSocket _origin;
+	private byte[] _page;
+
+	private ScanBenchmark(int images, int dripTime, int imageDelay, int parallel) {
+		_images = images;
+		_dripTime = dripTime;
+		_imageDelay = imageDelay;
+		_parallel = parallel;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int images = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+		int dripTime = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int imageDelay = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int parallel = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+
+		ScanBenchmark benchmark = new ScanBenchmark(images, dripTime, imageDelay, parallel);
+		benchmark.startOrigin();
+		try {
+			System.out.println(images + " images, page sent over " + dripTime + " ms, images after " + imageDelay + " ms, " + parallel + " fetches at a time");
+			// the first round only warms up the parser and the JIT
+			benchmark.load(false);
+			benchmark.load(true);
+			for(int round = 1; round <= 3; round++) {
+				long after = benchmark.load(false);
+				long streaming = benchmark.load(true);
+				System.out.println("Round " + round + ": page complete after " + after + " ms when parsed once it has arrived, "
+					+ streaming + " ms when scanned while it arrives");
+			}
+		} finally {
+			benchmark._origin.close();
+		}
+	}
+
+	/**
+	 * Loads the page and all its images.
+	 *
+	 * @param streaming whether to scan the page while it arrives
+	 * @return the time it took in milliseconds
+	 */
+	private long load(boolean streaming) throws Exception {
+		String base = "http://127.0.0.1:" + _origin.getLocalPort() + "/";
+		final URIParser baseURI = new URIParser();
+		baseURI.parse(base);
+		PrefetchingParser parser = PrefetchUtils.getHTMLParser();
+
+		long start = System.currentTimeMillis();
+		final Fetcher fetcher = new Fetcher(_parallel);
+		StreamingScanner scanner = null;
+		if(streaming) {
+			scanner = StreamingScanner.create(parser, baseURI, null, new StreamingScanner.Listener() {
+				public void urlsFound(List embeddedURLs) {
+					fetcher.fetchAll(embeddedURLs);
+				}
+			});
+		}
+
+		byte[] page = fetch(base, scanner);
+		if(scanner != null)
+			scanner.close();
+		// what the scanner found is only fetched once
+		fetcher.fetchAll(parser.findEmbeddedURLs(baseURI, new String(page, "ISO-8859-1")));
+		fetcher.waitForAll();
+		return System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * Fetches entities with a fixed number of threads.
+	 */
+	private final class Fetcher {
+		private final LinkedList _queue = new LinkedList();
+		private final Set _requested = new HashSet();
+		private int _outstanding = 0;
+		private IOException _failure = null;
+
+		Fetcher(int threads) {
+			for(int i = 0; i < threads; i++) {
+				Thread worker = new Thread() {
+					public void run() {
+						work();
+					}
+				};
+				worker.setDaemon(true);
+				worker.start();
+			}
+		}
+
+		synchronized void fetchAll(List embeddedURLs) {
+			for(Iterator i = embeddedURLs.iterator(); i.hasNext();) {
+				String url = ((EmbeddedURL)i.next()).getURL();
+				if(_requested.add(url)) {
+					_queue.add(url);
+					_outstanding++;
+				}
+			}
+			notifyAll();
+		}
+
+		synchronized void waitForAll() throws IOException, InterruptedException {
+			while(_outstanding > 0 && _failure == null)
+				wait();
+			_queue.clear();
+			_outstanding = -1;
+			notifyAll();
+			if(_failure != null)
+				throw _failure;
+		}
+
+		private void work() {
+			while(true) {
+				String url;
+				synchronized(this) {
+					while(_queue.isEmpty() && _outstanding >= 0) {
+						try {
+							wait();
+						} catch(InterruptedException e) {
+							return;
+						}
+					}
+					if(_outstanding < 0)
+						return;
+					url = (String)_queue.removeFirst();
+				}
+
+				try {
+					fetch(url, null);
+				} catch(IOException e) {
+					synchronized(this) {
+						_failure = e;
+					}
+				}
+				synchronized(this) {
+					_outstanding--;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fetches <code>url</code> from the origin over a connection of its own.
+	 *
+	 * @param observer receives the body as it arrives, may be null
+	 */
+	private static byte[] fetch(String url, OutputStream observer) throws IOException {
+		URIParser uri = new URIParser();
+		try {
+			uri.parse(url);
+		} catch(Exception e) {
+			throw new IOException(e.getMessage());
+		}
+
+		Socket socket = new Socket(uri.getHost(), uri.getPort());
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET " + uri.getPath() + " HTTP/1.0\r\nHost: " + uri.getHost() + "\r\n\r\n").getBytes("ISO-8859-1"));
+			out.flush();
+
+			InputStream in = socket.getInputStream();
+			String line;
+			int length = -1;
+			while((line = readLine(in)).length() > 0) {
+				if(line.toLowerCase().startsWith("content-length:"))
+					length = Integer.parseInt(line.substring(15).trim());
+			}
+			if(length < 0)
+				throw new IOException("No Content-Length from origin for " + url);
+
+			byte[] body = new byte[length];
+			int offset = 0;
+			while(offset < length) {
+				int read = in.read(body, offset, length - offset);
+				if(read == -1)
+					throw new IOException("Unexpected end of " + url);
+				if(observer != null)
+					observer.write(body, offset, read);
+				offset += read;
+			}
+			return body;
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuffer line = new StringBuffer();
+		int c;
+		while((c = in.read()) != '\n') {
+			if(c == -1)
+				throw new IOException("Unexpected end of stream.");
+			if(c != '\r')
+				line.append((char)c);
+		}
+		return line.toString();
+	}
+
+	private void startOrigin() throws IOException {
+		StringBuffer page = new StringBuffer("<html><head><title>Benchmark</title></head><body>\n");
+		for(int i = 0; i < _images; i++) {
+			page.append("<p>");
+			// some text between the images, as in an article
+			for(int j = 0; j < 20; j++)
+				page.append("Lorem ipsum dolor sit amet. ");
+			page.append("</p>\n<img src=\"/image").append(i).append(".png\" alt=\"\">\n");
+		}
+		page.append("</body></html>\n");
+		_page = page.toString().getBytes("ISO-8859-1");
+
+		_origin = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread("ScanBenchmark origin") {
+			public void run() {
+				while(true) {
+					final Socket client;
+					try {
+						client = _origin.accept();
+					} catch(IOException e) {
+						return;
+					}
+					new Thread() {
+						public void run() {
+							try {
+								serve(client);
+							} catch(Exception e) {
+								// the client is gone
+							} finally {
+								try {
+									client.close();
+								} catch(IOException e) {
+								}
+							}
+						}
+					}.start();
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void serve(Socket client) throws IOException, InterruptedException {
+		InputStream in = client.getInputStream();
+		String requestLine = readLine(in);
+		while(readLine(in).length() > 0);
+
+		String path = requestLine.split(" ")[1];
+		OutputStream out = client.getOutputStream();
+		if(path.equals("/")) {
+			out.write(head("text/html", _page.length));
+			out.flush();
+			// the page drips in, as from a slow server generating it
+			int slice = (_page.length + SLICES - 1) / SLICES;
+			for(int offset = 0; offset < _page.length; offset += slice) {
+				Thread.sleep(_dripTime / SLICES);
+				out.write(_page, offset, Math.min(slice, _page.length - offset));
+				out.flush();
+			}
+		} else {
+			Thread.sleep(_imageDelay);
+			out.write(head("image/png", IMAGE_SIZE));
+			out.write(new byte[IMAGE_SIZE]);
+			out.flush();
+		}
+	}
+
+	private static byte[] head(String contentType, int length) throws IOException {
+		return ("HTTP/1.0 200 OK\r\nContent-Type: " + contentType + "\r\nContent-Length: " + length + "\r\n\r\n").getBytes("ISO-8859-1");
+	}
+}
@@ -0,0 +1,213 @@
+package myproxy.prefetching;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import myproxy.httpio.URIParser;
+
+/**
+ * Finds embedded URLs in a document while it is still arriving, so that
+ * fetching them can start before the whole document is there.
+ *
+ * The scanner is given the body as it is received, decodes it if it is
+ * gzip or deflate encoded, and runs the parser over what has arrived up
+ * to the last complete tag whenever that has doubled in length since the
+ * last run. This keeps the total work linear in the length of the
+ * document. Each URL is reported once, as the document's own parse would
+ * report it, so the results can be matched up later.
+ *
+ * Scanning stops quietly if the body cannot be decoded; the document
+ * is parsed as a whole once it is complete anyway.
+ *
+ * @author dh
+ */
+public final class StreamingScanner extends OutputStream {
+	private static final Logger _logger = Logger.getLogger("myproxy");
+
+	/** the parser first runs when this much of the document is there */
+	private static final int FIRST_SCAN = 4096;
+
+	/**
+	 * Is told about the URLs found in the document so far.
+	 */
+	public interface Listener {
+		/**
+		 * @param embeddedURLs the <code>EmbeddedURL</code>s not reported before
+		 */
+		void urlsFound(List embeddedURLs) throws IOException;
+	}
+
+	private final PrefetchingParser _parser;
+	private final URIParser _baseURI;
+	private final Listener _listener;
+
+	/** the character a complete tag or URL ends with */
+	private final byte _boundary;
+
+	/** null for unencoded bodies */
+	private Inflater _inflater;
+	private final boolean _nowrap;
+
+	/** the start of a gzip body, until its header is complete */
+	private ByteArrayOutputStream _gzipHeader;
+
+	/** the decoded document so far */
+	private final ByteArrayOutputStream _text;
+	private final byte[] _buffer;
+
+	private int _nextScan;
+	private final Set _found;
+	private boolean _failed;
+
+	private StreamingScanner(PrefetchingParser parser, URIParser baseURI, Listener listener, String contentEncoding) {
+		_parser = parser;
+		_baseURI = baseURI;
+		_listener = listener;
+		_boundary = (byte)(parser instanceof CSSParser ? ')' : '>');
+
+		_nowrap = "gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding);
+		_inflater = contentEncoding != null ? ZipPool.getInflater(_nowrap) : null;
+		_gzipHeader = _nowrap ? new ByteArrayOutputStream(16) : null;
+
+		_text = new ByteArrayOutputStream(FIRST_SCAN * 2);
+		_buffer = new byte[8192];
+		_nextScan = FIRST_SCAN;
+		_found = new HashSet();
+		_failed = false;
+	}
+
+	/**
+	 * Returns a scanner for a body with the given <tt>Content-Encoding</tt>.
+	 *
+	 * @return null if bodies with that encoding cannot be scanned
+	 */
+	public static StreamingScanner create(PrefetchingParser parser, URIParser baseURI, String contentEncoding, Listener listener) {
+		if(contentEncoding != null) {
+			contentEncoding = contentEncoding.trim().toLowerCase();
+			if(contentEncoding.length() == 0 || contentEncoding.equals("identity"))
+				contentEncoding = null;
+			else if(!contentEncoding.equals("gzip") && !contentEncoding.equals("x-gzip") && !contentEncoding.equals("deflate"))
+				return null;
+		}
+		return new StreamingScanner(parser, baseURI, listener, contentEncoding);
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	public void write(byte[] buf, int off, int len) throws IOException {
+		if(_failed)
+			return;
+
+		try {
+			if(_inflater == null)
+				_text.write(buf, off, len);
+			else
+				inflate(buf, off, len);
+
+			if(_text.size() >= _nextScan)
+				scan();
+		} catch(Exception e) {
+			// the document is parsed once it is complete, so this only costs time
+			_logger.finer("Stopped scanning " + _baseURI.getSource() + " while it arrives: " + e);
+			_failed = true;
+			close();
+		}
+	}
+
+	/**
+	 * Gives the inflater back to the pool, if there is one.
+	 */
+	public void close() {
+		if(_inflater != null) {
+			ZipPool.release(_inflater, _nowrap);
+			_inflater = null;
+		}
+	}
+
+	private void inflate(byte[] buf, int off, int len) throws DataFormatException {
+		if(_gzipHeader != null) {
+			_gzipHeader.write(buf, off, len);
+			byte[] start = _gzipHeader.toByteArray();
+			int headerLength = gzipHeaderLength(start);
+			if(headerLength == -1)
+				return;
+
+			_gzipHeader = null;
+			buf = start;
+			off = headerLength;
+			len = start.length - headerLength;
+		}
+
+		if(_inflater.finished())
+			return;
+		_inflater.setInput(buf, off, len);
+		int inflated;
+		while((inflated = _inflater.inflate(_buffer)) > 0)
+			_text.write(_buffer, 0, inflated);
+	}
+
+	/**
+	 * Returns the length of the gzip header at the start of
+	 * <code>data</code>, or <tt>-1</tt> if it is not complete yet.
+	 */
+	private static int gzipHeaderLength(byte[] data) throws DataFormatException {
+		if(data.length < 10)
+			return -1;
+		if((data[0] & 0xff) != 0x1f || (data[1] & 0xff) != 0x8b || data[2] != 8)
+			throw new DataFormatException("Not in gzip format.");
+
+		int flags = data[3] & 0xff;
+		int pos = 10;
+		if((flags & 4) != 0) { // FEXTRA
+			if(data.length < pos + 2)
+				return -1;
+			pos += 2 + ((data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8);
+		}
+		if((flags & 8) != 0) { // FNAME
+			while(pos < data.length && data[pos] != 0)
+				pos++;
+			pos++;
+		}
+		if((flags & 16) != 0) { // FCOMMENT
+			while(pos < data.length && data[pos] != 0)
+				pos++;
+			pos++;
+		}
+		if((flags & 2) != 0) // FHCRC
+			pos += 2;
+		return pos <= data.length ? pos : -1;
+	}
+
+	private void scan() throws IOException {
+		byte[] text = _text.toByteArray();
+		_nextScan = text.length * 2;
+
+		int end = text.length - 1;
+		while(end >= 0 && text[end] != _boundary)
+			end--;
+		if(end < 0)
+			return;
+
+		// decoded the same way as the complete document, so the offsets match
+		List urls = _parser.findEmbeddedURLs(_baseURI, new String(text, 0, end + 1));
+		List found = new ArrayList();
+		for(Iterator i = urls.iterator(); i.hasNext();) {
+			EmbeddedURL url = (EmbeddedURL)i.next();
+			if(_found.add(url.getURL()))
+				found.add(url);
+		}
+		if(!found.isEmpty())
+			_listener.urlsFound(found);
+	}
+}
@@ -0,0 +1,122 @@
+package myproxy.prefetching;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Encodes the URL lists of a prefetch response as a block of front-coded
+ * entries, named <tt>BE=prefix</tt> in the chunk extensions.
+ *
+ * The URLs a page embeds mostly share their scheme, host and much of
+ * their path with the URL before them. Each URL is therefore written as
+ * the number of leading bytes it has in common with the previous one,
+ * the number of bytes that follow and these bytes, in UTF-8, with both
+ * numbers as base-128 varints. Reading the block is a single pass over
+ * its bytes, without compression or splitting text into lines.
+ *
+ * @author dh
+ */
+public final class URLListCodec {
+	/** the value of the <tt>BE</tt> chunk extension */
+	public static final String NAME = "prefix";
+
+	/** longer URLs are not sent by browsers either */
+	private static final int MAX_URL_LENGTH = 64 * 1024;
+
+	private URLListCodec() {
+	}
+
+	/**
+	 * Encodes a list of URL strings.
+	 */
+	public static byte[] encode(List urls) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(urls.size() * 24 + 16);
+		byte[] previous = new byte[0];
+		for(Iterator i = urls.iterator(); i.hasNext();) {
+			byte[] url = bytes((String)i.next());
+			int shared = 0;
+			int max = Math.min(url.length, previous.length);
+			while(shared < max && url[shared] == previous[shared])
+				shared++;
+
+			writeVarint(out, shared);
+			writeVarint(out, url.length - shared);
+			out.write(url, shared, url.length - shared);
+			previous = url;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes URLs until the end of <code>in</code>.
+	 *
+	 * @return the URL strings in the order they were encoded
+	 */
+	public static List decode(InputStream in) throws IOException {
+		List urls = new ArrayList();
+		byte[] previous = new byte[256];
+		int previousLength = 0;
+		int shared;
+		while((shared = readVarint(in)) != -1) {
+			int length = readVarint(in);
+			if(length == -1 || shared > previousLength || shared + length > MAX_URL_LENGTH)
+				throw new IOException("Invalid URL list.");
+
+			if(shared + length > previous.length) {
+				byte[] larger = new byte[Math.max(shared + length, previous.length * 2)];
+				System.arraycopy(previous, 0, larger, 0, shared);
+				previous = larger;
+			}
+			int offset = shared;
+			while(offset < shared + length) {
+				int read = in.read(previous, offset, shared + length - offset);
+				if(read == -1)
+					throw new IOException("Unexpected end of URL list.");
+				offset += read;
+			}
+			previousLength = shared + length;
+			urls.add(new String(previous, 0, previousLength, "UTF-8"));
+		}
+		return urls;
+	}
+
+	private static byte[] bytes(String url) {
+		try {
+			return url.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new Error(e.toString());
+		}
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * @return <tt>-1</tt> at the end of <code>in</code>
+	 */
+	private static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 32; shift += 7) {
+			int b = in.read();
+			if(b == -1) {
+				if(shift == 0)
+					return -1;
+				throw new IOException("Unexpected end of URL list.");
+			}
+			value |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Invalid URL list.");
+	}
+}
@@ -0,0 +1,120 @@
+package myproxy.prefetching;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * A set of URLs in the order they were added, for the bookkeeping of
+ * what a page embeds. URLs are normalized before they are compared, so
+ * that spellings the browser would request the same way count once, and
+ * interned, so that the many lists and maps holding the URLs of a page
+ * share one copy of each.
+ *
+ * Normalizing lowercases the scheme and host, drops the default port and
+ * the fragment, and gives an empty path a <tt>/</tt>. Strings that are
+ * not absolute URLs are kept as they are.
+ *
+ * @author dh
+ */
+public final class URLSet extends AbstractSet {
+	private final LinkedHashSet _urls;
+
+	public URLSet() {
+		_urls = new LinkedHashSet();
+	}
+
+	public URLSet(Collection urls) {
+		_urls = new LinkedHashSet(Math.max(urls.size() * 2, 16));
+		addAll(urls);
+	}
+
+	/**
+	 * Adds the normalized form of <code>url</code>, a <code>String</code>.
+	 */
+	public boolean add(Object url) {
+		return _urls.add(normalize((String)url));
+	}
+
+	public boolean contains(Object url) {
+		return url instanceof String && _urls.contains(normalize((String)url));
+	}
+
+	public boolean remove(Object url) {
+		return url instanceof String && _urls.remove(normalize((String)url));
+	}
+
+	public Iterator iterator() {
+		return _urls.iterator();
+	}
+
+	public int size() {
+		return _urls.size();
+	}
+
+	public void clear() {
+		_urls.clear();
+	}
+
+	/**
+	 * Returns the normalized, interned form of <code>url</code>.
+	 */
+	public static String normalize(String url) {
+		int scheme = url.indexOf("://");
+		if(scheme <= 0)
+			return url.intern();
+
+		int start = scheme + 3;
+		int end = start;
+		int length = url.length();
+		boolean upperCase = false;
+		while(end < length) {
+			char c = url.charAt(end);
+			if(c == '/' || c == '?' || c == '#')
+				break;
+			if(c >= 'A' && c <= 'Z')
+				upperCase = true;
+			end++;
+		}
+		for(int i = 0; i < scheme && !upperCase; i++) {
+			char c = url.charAt(i);
+			upperCase = c >= 'A' && c <= 'Z';
+		}
+
+		int fragment = url.indexOf('#', end);
+		int pathEnd = fragment != -1 ? fragment : length;
+		boolean emptyPath = end == pathEnd || url.charAt(end) == '?';
+		int port = defaultPortLength(url, scheme, end);
+
+		// most URLs are normal already
+		if(!upperCase && fragment == -1 && !emptyPath && port == 0)
+			return url.intern();
+
+		StringBuffer normal = new StringBuffer(length + 1);
+		normal.append(url.substring(0, scheme).toLowerCase()).append("://");
+		String authority = url.substring(start, end - port);
+		// the user info is case-sensitive
+		int at = authority.lastIndexOf('@') + 1;
+		normal.append(authority.substring(0, at)).append(authority.substring(at).toLowerCase());
+		if(emptyPath)
+			normal.append('/');
+		normal.append(url.substring(end, pathEnd));
+		return normal.toString().intern();
+	}
+
+	/**
+	 * Returns the length of the default port at the end of the authority,
+	 * including its colon, or <tt>0</tt> if there is none.
+	 */
+	private static int defaultPortLength(String url, int scheme, int end) {
+		String port;
+		if(url.regionMatches(true, 0, "http", 0, scheme) && scheme == 4)
+			port = ":80";
+		else if(url.regionMatches(true, 0, "https", 0, scheme) && scheme == 5)
+			port = ":443";
+		else
+			return 0;
+		return url.startsWith(port, end - port.length()) ? port.length() : 0;
+	}
+}
@@ -0,0 +1,91 @@
+package myproxy.prefetching;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps idle <code>Deflater</code>s and <code>Inflater</code>s for reuse.
+ *
+ * Every prefetched entity and every message head on the link between
+ * the local and the remote end is compressed on its own, and setting
+ * up zlib's state each time costs more than compressing a small entity.
+ * Instances are reset when they are returned; at most
+ * <code>MAX_IDLE</code> of each kind are kept, the others are ended.
+ *
+ * @author dh
+ */
+public final class ZipPool {
+	private static final int MAX_IDLE = 16;
+
+	/** idle deflaters by level and format */
+	private static final Map _deflaters = new HashMap();
+
+	private static final LinkedList _inflaters = new LinkedList();
+	private static final LinkedList _rawInflaters = new LinkedList();
+
+	private ZipPool() {
+	}
+
+	/**
+	 * @param nowrap <tt>true</tt> for raw deflate data without zlib header and checksum
+	 */
+	public static synchronized Deflater getDeflater(int level, boolean nowrap) {
+		LinkedList idle = (LinkedList)_deflaters.get(key(level, nowrap));
+		if(idle != null && !idle.isEmpty())
+			return (Deflater)idle.removeFirst();
+		return new Deflater(level, nowrap);
+	}
+
+	/**
+	 * Returns a deflater that was obtained with the same arguments.
+	 */
+	public static void release(Deflater deflater, int level, boolean nowrap) {
+		deflater.reset();
+
+		synchronized(ZipPool.class) {
+			Integer key = key(level, nowrap);
+			LinkedList idle = (LinkedList)_deflaters.get(key);
+			if(idle == null) {
+				idle = new LinkedList();
+				_deflaters.put(key, idle);
+			}
+
+			if(idle.size() < MAX_IDLE) {
+				idle.addFirst(deflater);
+				return;
+			}
+		}
+		deflater.end();
+	}
+
+	public static synchronized Inflater getInflater(boolean nowrap) {
+		LinkedList idle = nowrap ? _rawInflaters : _inflaters;
+		if(!idle.isEmpty())
+			return (Inflater)idle.removeFirst();
+		return new Inflater(nowrap);
+	}
+
+	/**
+	 * Returns an inflater that was obtained with the same argument.
+	 */
+	public static void release(Inflater inflater, boolean nowrap) {
+		inflater.reset();
+
+		synchronized(ZipPool.class) {
+			LinkedList idle = nowrap ? _rawInflaters : _inflaters;
+			if(idle.size() < MAX_IDLE) {
+				idle.addFirst(inflater);
+				return;
+			}
+		}
+		inflater.end();
+	}
+
+	private static Integer key(int level, boolean nowrap) {
+		// levels range from -1 to 9
+		return new Integer(nowrap ? -(level + 2) : level + 2);
+	}
+}